@@ -4,7 +4,10 @@ import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableMapKeySetIterator;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -15,14 +18,20 @@ import org.whispersystems.libsignal.UntrustedIdentityException;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import io.sentry.Sentry;
 import lt.imas.react_native_signal.helpers.Base64;
+import lt.imas.react_native_signal.signal.HttpClientConfig;
 import lt.imas.react_native_signal.signal.LegacyMessage;
 import lt.imas.react_native_signal.signal.LogSender;
+import lt.imas.react_native_signal.signal.MessagePipe;
+import lt.imas.react_native_signal.signal.MessageRetention;
 import lt.imas.react_native_signal.signal.MessageStorage;
+import lt.imas.react_native_signal.signal.ProtocolStore;
+import lt.imas.react_native_signal.signal.SQLiteProtocolStorage;
 import lt.imas.react_native_signal.signal.SignalClient;
 import lt.imas.react_native_signal.signal.SignalServer;
 import lt.imas.react_native_signal.signal.ProtocolStorage;
@@ -35,10 +44,16 @@ public class RNSignalClientModule extends ReactContextBaseJavaModule {
     private LogSender logSender = LogSender.getInstance();
 
     private SignalClient signalClient;
-    private ProtocolStorage protocolStorage;
+    private SignalServer signalServer;
+    private MessagePipe messagePipe;
+    private ProtocolStore protocolStorage;
     private MessageStorage messageStorage;
     private int signalResetVersion = 0;
 
+    private String EVENT_MESSAGES_RECEIVED = "SignalMessagesReceived";
+    private String EVENT_MESSAGE_PIPE_STATE = "SignalMessagePipeState";
+
+    private String absolutePath;
     private String username;
 
     public RNSignalClientModule(ReactApplicationContext reactContext) {
@@ -46,7 +61,7 @@ public class RNSignalClientModule extends ReactContextBaseJavaModule {
 
         Timber.plant(new Timber.DebugTree());
 
-        String absolutePath = getReactApplicationContext().getFilesDir().getAbsolutePath();
+        absolutePath = getReactApplicationContext().getFilesDir().getAbsolutePath();
         protocolStorage = new ProtocolStorage(absolutePath);
         messageStorage = new MessageStorage(absolutePath);
     }
@@ -70,7 +85,14 @@ public class RNSignalClientModule extends ReactContextBaseJavaModule {
                 String host = config.getString("host");
                 username = config.getString("username");
 
-                SignalServer signalServer = new SignalServer(host, accessToken, getReactApplicationContext());
+                boolean protocolStorageSwitched = selectProtocolStorage(config);
+                selectMessageRetention(config);
+                selectIndexedExistingTags(config);
+
+                closeMessagePipe();
+                if (signalClient != null) signalClient.shutdown();
+                if (signalServer != null) signalServer.shutdown();
+                signalServer = new SignalServer(host, accessToken, getReactApplicationContext(), readHttpClientConfig(config));
                 signalClient = new SignalClient(signalServer, protocolStorage, messageStorage, signalResetVersion);
 
                 int existingSignalResetVersion = protocolStorage.getSignalResetVersion();
@@ -83,10 +105,12 @@ public class RNSignalClientModule extends ReactContextBaseJavaModule {
                 if (!performSoftReset && protocolStorage.getLocalUsername().equals(username) && protocolStorage.isLocalRegistered()){
                     signalClient.checkRemotePreKeys(promise);
                 } else {
+                    // backend switched to an empty store, not to another account, history still belongs to this user
+                    boolean keepMessages = protocolStorageSwitched && protocolStorage.getLocalUsername().isEmpty();
                     protocolStorage.deleteAll();
                     if (performSoftReset) {
                         logSender.sendInfo(String.format("Android Signal soft reset version triggered: %s", signalResetVersion));
-                    } else {
+                    } else if (!keepMessages) {
                         messageStorage.deleteAll();
                     }
                     registerAccount(promise);
@@ -98,6 +122,95 @@ public class RNSignalClientModule extends ReactContextBaseJavaModule {
         }
     }
 
+    /**
+     * Picks protocol store backend by "protocolStorage" config value: "sqlite" or "file" (default).
+     * File store of an existing install is moved into the database the first time "sqlite" is selected, so the
+     * account is kept. Switching back to "file" starts from an empty store, which leads to account registration
+     * but keeps message history. Returns true when the backend was switched.
+     * File backend writes session updates in background when "protocolWriteBehind" is true.
+     */
+    private boolean selectProtocolStorage(ReadableMap config) {
+        boolean useSQLite = config.hasKey("protocolStorage") && "sqlite".equals(config.getString("protocolStorage"));
+        boolean switched = false;
+        if (useSQLite && !(protocolStorage instanceof SQLiteProtocolStorage)) {
+            ProtocolStorage fileProtocolStorage = (ProtocolStorage) protocolStorage;
+            fileProtocolStorage.close();
+            SQLiteProtocolStorage sqliteProtocolStorage = new SQLiteProtocolStorage(getReactApplicationContext());
+            // files are dropped once copied, so only one copy of the session state is ever updated
+            if (sqliteProtocolStorage.importFrom(fileProtocolStorage)) fileProtocolStorage.deleteAll();
+            protocolStorage = sqliteProtocolStorage;
+            switched = true;
+        } else if (!useSQLite && !(protocolStorage instanceof ProtocolStorage)) {
+            protocolStorage.close();
+            protocolStorage = new ProtocolStorage(absolutePath);
+            switched = true;
+        }
+        if (protocolStorage instanceof ProtocolStorage) {
+            boolean writeBehind = config.hasKey("protocolWriteBehind") && config.getBoolean("protocolWriteBehind");
+            ((ProtocolStorage) protocolStorage).setWriteBehind(writeBehind);
+        }
+        return switched;
+    }
+
+    /**
+     * Reads HTTP client settings from optional config values, missing ones keep HttpClientConfig.DEFAULT values.
+     */
+    private HttpClientConfig readHttpClientConfig(ReadableMap config) {
+        HttpClientConfig defaults = HttpClientConfig.DEFAULT;
+        return new HttpClientConfig(
+                config.hasKey("httpMaxIdleConnections") ? config.getInt("httpMaxIdleConnections") : defaults.getMaxIdleConnections(),
+                config.hasKey("httpKeepAliveSeconds") ? config.getInt("httpKeepAliveSeconds") : defaults.getKeepAliveSeconds(),
+                config.hasKey("httpMaxRequests") ? config.getInt("httpMaxRequests") : defaults.getMaxRequests(),
+                config.hasKey("httpMaxRequestsPerHost") ? config.getInt("httpMaxRequestsPerHost") : defaults.getMaxRequestsPerHost(),
+                config.hasKey("httpConnectTimeoutSeconds") ? config.getInt("httpConnectTimeoutSeconds") : defaults.getConnectTimeoutSeconds(),
+                config.hasKey("httpReadTimeoutSeconds") ? config.getInt("httpReadTimeoutSeconds") : defaults.getReadTimeoutSeconds()
+        );
+    }
+
+    /**
+     * Reads per-tag retention from "messageRetention" config value, { tag: { maxAgeDays, maxCount } },
+     * and hands it to background compaction. Without it message history is kept whole.
+     */
+    private void selectMessageRetention(ReadableMap config) {
+        Map<String, MessageRetention> retention = new HashMap<>();
+        if (config.hasKey("messageRetention") && !config.isNull("messageRetention")) {
+            ReadableMap retentionConfig = config.getMap("messageRetention");
+            ReadableMapKeySetIterator tags = retentionConfig.keySetIterator();
+            while (tags.hasNextKey()) {
+                String tag = tags.nextKey();
+                ReadableMap tagConfig = retentionConfig.getMap(tag);
+                long maxAgeSeconds = tagConfig.hasKey("maxAgeDays") ? (long) tagConfig.getInt("maxAgeDays") * 24 * 60 * 60 : 0;
+                int maxCount = tagConfig.hasKey("maxCount") ? tagConfig.getInt("maxCount") : 0;
+                retention.put(tag, new MessageRetention(maxAgeSeconds, maxCount));
+            }
+        }
+        messageStorage.setRetention(retention);
+    }
+
+    /**
+     * Reads "existingMessagesFromIndex" config value, tags whose getExistingMessages returns last message of each
+     * conversation from the summary index instead of whole history. "chat" always does.
+     */
+    private void selectIndexedExistingTags(ReadableMap config) {
+        List<String> tags = new ArrayList<>();
+        if (config.hasKey("existingMessagesFromIndex") && !config.isNull("existingMessagesFromIndex")) {
+            ReadableArray tagsConfig = config.getArray("existingMessagesFromIndex");
+            for (int i = 0; i < tagsConfig.size(); i++) {
+                if (!tagsConfig.isNull(i)) tags.add(tagsConfig.getString(i));
+            }
+        }
+        messageStorage.setIndexedExistingTags(tags);
+    }
+
+    @Override
+    public void onCatalystInstanceDestroy() {
+        closeMessagePipe();
+        if (signalClient != null) signalClient.shutdown();
+        protocolStorage.close();
+        if (signalServer != null) signalServer.shutdown();
+        messageStorage.shutdown();
+    }
+
     @ReactMethod
     public void registerAccount(final Promise promise){
         try {
@@ -141,7 +254,7 @@ public class RNSignalClientModule extends ReactContextBaseJavaModule {
         try {
             SignalProtocolAddress address = new SignalProtocolAddress(username, 1);
             protocolStorage.removeIdentity(address);
-            protocolStorage.deleteSession(address);
+            protocolStorage.deleteAllSessions(username);
             messageStorage.deleteAllContactMessages(username);
             signalClient.deleteContactPendingMessages(username, "*", promise);
             promise.resolve("ok");
@@ -175,19 +288,98 @@ public class RNSignalClientModule extends ReactContextBaseJavaModule {
     @ReactMethod
     public void getMessagesByContact(String username, String tag, final Promise promise){
         try {
-            JSONArray messagesJSONA = messageStorage.getContactMessages(username, tag);
-            ArrayList<JSONObject> messagesList = new ArrayList<>();
-            for (int i = 0; i < messagesJSONA.length(); i++)
-                messagesList.add(messagesJSONA.optJSONObject(i));
-            Collections.sort(messagesList, new Comparator<JSONObject>() {
+            promise.resolve(messageStorage.getContactMessagesNewestFirst(username, tag).toString());
+        } catch (Throwable e) {
+            logSender.reportError(e);
+            promise.reject(e);
+        }
+    }
+
+    /**
+     * Opens WebSocket message pipe, received messages are stored under tag and emitted as "SignalMessagesReceived"
+     * events, connection changes as "SignalMessagePipeState" events.
+     */
+    @ReactMethod
+    public void openMessagePipe(String tag, final Promise promise){
+        try {
+            if (signalClient == null) {
+                promise.reject(ERR_WRONG_CONFIG, "Signal client is not initialized.");
+                return;
+            }
+            closeMessagePipe();
+            messagePipe = new MessagePipe(signalServer, signalClient, protocolStorage, tag, new MessagePipe.Listener() {
+                @Override
+                public void onMessages(String tag, JSONArray messagesJSONA) {
+                    try {
+                        JSONObject eventJSONO = new JSONObject();
+                        eventJSONO.put("tag", tag);
+                        eventJSONO.put("messages", messagesJSONA);
+                        emitEvent(EVENT_MESSAGES_RECEIVED, eventJSONO.toString());
+                    } catch (JSONException e) {
+                        logSender.reportError(e);
+                    }
+                }
+
                 @Override
-                public int compare(JSONObject o1, JSONObject o2) {
-                    long ts1 = o1.optLong("savedTimestamp");
-                    long ts2 = o2.optLong("savedTimestamp");
-                    return Long.compare(ts2, ts1);
+                public void onStateChanged(String state) {
+                    emitEvent(EVENT_MESSAGE_PIPE_STATE, state);
                 }
             });
-            promise.resolve(new JSONArray(messagesList).toString());
+            messagePipe.open();
+            promise.resolve("ok");
+        } catch (Throwable e) {
+            logSender.reportError(e);
+            promise.reject(e);
+        }
+    }
+
+    @ReactMethod
+    public void closeMessagePipe(final Promise promise){
+        try {
+            closeMessagePipe();
+            promise.resolve("ok");
+        } catch (Throwable e) {
+            logSender.reportError(e);
+            promise.reject(e);
+        }
+    }
+
+    private void closeMessagePipe() {
+        if (messagePipe == null) return;
+        messagePipe.close();
+        messagePipe = null;
+    }
+
+    private void emitEvent(String eventName, Object data) {
+        ReactApplicationContext reactContext = getReactApplicationContext();
+        if (!reactContext.hasActiveCatalystInstance()) return;
+        reactContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit(eventName, data);
+    }
+
+    @ReactMethod
+    public void compactMessages(final Promise promise){
+        try {
+            messageStorage.compact(promise);
+        } catch (Throwable e) {
+            logSender.reportError(e);
+            promise.reject(e);
+        }
+    }
+
+    @ReactMethod
+    public void searchMessages(String query, String tag, int limit, final Promise promise){
+        try {
+            promise.resolve(messageStorage.searchMessages(query, tag, limit).toString());
+        } catch (Throwable e) {
+            logSender.reportError(e);
+            promise.reject(e);
+        }
+    }
+
+    @ReactMethod
+    public void getMessagesByContactPage(String username, String tag, String cursor, int limit, final Promise promise){
+        try {
+            promise.resolve(messageStorage.getContactMessagesPage(username, tag, cursor, limit).toString());
         } catch (Throwable e) {
             logSender.reportError(e);
             promise.reject(e);
@@ -9,6 +9,10 @@ public class ByteUtil {
         return data == null ? "" : Hex.toHexString(data);
     }
 
+    public static byte[] fromHexString(String hex) {
+        return Hex.decode(hex);
+    }
+
     public static String toZeroPaddedHexString(final byte[] data, final int size) {
         final String hex = toHexString(data);
         final StringBuffer sb = new StringBuffer("");
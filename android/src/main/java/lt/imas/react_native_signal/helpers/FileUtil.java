@@ -0,0 +1,93 @@
+package lt.imas.react_native_signal.helpers;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class FileUtil {
+    public static final String TEMP_FILE_SUFFIX = ".tmp";
+    public static final String BACKUP_FILE_SUFFIX = ".bak";
+
+    public static File getTempFile(File file) {
+        return new File(file.getPath() + TEMP_FILE_SUFFIX);
+    }
+
+    public static boolean isTempFile(File file) {
+        return file.getName().endsWith(TEMP_FILE_SUFFIX);
+    }
+
+    public static File getBackupFile(File file) {
+        return new File(file.getPath() + BACKUP_FILE_SUFFIX);
+    }
+
+    public static boolean isBackupFile(File file) {
+        return file.getName().endsWith(BACKUP_FILE_SUFFIX);
+    }
+
+    /**
+     * Returns the file a backup file was made of.
+     */
+    public static File getBackedUpFile(File backupFile) {
+        String path = backupFile.getPath();
+        return new File(path.substring(0, path.length() - BACKUP_FILE_SUFFIX.length()));
+    }
+
+    /**
+     * Puts back the previous content kept by an interrupted replace(), to be called before the file is read.
+     * Backup left next to the new file is no longer needed and is dropped.
+     */
+    public static void restoreBackup(File file) {
+        File backupFile = getBackupFile(file);
+        if (!backupFile.exists()) return;
+        if (file.exists()) {
+            backupFile.delete();
+        } else {
+            backupFile.renameTo(file);
+        }
+    }
+
+    /**
+     * Flushes written bytes down to the storage device before closing the stream.
+     */
+    public static void syncAndClose(FileOutputStream fos) throws IOException {
+        try {
+            fos.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * Moves fully written temp file over the target, rename is atomic so readers see either old or new content.
+     * Where rename can't replace an existing file, the old file is first moved aside to a backup that is only
+     * dropped once the new file is in place, and restoreBackup() brings it back after a crash in between.
+     */
+    public static void replace(File tempFile, File file) throws IOException {
+        if (tempFile.renameTo(file)) return;
+        File backupFile = getBackupFile(file);
+        restoreBackup(file); // backup of an earlier interrupted replace is either dropped or the current content
+        if (file.exists() && !file.renameTo(backupFile)) throw new IOException("Failed to back up " + file.getName());
+        if (!tempFile.renameTo(file)) {
+            backupFile.renameTo(file);
+            throw new IOException("Failed to replace " + file.getName());
+        }
+        backupFile.delete();
+    }
+
+    /**
+     * Writes data to temp file next to the target and renames it over the target, a crash mid-write leaves the
+     * previous content untouched.
+     */
+    public static void writeAtomically(File file, byte[] data) throws IOException {
+        file.getParentFile().mkdirs();
+        File tempFile = getTempFile(file);
+        FileOutputStream fos = new FileOutputStream(tempFile);
+        try {
+            if (data != null) fos.write(data);
+        } finally {
+            syncAndClose(fos);
+        }
+        replace(tempFile, file);
+    }
+}
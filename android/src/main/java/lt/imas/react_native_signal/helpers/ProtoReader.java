@@ -0,0 +1,86 @@
+package lt.imas.react_native_signal.helpers;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Minimal protocol buffers reader for the few messages handled without generated classes. Fields are read in
+ * order: readTag(), then the value by its wire type, or skip() for unknown fields.
+ */
+public class ProtoReader {
+    public static final int WIRE_TYPE_VARINT = 0;
+    public static final int WIRE_TYPE_FIXED64 = 1;
+    public static final int WIRE_TYPE_LENGTH_DELIMITED = 2;
+    public static final int WIRE_TYPE_FIXED32 = 5;
+
+    private final byte[] data;
+    private int position;
+
+    public ProtoReader(byte[] data) {
+        this.data = data;
+    }
+
+    public boolean hasNext() {
+        return position < data.length;
+    }
+
+    public static int getFieldNumber(int tag) {
+        return tag >>> 3;
+    }
+
+    public static int getWireType(int tag) {
+        return tag & 0x7;
+    }
+
+    public int readTag() throws IOException {
+        return (int) readVarint();
+    }
+
+    public long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position >= data.length) throw new IOException("Truncated varint");
+            byte b = data[position++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public byte[] readBytes() throws IOException {
+        long length = readVarint();
+        if (length < 0 || length > data.length - position) throw new IOException("Truncated field");
+        byte[] value = Arrays.copyOfRange(data, position, position + (int) length);
+        position += (int) length;
+        return value;
+    }
+
+    public String readString() throws IOException {
+        return new String(readBytes(), Charset.forName("UTF-8"));
+    }
+
+    public void skip(int wireType) throws IOException {
+        switch (wireType) {
+            case WIRE_TYPE_VARINT:
+                readVarint();
+                break;
+            case WIRE_TYPE_FIXED64:
+                skipBytes(8);
+                break;
+            case WIRE_TYPE_LENGTH_DELIMITED:
+                readBytes();
+                break;
+            case WIRE_TYPE_FIXED32:
+                skipBytes(4);
+                break;
+            default:
+                throw new IOException("Unsupported wire type " + wireType);
+        }
+    }
+
+    private void skipBytes(int count) throws IOException {
+        if (count > data.length - position) throw new IOException("Truncated field");
+        position += count;
+    }
+}
@@ -0,0 +1,40 @@
+package lt.imas.react_native_signal.helpers;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Minimal protocol buffers writer, counterpart of ProtoReader. Fields are written in call order.
+ */
+public class ProtoWriter {
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    public ProtoWriter writeVarint(int fieldNumber, long value) {
+        writeRawVarint((long) fieldNumber << 3 | ProtoReader.WIRE_TYPE_VARINT);
+        writeRawVarint(value);
+        return this;
+    }
+
+    public ProtoWriter writeBytes(int fieldNumber, byte[] value) {
+        writeRawVarint((long) fieldNumber << 3 | ProtoReader.WIRE_TYPE_LENGTH_DELIMITED);
+        writeRawVarint(value.length);
+        out.write(value, 0, value.length);
+        return this;
+    }
+
+    public ProtoWriter writeString(int fieldNumber, String value) {
+        return writeBytes(fieldNumber, value.getBytes(Charset.forName("UTF-8")));
+    }
+
+    public byte[] toByteArray() {
+        return out.toByteArray();
+    }
+
+    private void writeRawVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
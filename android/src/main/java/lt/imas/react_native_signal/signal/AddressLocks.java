@@ -0,0 +1,29 @@
+package lt.imas.react_native_signal.signal;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+
+/**
+ * Fixed pool of locks striped by recipient name. All devices of one recipient share a lock, so session
+ * updates of a single contact are serialized while different contacts mostly land on different locks.
+ */
+public class AddressLocks {
+    private static final int STRIPES = 64; // power of two
+
+    private final Object[] locks = new Object[STRIPES];
+
+    public AddressLocks() {
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    public Object get(SignalProtocolAddress address) {
+        return get(address.getName());
+    }
+
+    public Object get(String name) {
+        int hash = name.hashCode();
+        hash ^= (hash >>> 16);
+        return locks[hash & (STRIPES - 1)];
+    }
+}
@@ -0,0 +1,167 @@
+package lt.imas.react_native_signal.signal;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ProtocolDatabase over Android's SQLiteDatabase, opened in WAL mode so reads don't wait for writes.
+ * Write statements are compiled on first use and kept until the database is closed.
+ */
+public class AndroidProtocolDatabase implements ProtocolDatabase {
+    private SQLiteDatabase db;
+    private final Map<String, SQLiteStatement> statements = new HashMap<>();
+
+    public AndroidProtocolDatabase(File file) {
+        file.getParentFile().mkdirs();
+        db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        db.enableWriteAheadLogging();
+    }
+
+    private SQLiteStatement getStatement(String sql) {
+        synchronized (statements) {
+            SQLiteStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = db.compileStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+    }
+
+    @Override
+    public void execute(String sql, Object... args) {
+        SQLiteStatement statement = getStatement(sql);
+        synchronized (statement) {
+            for (int i = 0; i < args.length; i++) {
+                Object arg = args[i];
+                if (arg == null) {
+                    statement.bindNull(i + 1);
+                } else if (arg instanceof byte[]) {
+                    statement.bindBlob(i + 1, (byte[]) arg);
+                } else if (arg instanceof Integer || arg instanceof Long) {
+                    statement.bindLong(i + 1, ((Number) arg).longValue());
+                } else {
+                    statement.bindString(i + 1, String.valueOf(arg));
+                }
+            }
+            try {
+                statement.executeUpdateDelete();
+            } finally {
+                statement.clearBindings();
+            }
+        }
+    }
+
+    /**
+     * Query arguments are bound as text, SQLite applies column affinity so integer columns still compare as numbers.
+     */
+    private Cursor query(String sql, Object... args) {
+        String[] selectionArgs = new String[args.length];
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] == null || args[i] instanceof byte[]) throw new IllegalArgumentException("Unsupported query argument");
+            selectionArgs[i] = String.valueOf(args[i]);
+        }
+        return db.rawQuery(sql, selectionArgs);
+    }
+
+    @Override
+    public byte[] queryBlob(String sql, Object... args) {
+        Cursor cursor = query(sql, args);
+        try {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getBlob(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public String queryString(String sql, Object... args) {
+        Cursor cursor = query(sql, args);
+        try {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public Long queryLong(String sql, Object... args) {
+        Cursor cursor = query(sql, args);
+        try {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public List<Long> queryLongs(String sql, Object... args) {
+        List<Long> results = new ArrayList<>();
+        Cursor cursor = query(sql, args);
+        try {
+            while (cursor.moveToNext()) {
+                if (!cursor.isNull(0)) results.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return results;
+    }
+
+    @Override
+    public List<byte[]> queryBlobs(String sql, Object... args) {
+        List<byte[]> results = new ArrayList<>();
+        Cursor cursor = query(sql, args);
+        try {
+            while (cursor.moveToNext()) {
+                if (!cursor.isNull(0)) results.add(cursor.getBlob(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return results;
+    }
+
+    @Override
+    public void beginTransaction() {
+        db.beginTransaction();
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        db.setTransactionSuccessful();
+    }
+
+    @Override
+    public void endTransaction() {
+        db.endTransaction();
+    }
+
+    @Override
+    public int getVersion() {
+        return db.getVersion();
+    }
+
+    @Override
+    public void setVersion(int version) {
+        db.setVersion(version);
+    }
+
+    @Override
+    public void close() {
+        synchronized (statements) {
+            for (SQLiteStatement statement : statements.values()) {
+                statement.close();
+            }
+            statements.clear();
+        }
+        db.close();
+    }
+}
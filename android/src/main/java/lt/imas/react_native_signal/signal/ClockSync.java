@@ -0,0 +1,96 @@
+package lt.imas.react_native_signal.signal;
+
+import android.os.SystemClock;
+
+/**
+ * Estimates offset between local and server clock, NTP style, so request timestamps are computed locally.
+ *
+ * A sample of server time (second resolution) taken by a request sent at t0 and answered at t3 of the local clock
+ * bounds the offset to [serverTime - t3, serverTime + 999 - t0]. Bounds of samples are intersected, so the estimate
+ * tightens as responses are seen, and widened by MAX_DRIFT as they age. Local clock changes are tracked against
+ * the elapsed realtime clock and shift the bounds with them.
+ */
+public class ClockSync {
+    private static final long RESOLUTION_MS = 1000;
+    private static final double MAX_DRIFT = 100e-6; // 100 ppm of elapsed time
+    private static final long MAX_CLOCK_STEP_MS = 500;
+
+    private boolean synced = false;
+    private long lowOffset;
+    private long highOffset;
+    private long boundsElapsed; // elapsed realtime when bounds were last widened
+    private long wallMinusElapsed; // local clock minus elapsed realtime when bounds were last adjusted
+
+    /**
+     * Adds sample from a request made to read server time. Sample disagreeing with current bounds means one of the
+     * clocks was set, estimation then starts over from it.
+     */
+    public synchronized void addSample(long serverTimeMillis, long sentAtMillis, long receivedAtMillis) {
+        if (sentAtMillis <= 0 || receivedAtMillis < sentAtMillis) return;
+        long low = serverTimeMillis - receivedAtMillis;
+        long high = serverTimeMillis + RESOLUTION_MS - 1 - sentAtMillis;
+        if (synced) age();
+        if (!synced || low > highOffset || high < lowOffset) {
+            lowOffset = low;
+            highOffset = high;
+            boundsElapsed = SystemClock.elapsedRealtime();
+            wallMinusElapsed = System.currentTimeMillis() - boundsElapsed;
+            synced = true;
+        } else {
+            lowOffset = Math.max(lowOffset, low);
+            highOffset = Math.min(highOffset, high);
+        }
+    }
+
+    /**
+     * Narrows bounds with server time of any response (Date header). Unlike addSample, a disagreeing sample is
+     * ignored, as it may come from a cached or proxied response.
+     */
+    public synchronized void refine(long serverTimeMillis, long sentAtMillis, long receivedAtMillis) {
+        if (!synced || sentAtMillis <= 0 || receivedAtMillis < sentAtMillis) return;
+        long low = serverTimeMillis - receivedAtMillis;
+        long high = serverTimeMillis + RESOLUTION_MS - 1 - sentAtMillis;
+        age();
+        if (low > highOffset || high < lowOffset) return;
+        lowOffset = Math.max(lowOffset, low);
+        highOffset = Math.min(highOffset, high);
+    }
+
+    public synchronized boolean isSynced() {
+        return synced;
+    }
+
+    /**
+     * Drops the estimate, next request measures server time again.
+     */
+    public synchronized void reset() {
+        synced = false;
+    }
+
+    /**
+     * Returns estimated server time, local time when not synced.
+     */
+    public synchronized long getServerTimeMillis() {
+        if (!synced) return System.currentTimeMillis();
+        age();
+        return System.currentTimeMillis() + lowOffset + (highOffset - lowOffset) / 2;
+    }
+
+    private void age() {
+        long elapsed = SystemClock.elapsedRealtime();
+        long currentWallMinusElapsed = System.currentTimeMillis() - elapsed;
+        long clockStep = currentWallMinusElapsed - wallMinusElapsed;
+        if (Math.abs(clockStep) > MAX_CLOCK_STEP_MS) {
+            // local clock was set, offset to the server moves the other way
+            lowOffset -= clockStep;
+            highOffset -= clockStep;
+            wallMinusElapsed = currentWallMinusElapsed;
+        }
+        long drift = (long) ((elapsed - boundsElapsed) * MAX_DRIFT);
+        if (drift > 0) {
+            lowOffset -= drift;
+            highOffset += drift;
+            boundsElapsed = elapsed;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package lt.imas.react_native_signal.signal;
+
+/**
+ * Connection settings of the HTTP client shared by all SignalServer requests.
+ */
+public class HttpClientConfig {
+    public static final HttpClientConfig DEFAULT = new HttpClientConfig(5, 300, 16, 5, 15, 30);
+
+    private final int maxIdleConnections;
+    private final long keepAliveSeconds;
+    private final int maxRequests;
+    private final int maxRequestsPerHost;
+    private final long connectTimeoutSeconds;
+    private final long readTimeoutSeconds;
+
+    public HttpClientConfig(int maxIdleConnections,
+                            long keepAliveSeconds,
+                            int maxRequests,
+                            int maxRequestsPerHost,
+                            long connectTimeoutSeconds,
+                            long readTimeoutSeconds) {
+        this.maxIdleConnections = maxIdleConnections;
+        this.keepAliveSeconds = keepAliveSeconds;
+        this.maxRequests = maxRequests;
+        this.maxRequestsPerHost = maxRequestsPerHost;
+        this.connectTimeoutSeconds = connectTimeoutSeconds;
+        this.readTimeoutSeconds = readTimeoutSeconds;
+    }
+
+    public int getMaxIdleConnections() {
+        return maxIdleConnections;
+    }
+
+    public long getKeepAliveSeconds() {
+        return keepAliveSeconds;
+    }
+
+    public int getMaxRequests() {
+        return maxRequests;
+    }
+
+    public int getMaxRequestsPerHost() {
+        return maxRequestsPerHost;
+    }
+
+    public long getConnectTimeoutSeconds() {
+        return connectTimeoutSeconds;
+    }
+
+    public long getReadTimeoutSeconds() {
+        return readTimeoutSeconds;
+    }
+}
@@ -0,0 +1,145 @@
+package lt.imas.react_native_signal.signal;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.InvalidKeyException;
+
+import java.io.IOException;
+
+import lt.imas.react_native_signal.helpers.Base64;
+
+/**
+ * Immutable local account details stored in user.json. Values are decoded once when loaded, changes produce
+ * a new instance through the with* methods.
+ *
+ * JSON the instance was loaded from is kept and written back with the changes on top, so a value that failed to
+ * decode, or a key this class doesn't know, is never dropped from user.json by an unrelated setter.
+ */
+public class LocalIdentity {
+    public static final LocalIdentity EMPTY = new LocalIdentity(null, null, null, null, 0, "{}");
+
+    private final String username;
+    private final IdentityKeyPair identityKeyPair;
+    private final Integer registrationId;
+    private final String signalingKey;
+    private final int signalResetVersion;
+    private final String sourceJSON;
+
+    private LocalIdentity(String username,
+                          IdentityKeyPair identityKeyPair,
+                          Integer registrationId,
+                          String signalingKey,
+                          int signalResetVersion,
+                          String sourceJSON) {
+        this.username = username;
+        this.identityKeyPair = identityKeyPair;
+        this.registrationId = registrationId;
+        this.signalingKey = signalingKey;
+        this.signalResetVersion = signalResetVersion;
+        this.sourceJSON = sourceJSON;
+    }
+
+    /**
+     * Decodes every value on its own, one that fails is reported and left out without affecting the others.
+     */
+    public static LocalIdentity fromJSONO(JSONObject dataJSONO) {
+        LogSender logSender = LogSender.getInstance();
+        IdentityKeyPair identityKeyPair = null;
+        Integer registrationId = null;
+        if (dataJSONO.has("identityKeyPair") && !dataJSONO.isNull("identityKeyPair")) {
+            try {
+                identityKeyPair = new IdentityKeyPair(Base64.decode(dataJSONO.getString("identityKeyPair")));
+            } catch (JSONException
+                    | InvalidKeyException
+                    | IOException e) {
+                logSender.reportError(e);
+            }
+        }
+        if (dataJSONO.has("registrationId") && !dataJSONO.isNull("registrationId")) {
+            try {
+                registrationId = dataJSONO.getInt("registrationId");
+            } catch (JSONException e) {
+                logSender.reportError(e);
+            }
+        }
+        return new LocalIdentity(
+                dataJSONO.isNull("username") ? null : dataJSONO.optString("username", null),
+                identityKeyPair,
+                registrationId,
+                dataJSONO.isNull("signalingKey") ? null : dataJSONO.optString("signalingKey", null),
+                dataJSONO.optInt("signalResetVersion", 0),
+                dataJSONO.toString()
+        );
+    }
+
+    /**
+     * Returns loaded JSON with current values on top. Identity key pair and registration id are only written when
+     * set, so raw values that could not be decoded stay as they were.
+     */
+    public JSONObject toJSONO() throws JSONException {
+        JSONObject dataJSONO = new JSONObject(sourceJSON);
+        if (username != null) {
+            dataJSONO.put("username", username);
+        } else {
+            dataJSONO.remove("username");
+        }
+        if (identityKeyPair != null) dataJSONO.put("identityKeyPair", Base64.encodeBytes(identityKeyPair.serialize()));
+        if (registrationId != null) dataJSONO.put("registrationId", (int) registrationId);
+        if (signalingKey != null) {
+            dataJSONO.put("signalingKey", signalingKey);
+        } else {
+            dataJSONO.remove("signalingKey");
+        }
+        dataJSONO.put("signalResetVersion", signalResetVersion);
+        return dataJSONO;
+    }
+
+    public boolean isRegistered() {
+        return identityKeyPair != null && registrationId != null;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public IdentityKeyPair getIdentityKeyPair() {
+        return identityKeyPair;
+    }
+
+    public boolean hasRegistrationId() {
+        return registrationId != null;
+    }
+
+    public int getRegistrationId() {
+        return registrationId != null ? registrationId : 0;
+    }
+
+    public String getSignalingKey() {
+        return signalingKey;
+    }
+
+    public int getSignalResetVersion() {
+        return signalResetVersion;
+    }
+
+    public LocalIdentity withUsername(String username) {
+        return new LocalIdentity(username, identityKeyPair, registrationId, signalingKey, signalResetVersion, sourceJSON);
+    }
+
+    public LocalIdentity withIdentityKeyPair(IdentityKeyPair identityKeyPair) {
+        return new LocalIdentity(username, identityKeyPair, registrationId, signalingKey, signalResetVersion, sourceJSON);
+    }
+
+    public LocalIdentity withRegistrationId(int registrationId) {
+        return new LocalIdentity(username, identityKeyPair, registrationId, signalingKey, signalResetVersion, sourceJSON);
+    }
+
+    public LocalIdentity withSignalingKey(String signalingKey) {
+        return new LocalIdentity(username, identityKeyPair, registrationId, signalingKey, signalResetVersion, sourceJSON);
+    }
+
+    public LocalIdentity withSignalResetVersion(int signalResetVersion) {
+        return new LocalIdentity(username, identityKeyPair, registrationId, signalingKey, signalResetVersion, sourceJSON);
+    }
+}
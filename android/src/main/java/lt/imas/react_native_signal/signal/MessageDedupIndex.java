@@ -0,0 +1,199 @@
+package lt.imas.react_native_signal.signal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import lt.imas.react_native_signal.helpers.ByteUtil;
+import lt.imas.react_native_signal.helpers.FileUtil;
+
+/**
+ * Server timestamps of messages already received from each source, used to drop redelivered messages before they
+ * are decrypted or stored. Every source has its own append-only file of 8 byte timestamps ("<hex source>.idx"),
+ * loaded once into a sorted array so a lookup is a binary search. Only timestamps within the server's redelivery
+ * window are kept, older ones are dropped on load and by prune().
+ */
+public class MessageDedupIndex {
+    private LogSender logSender = LogSender.getInstance();
+
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int ENTRY_BYTES = 8;
+    // server drops undelivered messages after 30 days, an extra day covers sender clock skew
+    private long REDELIVERY_WINDOW_MS = 31L * 24 * 60 * 60 * 1000;
+
+    private File dir;
+    // source -> its received server timestamps
+    private final Map<String, ReceivedTimestamps> received = new HashMap<>();
+
+    public MessageDedupIndex(File dir) {
+        this.dir = dir;
+    }
+
+    public synchronized boolean contains(String source, long serverTimestamp) {
+        return getReceivedTimestamps(source).contains(serverTimestamp);
+    }
+
+    /**
+     * Records messages as received with one append, timestamps already recorded are skipped.
+     */
+    public synchronized void add(String source, List<Long> serverTimestamps) {
+        ReceivedTimestamps receivedTimestamps = getReceivedTimestamps(source);
+        List<Long> newTimestamps = new ArrayList<>();
+        for (long serverTimestamp : serverTimestamps) {
+            if (receivedTimestamps.contains(serverTimestamp) || newTimestamps.contains(serverTimestamp)) continue;
+            newTimestamps.add(serverTimestamp);
+        }
+        if (newTimestamps.isEmpty()) return;
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buffer);
+            for (long serverTimestamp : newTimestamps) {
+                out.writeLong(serverTimestamp);
+            }
+            dir.mkdirs();
+            FileOutputStream fos = new FileOutputStream(getIndexFile(source), true);
+            try {
+                fos.write(buffer.toByteArray());
+            } finally {
+                FileUtil.syncAndClose(fos);
+            }
+        } catch (IOException e) {
+            logSender.reportError(e); // still known for this session
+        }
+        for (long serverTimestamp : newTimestamps) {
+            receivedTimestamps.add(serverTimestamp);
+        }
+    }
+
+    /**
+     * Drops timestamps older than the redelivery window from every source file, rewriting only files that shrink.
+     * Sources are loaded again on their next lookup.
+     */
+    public synchronized void prune() {
+        received.clear();
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        long cutoff = getCutoff();
+        for (File file : files) {
+            if (file.getName().endsWith(INDEX_SUFFIX)) read(file, cutoff);
+        }
+    }
+
+    public synchronized void clear() {
+        received.clear();
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    private ReceivedTimestamps getReceivedTimestamps(String source) {
+        ReceivedTimestamps receivedTimestamps = received.get(source);
+        if (receivedTimestamps == null) {
+            receivedTimestamps = read(source);
+            received.put(source, receivedTimestamps);
+        }
+        return receivedTimestamps;
+    }
+
+    private ReceivedTimestamps read(String source) {
+        ReceivedTimestamps receivedTimestamps = new ReceivedTimestamps();
+        long[] timestamps = read(getIndexFile(source), getCutoff());
+        receivedTimestamps.timestamps = timestamps;
+        receivedTimestamps.size = timestamps.length;
+        return receivedTimestamps;
+    }
+
+    /**
+     * Returns sorted timestamps of the file not older than cutoff, the file is rewritten without the older ones.
+     */
+    private long[] read(File file, long cutoff) {
+        FileUtil.restoreBackup(file);
+        if (!file.exists()) return new long[0];
+        try {
+            byte[] data = new byte[(int) (file.length() - file.length() % ENTRY_BYTES)]; // ignore torn append
+            FileInputStream fis = new FileInputStream(file);
+            try {
+                int offset = 0;
+                while (offset < data.length) {
+                    int read = fis.read(data, offset, data.length - offset);
+                    if (read < 0) break;
+                    offset += read;
+                }
+            } finally {
+                fis.close();
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            long[] timestamps = new long[data.length / ENTRY_BYTES];
+            int size = 0;
+            for (int i = 0; i < timestamps.length; i++) {
+                long timestamp = buffer.getLong();
+                if (timestamp >= cutoff) timestamps[size++] = timestamp;
+            }
+            if (size < timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, size);
+                write(file, timestamps);
+            }
+            Arrays.sort(timestamps);
+            return timestamps;
+        } catch (IOException e) {
+            logSender.reportError(e);
+            return new long[0];
+        }
+    }
+
+    private void write(File file, long[] timestamps) {
+        if (timestamps.length == 0) {
+            file.delete();
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(timestamps.length * ENTRY_BYTES);
+        for (long timestamp : timestamps) {
+            buffer.putLong(timestamp);
+        }
+        try {
+            FileUtil.writeAtomically(file, buffer.array());
+        } catch (IOException e) {
+            logSender.reportError(e); // older timestamps are dropped again on next load
+        }
+    }
+
+    private long getCutoff() {
+        return System.currentTimeMillis() - REDELIVERY_WINDOW_MS;
+    }
+
+    private File getIndexFile(String source) {
+        return new File(dir, ByteUtil.toHexString(source.getBytes(Charset.forName("UTF-8"))) + INDEX_SUFFIX);
+    }
+
+    private static class ReceivedTimestamps {
+        private long[] timestamps = new long[0];
+        private int size;
+
+        private boolean contains(long serverTimestamp) {
+            return Arrays.binarySearch(timestamps, 0, size, serverTimestamp) >= 0;
+        }
+
+        /**
+         * Inserts keeping the array sorted, server timestamps mostly grow so this is usually an append.
+         */
+        private void add(long serverTimestamp) {
+            if (size == timestamps.length) timestamps = Arrays.copyOf(timestamps, Math.max(16, size * 2));
+            int position = -Arrays.binarySearch(timestamps, 0, size, serverTimestamp) - 1;
+            System.arraycopy(timestamps, position, timestamps, position + 1, size - position);
+            timestamps[position] = serverTimestamp;
+            size++;
+        }
+    }
+}
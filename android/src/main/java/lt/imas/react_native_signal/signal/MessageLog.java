@@ -0,0 +1,649 @@
+package lt.imas.react_native_signal.signal;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import lt.imas.react_native_signal.helpers.FileUtil;
+
+/**
+ * Append-only message log of one conversation, split into numbered segment files of newline-delimited JSON
+ * ("messages.0.log", "messages.1.log", ...). Messages are appended to the last segment with one sequential write
+ * and a new segment is started once the last one grows past SEGMENT_MAX_BYTES, so storing a message never
+ * rewrites earlier messages.
+ *
+ * Offset index ("messages.idx") holds one fixed size entry per message: saved timestamp, segment, offset and length
+ * of the record. Entries are kept ordered by saved timestamp as they are inserted, a message arriving out of order
+ * only rewrites the index entries behind it. Any message can be read with a single seek and reads in either
+ * direction need no sorting, so a page of history costs O(page).
+ */
+public class MessageLog {
+    private LogSender logSender = LogSender.getInstance();
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final long SEGMENT_MAX_BYTES = 256 * 1024;
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int INDEX_HEADER_BYTES = 8; // last segment (4) and its length (4) covered by the index
+    private static final int INDEX_ENTRY_BYTES = 20; // saved timestamp (8), segment (4), offset (4), length (4)
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Comparator<IndexEntry> TIMESTAMP_ORDER = new Comparator<IndexEntry>() {
+        @Override
+        public int compare(IndexEntry o1, IndexEntry o2) {
+            return Long.compare(o1.savedTimestamp, o2.savedTimestamp);
+        }
+    };
+
+    private File dir;
+    private String name;
+    private int lastSegment = -1; // unknown until segments are listed
+    private boolean indexChecked = false;
+
+    public MessageLog(File dir, String name) {
+        this.dir = dir;
+        this.name = name;
+    }
+
+    public synchronized boolean exists() {
+        return getLastSegment() >= 0;
+    }
+
+    /**
+     * Appends messages to the last segment with a single write and fsync, then inserts their index entries.
+     * Every record starts with a line break, so a line torn by a crash never swallows the next message.
+     * Returns locations of the appended records in the order of messages. When either write fails the index is
+     * rebuilt from the segments on next access.
+     */
+    public synchronized List<Location> append(List<JSONObject> messages) throws IOException {
+        List<Location> locations = new ArrayList<>();
+        if (messages.isEmpty()) return locations;
+        checkIndex();
+        int segment = getLastSegment();
+        if (segment < 0 || getSegmentFile(segment).length() >= SEGMENT_MAX_BYTES) segment++;
+        dir.mkdirs();
+        File segmentFile = getSegmentFile(segment);
+        long segmentLength = segmentFile.length();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        List<IndexEntry> entries = new ArrayList<>();
+        for (JSONObject messageJSONO : messages) {
+            byte[] record = messageJSONO.toString().getBytes(UTF_8);
+            buffer.write('\n');
+            IndexEntry entry = new IndexEntry(messageJSONO.optLong("savedTimestamp"), segment, (int) (segmentLength + buffer.size()), record.length);
+            entries.add(entry);
+            locations.add(entry.toLocation());
+            buffer.write(record);
+        }
+        try {
+            FileOutputStream fos = new FileOutputStream(segmentFile, true);
+            try {
+                fos.write(buffer.toByteArray());
+            } finally {
+                FileUtil.syncAndClose(fos);
+            }
+            lastSegment = segment;
+            insertIndexEntries(entries, segment, segmentLength + buffer.size());
+        } catch (IOException e) {
+            // segment may hold records index doesn't cover, next access checks the index and rebuilds it
+            lastSegment = -1;
+            indexChecked = false;
+            throw e;
+        }
+        return locations;
+    }
+
+    /**
+     * Number of messages in the log.
+     */
+    public synchronized int size() {
+        checkIndex();
+        long indexLength = getIndexFile().length();
+        return indexLength < INDEX_HEADER_BYTES ? 0 : (int) ((indexLength - INDEX_HEADER_BYTES) / INDEX_ENTRY_BYTES);
+    }
+
+    /**
+     * Reads messages at index positions [from, to), newest (highest position) first.
+     */
+    public synchronized JSONArray readRange(int from, int to) {
+        return readEntries(from, to, true);
+    }
+
+    /**
+     * Reads whole history, oldest message first.
+     */
+    public synchronized JSONArray readAll() {
+        return readEntries(0, size(), false);
+    }
+
+    /**
+     * Returns locations of messages at index positions [from, to), oldest first.
+     */
+    public synchronized List<Location> getLocations(int from, int to) {
+        List<Location> locations = new ArrayList<>();
+        checkIndex();
+        if (from >= to) return locations;
+        try {
+            RandomAccessFile indexFile = new RandomAccessFile(getIndexFile(), "r");
+            try {
+                for (IndexEntry entry : readIndexEntries(indexFile, from, to)) {
+                    locations.add(entry.toLocation());
+                }
+            } finally {
+                indexFile.close();
+            }
+        } catch (IOException e) {
+            logSender.reportError(e);
+        }
+        return locations;
+    }
+
+    /**
+     * Reads message stored at location, null when it is no longer there.
+     */
+    public synchronized JSONObject read(Location location) {
+        File file = getSegmentFile(location.segment);
+        if (!file.exists() || (location.offset & 0xFFFFFFFFL) + location.length > file.length()) return null;
+        try {
+            RandomAccessFile segmentFile = new RandomAccessFile(file, "r");
+            try {
+                byte[] record = new byte[location.length];
+                segmentFile.seek(location.offset & 0xFFFFFFFFL);
+                segmentFile.readFully(record);
+                return new JSONObject(new String(record, UTF_8));
+            } finally {
+                segmentFile.close();
+            }
+        } catch (IOException | JSONException e) {
+            logSender.reportError(e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads message stored at location only while the index still has an entry saved at savedTimestamp there,
+     * null otherwise. Locations kept elsewhere (search postings) go stale once compaction rewrites segments, a
+     * stale one could point into another message.
+     */
+    public synchronized JSONObject read(Location location, long savedTimestamp) {
+        int size = size();
+        int position = countSavedBefore(savedTimestamp);
+        if (position >= size) return null;
+        try {
+            RandomAccessFile indexFile = new RandomAccessFile(getIndexFile(), "r");
+            try {
+                for (; position < size; position++) {
+                    IndexEntry entry = readIndexEntries(indexFile, position, position + 1).get(0);
+                    if (entry.savedTimestamp != savedTimestamp) return null;
+                    if (entry.segment == location.segment && entry.offset == location.offset
+                            && entry.length == location.length) {
+                        return read(location);
+                    }
+                }
+            } finally {
+                indexFile.close();
+            }
+        } catch (IOException e) {
+            logSender.reportError(e);
+        }
+        return null;
+    }
+
+    /**
+     * Number of messages saved before savedTimestamp, they are the oldest ones in the index.
+     */
+    public synchronized int countSavedBefore(long savedTimestamp) {
+        int size = size();
+        if (size == 0) return 0;
+        try {
+            RandomAccessFile indexFile = new RandomAccessFile(getIndexFile(), "r");
+            try {
+                int low = 0;
+                int high = size;
+                while (low < high) {
+                    int middle = (low + high) >>> 1;
+                    if (readTimestamp(indexFile, middle) < savedTimestamp) {
+                        low = middle + 1;
+                    } else {
+                        high = middle;
+                    }
+                }
+                return low;
+            } finally {
+                indexFile.close();
+            }
+        } catch (IOException e) {
+            logSender.reportError(e);
+            return 0;
+        }
+    }
+
+    /**
+     * Saved timestamp of the message at index position, read from its index entry.
+     */
+    public synchronized long getSavedTimestamp(int position) throws IOException {
+        checkIndex();
+        RandomAccessFile indexFile = new RandomAccessFile(getIndexFile(), "r");
+        try {
+            return readTimestamp(indexFile, position);
+        } finally {
+            indexFile.close();
+        }
+    }
+
+    /**
+     * Removes count oldest messages and returns number of bytes reclaimed. Only segments holding removed messages
+     * are rewritten (or deleted when nothing in them is kept), other segments are left as they are. Index is
+     * deleted first and written again at the end, a crash in between leaves segments it is rebuilt from.
+     */
+    public synchronized long removeOldest(int count) throws IOException {
+        int size = size();
+        count = Math.min(count, size);
+        if (count <= 0) return 0;
+        long lengthBefore = getLength();
+        List<IndexEntry> entries;
+        RandomAccessFile indexFile = new RandomAccessFile(getIndexFile(), "r");
+        try {
+            entries = readIndexEntries(indexFile, 0, size);
+        } finally {
+            indexFile.close();
+        }
+        List<IndexEntry> keptEntries = entries.subList(count, size);
+        Map<Integer, List<IndexEntry>> keptBySegment = new HashMap<>();
+        for (IndexEntry entry : entries.subList(0, count)) {
+            keptBySegment.put(entry.segment, new ArrayList<IndexEntry>());
+        }
+        for (IndexEntry entry : keptEntries) {
+            List<IndexEntry> segmentEntries = keptBySegment.get(entry.segment);
+            if (segmentEntries != null) segmentEntries.add(entry);
+        }
+        getIndexFile().delete();
+        for (Map.Entry<Integer, List<IndexEntry>> segmentEntries : keptBySegment.entrySet()) {
+            File segmentFile = getSegmentFile(segmentEntries.getKey());
+            if (segmentEntries.getValue().isEmpty()) {
+                segmentFile.delete();
+                continue;
+            }
+            List<IndexEntry> fileOrder = new ArrayList<>(segmentEntries.getValue());
+            Collections.sort(fileOrder, new Comparator<IndexEntry>() {
+                @Override
+                public int compare(IndexEntry o1, IndexEntry o2) {
+                    return Long.compare(o1.offset & 0xFFFFFFFFL, o2.offset & 0xFFFFFFFFL);
+                }
+            });
+            byte[] data = readSegmentBytes(segmentEntries.getKey());
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            for (IndexEntry entry : fileOrder) {
+                buffer.write('\n');
+                int offset = entry.offset;
+                entry.offset = buffer.size(); // kept entries move with their records
+                buffer.write(data, offset, entry.length);
+            }
+            FileUtil.writeAtomically(segmentFile, buffer.toByteArray());
+        }
+        lastSegment = -1;
+        int segment = getLastSegment();
+        if (segment >= 0) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.writeInt(segment);
+            out.writeInt((int) getSegmentFile(segment).length());
+            for (IndexEntry entry : keptEntries) {
+                entry.writeTo(out);
+            }
+            FileUtil.writeAtomically(getIndexFile(), buffer.toByteArray());
+        }
+        return lengthBefore - getLength();
+    }
+
+    /**
+     * Writes messages as the first segment of a new log in one atomic step, used to migrate existing history.
+     */
+    public synchronized void create(JSONArray messagesJSONA) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < messagesJSONA.length(); i++) {
+            Object messageJSONO = messagesJSONA.opt(i);
+            if (messageJSONO != null) sb.append("\n").append(messageJSONO.toString());
+        }
+        FileUtil.writeAtomically(getSegmentFile(0), sb.toString().getBytes(UTF_8));
+        lastSegment = 0;
+        rebuildIndex();
+        indexChecked = true;
+    }
+
+    public synchronized void delete() {
+        for (int segment : getSegments()) {
+            getSegmentFile(segment).delete();
+        }
+        getIndexFile().delete();
+        lastSegment = -1;
+        indexChecked = false;
+    }
+
+    private JSONArray readEntries(int from, int to, boolean newestFirst) {
+        JSONArray messagesJSONA = new JSONArray();
+        checkIndex();
+        if (from >= to) return messagesJSONA;
+        Map<Integer, RandomAccessFile> segmentFiles = new HashMap<>();
+        try {
+            List<IndexEntry> entries;
+            RandomAccessFile indexFile = new RandomAccessFile(getIndexFile(), "r");
+            try {
+                entries = readIndexEntries(indexFile, from, to);
+            } finally {
+                indexFile.close();
+            }
+            if (newestFirst) Collections.reverse(entries);
+            for (IndexEntry entry : entries) {
+                RandomAccessFile segmentFile = segmentFiles.get(entry.segment);
+                if (segmentFile == null) {
+                    segmentFile = new RandomAccessFile(getSegmentFile(entry.segment), "r");
+                    segmentFiles.put(entry.segment, segmentFile);
+                }
+                byte[] record = new byte[entry.length];
+                segmentFile.seek(entry.offset & 0xFFFFFFFFL);
+                segmentFile.readFully(record);
+                try {
+                    messagesJSONA.put(new JSONObject(new String(record, UTF_8)));
+                } catch (JSONException e) {
+                    logSender.reportError(e);
+                }
+            }
+        } catch (IOException e) {
+            logSender.reportError(e);
+        } finally {
+            for (RandomAccessFile segmentFile : segmentFiles.values()) {
+                try {
+                    segmentFile.close();
+                } catch (IOException e) {
+                    logSender.reportError(e);
+                }
+            }
+        }
+        return messagesJSONA;
+    }
+
+    private long getLength() {
+        long length = getIndexFile().length();
+        for (int segment : getSegments()) {
+            length += getSegmentFile(segment).length();
+        }
+        return length;
+    }
+
+    private File getIndexFile() {
+        return new File(dir, name + INDEX_SUFFIX);
+    }
+
+    /**
+     * Inserts entries keeping the index ordered by saved timestamp, messages with equal timestamp stay in arrival
+     * order. New messages normally go to the end, older ones are merged with the entries behind their position.
+     * Entries are synced before the header is updated, so header only covers the log once its entries are durable.
+     */
+    private void insertIndexEntries(List<IndexEntry> entries, int segment, long segmentLength) throws IOException {
+        Collections.sort(entries, TIMESTAMP_ORDER);
+        RandomAccessFile indexFile = new RandomAccessFile(getIndexFile(), "rw");
+        try {
+            int size = indexFile.length() < INDEX_HEADER_BYTES ? 0 : (int) ((indexFile.length() - INDEX_HEADER_BYTES) / INDEX_ENTRY_BYTES);
+            int position = findInsertPosition(indexFile, size, entries.get(0).savedTimestamp);
+            List<IndexEntry> merged = entries;
+            if (position < size) merged = merge(readIndexEntries(indexFile, position, size), entries);
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buffer);
+            for (IndexEntry entry : merged) {
+                entry.writeTo(out);
+            }
+            indexFile.seek(INDEX_HEADER_BYTES + (long) position * INDEX_ENTRY_BYTES);
+            indexFile.write(buffer.toByteArray());
+            indexFile.getFD().sync();
+            indexFile.seek(0);
+            indexFile.writeInt(segment);
+            indexFile.writeInt((int) segmentLength);
+            indexFile.getFD().sync();
+        } finally {
+            indexFile.close();
+        }
+    }
+
+    /**
+     * Returns position of the first entry saved later than savedTimestamp, checking the end first as most messages
+     * arrive in order.
+     */
+    private int findInsertPosition(RandomAccessFile indexFile, int size, long savedTimestamp) throws IOException {
+        if (size == 0 || readTimestamp(indexFile, size - 1) <= savedTimestamp) return size;
+        int low = 0;
+        int high = size - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (readTimestamp(indexFile, middle) <= savedTimestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static List<IndexEntry> merge(List<IndexEntry> existingEntries, List<IndexEntry> newEntries) {
+        List<IndexEntry> merged = new ArrayList<>(existingEntries.size() + newEntries.size());
+        int i = 0;
+        int j = 0;
+        while (i < existingEntries.size() || j < newEntries.size()) {
+            if (j >= newEntries.size()
+                    || (i < existingEntries.size() && existingEntries.get(i).savedTimestamp <= newEntries.get(j).savedTimestamp)) {
+                merged.add(existingEntries.get(i++));
+            } else {
+                merged.add(newEntries.get(j++));
+            }
+        }
+        return merged;
+    }
+
+    private long readTimestamp(RandomAccessFile indexFile, int position) throws IOException {
+        indexFile.seek(INDEX_HEADER_BYTES + (long) position * INDEX_ENTRY_BYTES);
+        return indexFile.readLong();
+    }
+
+    private List<IndexEntry> readIndexEntries(RandomAccessFile indexFile, int from, int to) throws IOException {
+        byte[] data = new byte[(to - from) * INDEX_ENTRY_BYTES];
+        indexFile.seek(INDEX_HEADER_BYTES + (long) from * INDEX_ENTRY_BYTES);
+        indexFile.readFully(data);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        List<IndexEntry> entries = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            entries.add(new IndexEntry(buffer.getLong(), buffer.getInt(), buffer.getInt(), buffer.getInt()));
+        }
+        return entries;
+    }
+
+    /**
+     * Verifies once per instance that index header covers the log up to the end of the last segment, otherwise
+     * index is missing or behind the log (crash between segment append and index update) and is rebuilt.
+     */
+    private void checkIndex() {
+        if (indexChecked) return;
+        indexChecked = true;
+        int segment = getLastSegment();
+        if (segment < 0) {
+            getIndexFile().delete();
+            return;
+        }
+        File indexFile = getIndexFile();
+        FileUtil.restoreBackup(indexFile);
+        long indexLength = indexFile.length();
+        if (indexLength >= INDEX_HEADER_BYTES && (indexLength - INDEX_HEADER_BYTES) % INDEX_ENTRY_BYTES == 0) {
+            try {
+                RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+                try {
+                    if (file.readInt() == segment && file.readInt() == getSegmentFile(segment).length()) return;
+                } finally {
+                    file.close();
+                }
+            } catch (IOException e) {
+                logSender.reportError(e);
+            }
+        }
+        rebuildIndex();
+    }
+
+    /**
+     * Scans all segments and writes a new index ordered by saved timestamp, only needed for recovery and migration.
+     */
+    private void rebuildIndex() {
+        try {
+            List<IndexEntry> entries = new ArrayList<>();
+            int lastSegment = -1;
+            long lastSegmentLength = 0;
+            for (int segment : getSegments()) {
+                byte[] data = readSegmentBytes(segment);
+                lastSegment = segment;
+                lastSegmentLength = data.length;
+                int lineStart = 0;
+                for (int i = 0; i <= data.length; i++) {
+                    if (i < data.length && data[i] != '\n') continue;
+                    if (i > lineStart) {
+                        try {
+                            JSONObject messageJSONO = new JSONObject(new String(data, lineStart, i - lineStart, UTF_8));
+                            entries.add(new IndexEntry(messageJSONO.optLong("savedTimestamp"), segment, lineStart, i - lineStart));
+                        } catch (JSONException e) {
+                            logSender.reportError(e); // torn append
+                        }
+                    }
+                    lineStart = i + 1;
+                }
+            }
+            Collections.sort(entries, TIMESTAMP_ORDER);
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.writeInt(lastSegment);
+            out.writeInt((int) lastSegmentLength);
+            for (IndexEntry entry : entries) {
+                entry.writeTo(out);
+            }
+            FileUtil.writeAtomically(getIndexFile(), buffer.toByteArray());
+        } catch (IOException e) {
+            logSender.reportError(e);
+        }
+    }
+
+    private byte[] readSegmentBytes(int segment) throws IOException {
+        File file = getSegmentFile(segment);
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = fis.read(data, offset, data.length - offset);
+                if (read < 0) break;
+                offset += read;
+            }
+        } finally {
+            fis.close();
+        }
+        return data;
+    }
+
+    private File getSegmentFile(int segment) {
+        return new File(dir, name + "." + segment + SEGMENT_SUFFIX);
+    }
+
+    private int getLastSegment() {
+        if (lastSegment < 0) {
+            List<Integer> segments = getSegments();
+            lastSegment = segments.isEmpty() ? -1 : segments.get(segments.size() - 1);
+        }
+        return lastSegment;
+    }
+
+    private List<Integer> getSegments() {
+        List<Integer> segments = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null) return segments;
+        String prefix = name + ".";
+        for (File file : files) {
+            if (FileUtil.isBackupFile(file) && file.getName().startsWith(prefix)) {
+                // segment moved aside by an interrupted replace, put back unless the rewritten segment made it
+                file = FileUtil.getBackedUpFile(file);
+                FileUtil.restoreBackup(file);
+                if (!file.exists()) continue;
+            }
+            String fileName = file.getName();
+            if (!fileName.startsWith(prefix) || !fileName.endsWith(SEGMENT_SUFFIX)) continue;
+            try {
+                int segment = Integer.parseInt(fileName.substring(prefix.length(), fileName.length() - SEGMENT_SUFFIX.length()));
+                if (!segments.contains(segment)) segments.add(segment); // listed twice when restored from backup
+            } catch (NumberFormatException e) {
+                // other file sharing the prefix
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Position of one message record in the segment files, stays valid until the log is compacted or deleted.
+     */
+    public static class Location {
+        private final int segment;
+        private final int offset;
+        private final int length;
+
+        public Location(int segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int getSegment() {
+            return segment;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+
+    private static class IndexEntry {
+        private long savedTimestamp;
+        private int segment;
+        private int offset;
+        private int length;
+
+        private IndexEntry(long savedTimestamp, int segment, int offset, int length) {
+            this.savedTimestamp = savedTimestamp;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        private Location toLocation() {
+            return new Location(segment, offset, length);
+        }
+
+        private void writeTo(DataOutputStream out) throws IOException {
+            out.writeLong(savedTimestamp);
+            out.writeInt(segment);
+            out.writeInt(offset);
+            out.writeInt(length);
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package lt.imas.react_native_signal.signal;
+
+import org.json.JSONArray;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import lt.imas.react_native_signal.helpers.ProtoReader;
+import lt.imas.react_native_signal.helpers.ProtoWriter;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okio.ByteString;
+import timber.log.Timber;
+
+/**
+ * Long-lived WebSocket to the Signal server delivering messages as they arrive, instead of polling.
+ *
+ * Server sends every message as a "PUT /api/v1/message" request holding the envelope encrypted with the account's
+ * signaling key. Envelopes are collected for up to ACK_BATCH_DELAY_MS (or ACK_BATCH_SIZE envelopes), decrypted and
+ * stored together through SignalClient, and only then acknowledged, so the server keeps anything not yet stored.
+ * Keepalive requests are sent every HEARTBEAT_INTERVAL_MS and a missed answer drops the connection, which is opened
+ * again with exponential backoff while the pipe is open.
+ *
+ * All state is confined to the pipe's single thread, socket callbacks of replaced sockets are ignored.
+ */
+public class MessagePipe {
+    private LogSender logSender = LogSender.getInstance();
+
+    public static final String STATE_CONNECTING = "connecting";
+    public static final String STATE_OPEN = "open";
+    public static final String STATE_CLOSED = "closed";
+
+    private final String WEBSOCKET_PATH = "/v1/websocket/";
+    private final String KEEPALIVE_PATH = "/v1/keepalive";
+    private final String MESSAGE_PATH = "/api/v1/message";
+    private static final long HEARTBEAT_INTERVAL_MS = 55 * 1000;
+    private static final long MIN_RECONNECT_DELAY_MS = 1000;
+    private final long MAX_RECONNECT_DELAY_MS = 60 * 1000;
+    private final long ACK_BATCH_DELAY_MS = 200;
+    private final int ACK_BATCH_SIZE = 50;
+    private final int NORMAL_CLOSURE = 1000;
+
+    // WebSocketMessage, WebSocketRequestMessage and WebSocketResponseMessage fields
+    private final int MESSAGE_TYPE_REQUEST = 1;
+    private final int MESSAGE_TYPE_RESPONSE = 2;
+    private final int FIELD_MESSAGE_TYPE = 1;
+    private final int FIELD_MESSAGE_REQUEST = 2;
+    private final int FIELD_MESSAGE_RESPONSE = 3;
+    private final int FIELD_REQUEST_VERB = 1;
+    private final int FIELD_REQUEST_PATH = 2;
+    private final int FIELD_REQUEST_BODY = 3;
+    private final int FIELD_REQUEST_ID = 4;
+    private final int FIELD_RESPONSE_ID = 1;
+    private final int FIELD_RESPONSE_STATUS = 2;
+    private final int FIELD_RESPONSE_MESSAGE = 3;
+
+    public interface Listener {
+        void onMessages(String tag, JSONArray messagesJSONA);
+
+        void onStateChanged(String state);
+    }
+
+    private final SignalServer signalServer;
+    private final SignalClient signalClient;
+    private final ProtocolStore protocolStore;
+    private final String tag;
+    private final Listener listener;
+    private final long heartbeatIntervalMs;
+    private final long minReconnectDelayMs;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Random random = new Random();
+
+    private boolean running = false;
+    private WebSocket webSocket;
+    private int reconnectAttempts = 0;
+    private long nextRequestId = 1;
+    private Long pendingKeepAliveId;
+    private final List<PendingEnvelope> pendingEnvelopes = new ArrayList<>();
+    private ScheduledFuture<?> heartbeatTask;
+    private ScheduledFuture<?> batchTask;
+    private ScheduledFuture<?> reconnectTask;
+
+    /**
+     * Messages received through the pipe are stored under tag, envelopes do not carry the message tag.
+     */
+    public MessagePipe(SignalServer signalServer, SignalClient signalClient, ProtocolStore protocolStore, String tag, Listener listener) {
+        this(signalServer, signalClient, protocolStore, tag, listener, HEARTBEAT_INTERVAL_MS, MIN_RECONNECT_DELAY_MS);
+    }
+
+    /**
+     * Shorter heartbeat interval and reconnect delay let tests observe them.
+     */
+    MessagePipe(SignalServer signalServer, SignalClient signalClient, ProtocolStore protocolStore, String tag, Listener listener,
+                long heartbeatIntervalMs, long minReconnectDelayMs) {
+        this.signalServer = signalServer;
+        this.signalClient = signalClient;
+        this.protocolStore = protocolStore;
+        this.tag = tag;
+        this.listener = listener;
+        this.heartbeatIntervalMs = heartbeatIntervalMs;
+        this.minReconnectDelayMs = minReconnectDelayMs;
+    }
+
+    public void open() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (running) return;
+                running = true;
+                reconnectAttempts = 0;
+                connect();
+            }
+        });
+    }
+
+    /**
+     * Stores and acknowledges envelopes already received, then closes the socket and stops the pipe thread.
+     */
+    public void close() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                running = false;
+                cancel(reconnectTask);
+                processEnvelopes();
+                disconnect();
+                if (webSocket != null) webSocket.close(NORMAL_CLOSURE, "Closed by client");
+                webSocket = null;
+                listener.onStateChanged(STATE_CLOSED);
+                executor.shutdown();
+            }
+        });
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    private void connect() {
+        listener.onStateChanged(STATE_CONNECTING);
+        webSocket = signalServer.openWebSocket(WEBSOCKET_PATH, new WebSocketListener() {
+            @Override
+            public void onOpen(final WebSocket socket, Response response) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (socket != webSocket) return;
+                        reconnectAttempts = 0;
+                        heartbeatTask = executor.scheduleWithFixedDelay(new Runnable() {
+                            @Override
+                            public void run() {
+                                sendKeepAlive(socket);
+                            }
+                        }, heartbeatIntervalMs, heartbeatIntervalMs, TimeUnit.MILLISECONDS);
+                        listener.onStateChanged(STATE_OPEN);
+                    }
+                });
+            }
+
+            @Override
+            public void onMessage(final WebSocket socket, final ByteString bytes) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (socket != webSocket) return;
+                        try {
+                            handleMessage(socket, bytes.toByteArray());
+                        } catch (IOException e) {
+                            logSender.reportError(e);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onClosing(WebSocket socket, int code, String reason) {
+                socket.close(NORMAL_CLOSURE, null);
+            }
+
+            @Override
+            public void onClosed(WebSocket socket, int code, String reason) {
+                onDisconnected(socket);
+            }
+
+            @Override
+            public void onFailure(WebSocket socket, Throwable t, Response response) {
+                Timber.d("Message pipe failed: %s", t.getMessage());
+                onDisconnected(socket);
+            }
+        });
+    }
+
+    private void onDisconnected(final WebSocket socket) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (socket != webSocket) return;
+                disconnect();
+                webSocket = null;
+                listener.onStateChanged(STATE_CLOSED);
+                if (running) scheduleReconnect();
+            }
+        });
+    }
+
+    /**
+     * Runs socket callback on the pipe thread, callbacks arriving after the pipe is closed are dropped.
+     */
+    private void post(Runnable runnable) {
+        try {
+            executor.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            Timber.d("Message pipe closed, dropping socket callback");
+        }
+    }
+
+    /**
+     * Stops heartbeat and drops envelopes not yet processed, their acknowledgements can not be sent on another
+     * socket and the server delivers them again.
+     */
+    private void disconnect() {
+        cancel(heartbeatTask);
+        cancel(batchTask);
+        heartbeatTask = null;
+        batchTask = null;
+        pendingKeepAliveId = null;
+        pendingEnvelopes.clear();
+    }
+
+    private void scheduleReconnect() {
+        long delay = getReconnectDelay(reconnectAttempts);
+        reconnectAttempts++;
+        reconnectTask = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (running && webSocket == null) connect();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Delay before reconnect after attempts failed reconnects: doubles from minReconnectDelayMs up to
+     * MAX_RECONNECT_DELAY_MS, randomly shortened by up to half.
+     */
+    long getReconnectDelay(int attempts) {
+        long delay = Math.min(MAX_RECONNECT_DELAY_MS, minReconnectDelayMs << Math.min(attempts, 16));
+        return delay / 2 + (long) (random.nextDouble() * delay / 2); // jitter spreads reconnects of many clients
+    }
+
+    private void sendKeepAlive(WebSocket socket) {
+        if (socket != webSocket) return;
+        if (pendingKeepAliveId != null) {
+            // previous keepalive not answered within interval, connection is dead
+            socket.cancel();
+            return;
+        }
+        pendingKeepAliveId = nextRequestId++;
+        byte[] requestBytes = new ProtoWriter()
+                .writeString(FIELD_REQUEST_VERB, "GET")
+                .writeString(FIELD_REQUEST_PATH, KEEPALIVE_PATH)
+                .writeVarint(FIELD_REQUEST_ID, pendingKeepAliveId)
+                .toByteArray();
+        socket.send(ByteString.of(new ProtoWriter()
+                .writeVarint(FIELD_MESSAGE_TYPE, MESSAGE_TYPE_REQUEST)
+                .writeBytes(FIELD_MESSAGE_REQUEST, requestBytes)
+                .toByteArray()));
+    }
+
+    private void handleMessage(WebSocket socket, byte[] messageBytes) throws IOException {
+        int type = 0;
+        byte[] requestBytes = null;
+        byte[] responseBytes = null;
+        ProtoReader reader = new ProtoReader(messageBytes);
+        while (reader.hasNext()) {
+            int fieldTag = reader.readTag();
+            int fieldNumber = ProtoReader.getFieldNumber(fieldTag);
+            if (fieldNumber == FIELD_MESSAGE_TYPE) {
+                type = (int) reader.readVarint();
+            } else if (fieldNumber == FIELD_MESSAGE_REQUEST) {
+                requestBytes = reader.readBytes();
+            } else if (fieldNumber == FIELD_MESSAGE_RESPONSE) {
+                responseBytes = reader.readBytes();
+            } else {
+                reader.skip(ProtoReader.getWireType(fieldTag));
+            }
+        }
+        if (type == MESSAGE_TYPE_REQUEST && requestBytes != null) {
+            handleRequest(socket, requestBytes);
+        } else if (type == MESSAGE_TYPE_RESPONSE && responseBytes != null) {
+            handleResponse(responseBytes);
+        }
+    }
+
+    private void handleRequest(WebSocket socket, byte[] requestBytes) throws IOException {
+        String verb = null;
+        String path = null;
+        byte[] body = null;
+        long id = 0;
+        ProtoReader reader = new ProtoReader(requestBytes);
+        while (reader.hasNext()) {
+            int fieldTag = reader.readTag();
+            switch (ProtoReader.getFieldNumber(fieldTag)) {
+                case FIELD_REQUEST_VERB:
+                    verb = reader.readString();
+                    break;
+                case FIELD_REQUEST_PATH:
+                    path = reader.readString();
+                    break;
+                case FIELD_REQUEST_BODY:
+                    body = reader.readBytes();
+                    break;
+                case FIELD_REQUEST_ID:
+                    id = reader.readVarint();
+                    break;
+                default:
+                    reader.skip(ProtoReader.getWireType(fieldTag));
+            }
+        }
+        if (!"PUT".equals(verb) || !MESSAGE_PATH.equals(path) || body == null) {
+            sendResponse(socket, id, 200, "OK"); // queue notifications and anything else
+            return;
+        }
+        SignalEnvelope envelope;
+        try {
+            envelope = SignalEnvelope.parse(new LegacyMessage(body, protocolStore.getSignalingKey()).getBytes());
+        } catch (IOException e) {
+            // left unacknowledged, server keeps it for getContactMessages
+            logSender.reportError(e);
+            return;
+        }
+        pendingEnvelopes.add(new PendingEnvelope(id, envelope));
+        if (pendingEnvelopes.size() >= ACK_BATCH_SIZE) {
+            processEnvelopes();
+        } else if (batchTask == null) {
+            batchTask = executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    processEnvelopes();
+                }
+            }, ACK_BATCH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void handleResponse(byte[] responseBytes) throws IOException {
+        ProtoReader reader = new ProtoReader(responseBytes);
+        while (reader.hasNext()) {
+            int fieldTag = reader.readTag();
+            if (ProtoReader.getFieldNumber(fieldTag) == FIELD_RESPONSE_ID) {
+                long id = reader.readVarint();
+                if (pendingKeepAliveId != null && pendingKeepAliveId == id) pendingKeepAliveId = null;
+            } else {
+                reader.skip(ProtoReader.getWireType(fieldTag));
+            }
+        }
+    }
+
+    /**
+     * Decrypts and stores pending envelopes as one batch, then acknowledges the handled ones.
+     */
+    private void processEnvelopes() {
+        cancel(batchTask);
+        batchTask = null;
+        if (pendingEnvelopes.isEmpty()) return;
+        List<PendingEnvelope> batch = new ArrayList<>(pendingEnvelopes);
+        pendingEnvelopes.clear();
+        List<SignalEnvelope> envelopes = new ArrayList<>();
+        for (PendingEnvelope pendingEnvelope : batch) {
+            envelopes.add(pendingEnvelope.envelope);
+        }
+        List<SignalEnvelope> handledEnvelopes = new ArrayList<>();
+        JSONArray messagesJSONA = signalClient.receiveEnvelopes(envelopes, tag, handledEnvelopes);
+        WebSocket socket = webSocket;
+        if (socket != null) {
+            for (PendingEnvelope pendingEnvelope : batch) {
+                if (handledEnvelopes.contains(pendingEnvelope.envelope)) sendResponse(socket, pendingEnvelope.requestId, 200, "OK");
+            }
+        }
+        if (messagesJSONA.length() > 0) listener.onMessages(tag, messagesJSONA);
+    }
+
+    private void sendResponse(WebSocket socket, long requestId, int status, String message) {
+        byte[] responseBytes = new ProtoWriter()
+                .writeVarint(FIELD_RESPONSE_ID, requestId)
+                .writeVarint(FIELD_RESPONSE_STATUS, status)
+                .writeString(FIELD_RESPONSE_MESSAGE, message)
+                .toByteArray();
+        socket.send(ByteString.of(new ProtoWriter()
+                .writeVarint(FIELD_MESSAGE_TYPE, MESSAGE_TYPE_RESPONSE)
+                .writeBytes(FIELD_MESSAGE_RESPONSE, responseBytes)
+                .toByteArray()));
+    }
+
+    private void cancel(ScheduledFuture<?> task) {
+        if (task != null) task.cancel(false);
+    }
+
+    private static class PendingEnvelope {
+        private final long requestId;
+        private final SignalEnvelope envelope;
+
+        private PendingEnvelope(long requestId, SignalEnvelope envelope) {
+            this.requestId = requestId;
+            this.envelope = envelope;
+        }
+    }
+}
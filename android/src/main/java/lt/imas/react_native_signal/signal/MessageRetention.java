@@ -0,0 +1,37 @@
+package lt.imas.react_native_signal.signal;
+
+/**
+ * Retention policy of one message tag: messages saved more than maxAgeSeconds ago and messages over maxCount
+ * per conversation are removed by compaction. Zero disables a limit.
+ */
+public class MessageRetention {
+    private final long maxAgeSeconds;
+    private final int maxCount;
+
+    public MessageRetention(long maxAgeSeconds, int maxCount) {
+        this.maxAgeSeconds = Math.max(maxAgeSeconds, 0);
+        this.maxCount = Math.max(maxCount, 0);
+    }
+
+    public long getMaxAgeSeconds() {
+        return maxAgeSeconds;
+    }
+
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    public boolean isUnlimited() {
+        return maxAgeSeconds == 0 && maxCount == 0;
+    }
+
+    /**
+     * Number of oldest messages of a conversation to remove, given its size and count of messages saved before
+     * the age limit (savedTimestamp is in seconds).
+     */
+    public int getExcess(int size, int savedBeforeMaxAge) {
+        int excess = maxAgeSeconds > 0 ? savedBeforeMaxAge : 0;
+        if (maxCount > 0) excess = Math.max(excess, size - maxCount);
+        return excess;
+    }
+}
@@ -0,0 +1,401 @@
+package lt.imas.react_native_signal.signal;
+
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import lt.imas.react_native_signal.helpers.FileUtil;
+
+/**
+ * Inverted index of message content, maintained incrementally as messages are stored. Every message log name
+ * ("messages", "messages_txnote", ...) has its own directory of posting files, terms are spread over BUCKETS files
+ * by hash, so a query term reads only its own bucket and memory stays bounded by the number of candidates.
+ *
+ * Posting record: 4 byte length, then term, username (both modified UTF-8), segment, offset and length of the
+ * message record in its log, saved timestamp and term frequency. Records are appended, removing a conversation
+ * rewrites the buckets without its postings.
+ */
+public class MessageSearchIndex {
+    private LogSender logSender = LogSender.getInstance();
+
+    private static final int BUCKETS = 32;
+    private static final String BUCKET_SUFFIX = ".post";
+    private static final String BUILT_FILENAME = "built";
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int MAX_TERM_LENGTH = 32;
+    private static final int MAX_CANDIDATES = 5000; // per query term, keeps the newest postings
+    private static final int SNIPPET_CONTEXT = 40;
+
+    private static final Comparator<Hit> RANK_ORDER = new Comparator<Hit>() {
+        @Override
+        public int compare(Hit o1, Hit o2) {
+            if (o1.matchedTerms != o2.matchedTerms) return o1.matchedTerms < o2.matchedTerms ? -1 : 1;
+            if (o1.score != o2.score) return Double.compare(o1.score, o2.score);
+            return Long.compare(o1.savedTimestamp, o2.savedTimestamp);
+        }
+    };
+
+    private File dir;
+    // buckets checked for a torn last record since start
+    private final Set<File> checkedBuckets = new HashSet<>();
+
+    public MessageSearchIndex(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Returns false until markBuilt() is called, index then has to be built from existing messages.
+     */
+    public synchronized boolean exists() {
+        return new File(dir, BUILT_FILENAME).exists();
+    }
+
+    public synchronized void markBuilt() {
+        dir.mkdirs();
+        try {
+            new File(dir, BUILT_FILENAME).createNewFile();
+        } catch (IOException e) {
+            logSender.reportError(e);
+        }
+    }
+
+    /**
+     * Adds postings of messages stored at given locations of the conversation log, one write per bucket.
+     */
+    public synchronized void add(String username, String logName, List<JSONObject> messages, List<MessageLog.Location> locations) {
+        Map<Integer, ByteArrayOutputStream> bucketRecords = new HashMap<>();
+        try {
+            for (int i = 0; i < messages.size() && i < locations.size(); i++) {
+                JSONObject messageJSONO = messages.get(i);
+                if (MessageType.WARNING.toString().equals(messageJSONO.optString("type"))) continue;
+                Map<String, Integer> termFrequencies = new LinkedHashMap<>();
+                for (String term : tokenize(messageJSONO.optString("content"))) {
+                    Integer frequency = termFrequencies.get(term);
+                    termFrequencies.put(term, frequency == null ? 1 : frequency + 1);
+                }
+                MessageLog.Location location = locations.get(i);
+                for (Map.Entry<String, Integer> termFrequency : termFrequencies.entrySet()) {
+                    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+                    DataOutputStream out = new DataOutputStream(payload);
+                    out.writeUTF(termFrequency.getKey());
+                    out.writeUTF(username);
+                    out.writeInt(location.getSegment());
+                    out.writeInt(location.getOffset());
+                    out.writeInt(location.getLength());
+                    out.writeLong(messageJSONO.optLong("savedTimestamp"));
+                    out.writeShort(Math.min(termFrequency.getValue(), Short.MAX_VALUE));
+                    int bucket = getBucket(termFrequency.getKey());
+                    ByteArrayOutputStream records = bucketRecords.get(bucket);
+                    if (records == null) {
+                        records = new ByteArrayOutputStream();
+                        bucketRecords.put(bucket, records);
+                    }
+                    new DataOutputStream(records).writeInt(payload.size());
+                    payload.writeTo(records);
+                }
+            }
+            for (Map.Entry<Integer, ByteArrayOutputStream> records : bucketRecords.entrySet()) {
+                File bucketFile = getBucketFile(logName, records.getKey());
+                checkBucket(bucketFile);
+                bucketFile.getParentFile().mkdirs();
+                // postings can be rebuilt from the logs, they are not synced on every store
+                FileOutputStream fos = new FileOutputStream(bucketFile, true);
+                try {
+                    records.getValue().writeTo(fos);
+                } finally {
+                    fos.close();
+                }
+            }
+        } catch (IOException e) {
+            logSender.reportError(e);
+        }
+    }
+
+    public synchronized void removeConversation(String username, String logName) {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            removePostings(getBucketFile(logName, bucket), username);
+        }
+    }
+
+    public synchronized void removeUsername(String username) {
+        File[] logDirs = dir.listFiles();
+        if (logDirs == null) return;
+        for (File logDir : logDirs) {
+            if (!logDir.isDirectory()) continue;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                removePostings(getBucketFile(logDir.getName(), bucket), username);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        checkedBuckets.clear();
+        deleteRecursive(dir);
+    }
+
+    /**
+     * Returns best hits of the query terms in logName, best first. Hits matching more of the terms rank first,
+     * then by tf-idf score over totalMessages and by saved timestamp.
+     */
+    public synchronized List<Hit> search(String logName, List<String> terms, long totalMessages, int limit) {
+        Map<String, Hit> candidates = new HashMap<>();
+        for (String term : new LinkedHashSet<>(terms)) {
+            Map<String, Posting> postings = new LinkedHashMap<String, Posting>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Posting> eldest) {
+                    return size() > MAX_CANDIDATES;
+                }
+            };
+            int documentFrequency = readPostings(getBucketFile(logName, getBucket(term)), term, postings);
+            if (documentFrequency == 0) continue;
+            double idf = Math.log(1 + (double) Math.max(totalMessages, documentFrequency) / documentFrequency);
+            for (Map.Entry<String, Posting> entry : postings.entrySet()) {
+                Posting posting = entry.getValue();
+                Hit hit = candidates.get(entry.getKey());
+                if (hit == null) {
+                    hit = new Hit(posting.username, posting.location, posting.savedTimestamp);
+                    candidates.put(entry.getKey(), hit);
+                }
+                hit.matchedTerms++;
+                hit.score += idf * posting.termFrequency / (posting.termFrequency + 1.2);
+            }
+        }
+        PriorityQueue<Hit> top = new PriorityQueue<>(Math.max(limit, 1), RANK_ORDER);
+        for (Hit hit : candidates.values()) {
+            top.add(hit);
+            if (top.size() > limit) top.poll();
+        }
+        List<Hit> hits = new ArrayList<>(top);
+        Collections.sort(hits, Collections.reverseOrder(RANK_ORDER));
+        return hits;
+    }
+
+    /**
+     * Splits text into lower case terms of letters and digits.
+     */
+    public static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        if (text == null) return terms;
+        String lowerText = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lowerText.length(); i++) {
+            boolean termChar = i < lowerText.length() && Character.isLetterOrDigit(lowerText.charAt(i));
+            if (termChar && start < 0) {
+                start = i;
+            } else if (!termChar && start >= 0) {
+                if (i - start >= MIN_TERM_LENGTH) terms.add(lowerText.substring(start, Math.min(i, start + MAX_TERM_LENGTH)));
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Returns part of content around the first occurrence of any of the terms.
+     */
+    public static String getSnippet(String content, List<String> terms) {
+        String lowerContent = content.toLowerCase(Locale.ROOT);
+        int match = -1;
+        int matchLength = 0;
+        for (String term : terms) {
+            int index = lowerContent.indexOf(term);
+            if (index >= 0 && (match < 0 || index < match)) {
+                match = index;
+                matchLength = term.length();
+            }
+        }
+        if (match < 0 || match + matchLength > content.length()) {
+            match = 0;
+            matchLength = 0;
+        }
+        int start = Math.max(0, match - SNIPPET_CONTEXT);
+        int end = Math.min(content.length(), match + matchLength + SNIPPET_CONTEXT);
+        if (start > 0 && Character.isLowSurrogate(content.charAt(start))) start++;
+        if (end < content.length() && Character.isLowSurrogate(content.charAt(end))) end--;
+        return (start > 0 ? "…" : "") + content.substring(start, end) + (end < content.length() ? "…" : "");
+    }
+
+    private int readPostings(File bucketFile, String term, Map<String, Posting> postings) {
+        if (!bucketFile.exists()) return 0;
+        int documentFrequency = 0;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(bucketFile)));
+            try {
+                while (true) {
+                    byte[] payload = readRecord(in);
+                    if (payload == null) break;
+                    DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                    if (!term.equals(record.readUTF())) continue;
+                    Posting posting = new Posting(
+                            record.readUTF(),
+                            new MessageLog.Location(record.readInt(), record.readInt(), record.readInt()),
+                            record.readLong(),
+                            record.readShort());
+                    String key = posting.username + "/" + posting.location.getSegment() + ":" + posting.location.getOffset();
+                    if (postings.put(key, posting) == null) documentFrequency++;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logSender.reportError(e);
+        }
+        return documentFrequency;
+    }
+
+    private void removePostings(File bucketFile, String username) {
+        if (!bucketFile.exists()) return;
+        try {
+            ByteArrayOutputStream kept = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(kept);
+            boolean removed = false;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(bucketFile)));
+            try {
+                while (true) {
+                    byte[] payload = readRecord(in);
+                    if (payload == null) break;
+                    DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                    record.readUTF();
+                    if (username.equals(record.readUTF())) {
+                        removed = true;
+                        continue;
+                    }
+                    out.writeInt(payload.length);
+                    out.write(payload);
+                }
+            } finally {
+                in.close();
+            }
+            if (removed) FileUtil.writeAtomically(bucketFile, kept.toByteArray());
+        } catch (IOException e) {
+            logSender.reportError(e);
+        }
+    }
+
+    /**
+     * Reads next record payload, null at the end of the bucket or at a torn last record.
+     */
+    private byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            if (length <= 0 || length > 4 * 1024) return null;
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            return payload;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Cuts a record torn by a crash off the end of the bucket once, so later appends stay readable.
+     */
+    private void checkBucket(File bucketFile) throws IOException {
+        if (!checkedBuckets.add(bucketFile) || !bucketFile.exists()) return;
+        long validLength = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(bucketFile)));
+        try {
+            byte[] payload;
+            while ((payload = readRecord(in)) != null) {
+                validLength += 4 + payload.length;
+            }
+        } finally {
+            in.close();
+        }
+        if (validLength == bucketFile.length()) return;
+        RandomAccessFile file = new RandomAccessFile(bucketFile, "rw");
+        try {
+            file.setLength(validLength);
+        } finally {
+            file.close();
+        }
+    }
+
+    private int getBucket(String term) {
+        int hash = term.hashCode();
+        hash ^= (hash >>> 16);
+        return hash & (BUCKETS - 1);
+    }
+
+    private File getBucketFile(String logName, int bucket) {
+        File bucketFile = new File(new File(dir, logName), bucket + BUCKET_SUFFIX);
+        FileUtil.restoreBackup(bucketFile);
+        return bucketFile;
+    }
+
+    private void deleteRecursive(File fileOrDirectory) {
+        File[] children = fileOrDirectory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursive(child);
+            }
+        }
+        fileOrDirectory.delete();
+    }
+
+    private static class Posting {
+        private final String username;
+        private final MessageLog.Location location;
+        private final long savedTimestamp;
+        private final int termFrequency;
+
+        private Posting(String username, MessageLog.Location location, long savedTimestamp, int termFrequency) {
+            this.username = username;
+            this.location = location;
+            this.savedTimestamp = savedTimestamp;
+            this.termFrequency = termFrequency;
+        }
+    }
+
+    public static class Hit {
+        private final String username;
+        private final MessageLog.Location location;
+        private final long savedTimestamp;
+        private double score;
+        private int matchedTerms;
+
+        private Hit(String username, MessageLog.Location location, long savedTimestamp) {
+            this.username = username;
+            this.location = location;
+            this.savedTimestamp = savedTimestamp;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public MessageLog.Location getLocation() {
+            return location;
+        }
+
+        public long getSavedTimestamp() {
+            return savedTimestamp;
+        }
+
+        public double getScore() {
+            return score;
+        }
+    }
+}
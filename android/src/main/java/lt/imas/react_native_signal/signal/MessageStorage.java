@@ -1,5 +1,7 @@
 package lt.imas.react_native_signal.signal;
 
+import com.facebook.react.bridge.Promise;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -7,16 +9,59 @@ import org.json.JSONObject;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
 
 public class MessageStorage {
     private LogSender logSender = LogSender.getInstance();
     private String absolutePath;
 
+    // legacy journal of messages.json stores, folded into the message log on first use
+    private String JOURNAL_SUFFIX = ".journal";
+
+    private String[] MESSAGE_TAGS = {"chat", "tx-note", "other"};
+    private String SUMMARY_FILENAME = "summary.json";
+    private String RECEIVED_DIRNAME = "received";
+    private String SEARCH_DIRNAME = "search";
+    private int MAX_SEARCH_RESULTS = 100;
+    private int SEARCH_BUILD_BATCH = 256;
+
+    // tag -> retention policy enforced by background compaction, tags without one keep whole history
+    private volatile Map<String, MessageRetention> retention = Collections.emptyMap();
+    private long COMPACTION_DELAY_MS = 60 * 1000;
+    private long COMPACTION_INTERVAL_MS = 6 * 60 * 60 * 1000;
+    private ScheduledExecutorService compactionExecutor;
+    private ScheduledFuture<?> compactionTask;
+
+    // tags getExistingMessages serves from the summary index, others get whole history of every conversation
+    private volatile Set<String> indexedExistingTags = Collections.singleton("chat");
+
+    // conversation path ("username/messages") -> its append-only message log
+    private final Map<String, MessageLog> logs = new ConcurrentHashMap<>();
+    private MessageSummaryIndex summaryIndex;
+    private MessageDedupIndex dedupIndex;
+    private MessageSearchIndex searchIndex;
+
     public MessageStorage(String  absolutePath) {
         this.absolutePath = absolutePath;
+        this.summaryIndex = new MessageSummaryIndex(new File(absolutePath + "/message_index", SUMMARY_FILENAME));
+        this.dedupIndex = new MessageDedupIndex(new File(absolutePath + "/message_index", RECEIVED_DIRNAME));
+        this.searchIndex = new MessageSearchIndex(new File(absolutePath + "/message_index", SEARCH_DIRNAME));
     }
 
     private String getMessageStoreFilename(String tag){
@@ -27,6 +72,11 @@ public class MessageStorage {
         }
     }
 
+    private String getMessageLogName(String tag){
+        String fileName = getMessageStoreFilename(tag);
+        return fileName.substring(0, fileName.length() - ".json".length());
+    }
+
     private String readFromStorage(String fileName) {
         String dirPath = absolutePath + "/messages";
         File file = new File(dirPath, fileName);
@@ -40,6 +90,7 @@ public class MessageStorage {
                 while ((line = bufferedReader.readLine()) != null) {
                     sb.append(line);
                 }
+                bufferedReader.close();
                 return sb.toString();
             } catch (IOException e) {
                 logSender.reportError(e);
@@ -50,24 +101,143 @@ public class MessageStorage {
         }
     }
 
-    private void writeToStorageFile(String fileName, String data) {
+    private File getJournalFile(String fileName) {
+        return new File(absolutePath + "/messages", fileName + JOURNAL_SUFFIX);
+    }
+
+    private void replayJournal(String fileName, JSONArray messagesJSONA) {
+        File journalFile = getJournalFile(fileName);
+        if (!journalFile.exists()) return;
         try {
-            String dirPath = absolutePath + "/messages";
-            File dir = new File(dirPath);
-            dir.mkdirs();
-            File file = new File(dirPath, fileName);
-            if (!file.exists()) {
-                file.createNewFile();
+            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile)));
+            String line;
+            while ((line = bufferedReader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                try {
+                    messagesJSONA.put(new JSONObject(line));
+                } catch (JSONException e) {
+                    logSender.reportError(e); // torn append
+                }
             }
-            FileOutputStream fos = new FileOutputStream(file);
-            if (data != null) fos.write(data.getBytes());
-            fos.flush();
-            fos.close();
+            bufferedReader.close();
         } catch (IOException e) {
             logSender.reportError(e);
         }
     }
 
+    private JSONArray readLegacyMessages(String fileName) {
+        JSONArray messagesJSONA = new JSONArray();
+        String data = readFromStorage(fileName);
+        if (data == null || data.isEmpty()) data = "[]";
+        try {
+            messagesJSONA = new JSONArray(data);
+        } catch (JSONException e) {
+            logSender.reportError(e);
+        }
+        replayJournal(fileName, messagesJSONA);
+        return messagesJSONA;
+    }
+
+    /**
+     * Returns message log of the conversation. History kept in a messages.json store (and its journal) is written
+     * into the first log segment in one atomic step and the old files are removed.
+     */
+    private MessageLog getLog(String username, String tag) {
+        String userPath = username + "/" + getMessageStoreFilename(tag);
+        MessageLog messageLog = logs.get(userPath);
+        if (messageLog != null) return messageLog;
+        synchronized (logs) {
+            messageLog = logs.get(userPath);
+            if (messageLog == null) {
+                messageLog = new MessageLog(new File(absolutePath + "/messages/" + username), getMessageLogName(tag));
+                migrateLegacyMessages(userPath, messageLog);
+                logs.put(userPath, messageLog);
+            }
+        }
+        return messageLog;
+    }
+
+    private void migrateLegacyMessages(String userPath, MessageLog messageLog) {
+        File legacyFile = new File(absolutePath + "/messages", userPath);
+        File journalFile = getJournalFile(userPath);
+        if (!legacyFile.exists() && !journalFile.exists()) return;
+        try {
+            // log is created atomically, if it exists an earlier migration only missed removing the old files
+            if (!messageLog.exists()) messageLog.create(readLegacyMessages(userPath));
+            legacyFile.delete();
+            journalFile.delete();
+        } catch (IOException e) {
+            logSender.reportError(e);
+        }
+    }
+
+    /**
+     * Returns conversation summary index, building it once from existing message logs when it is missing.
+     */
+    private MessageSummaryIndex getSummaryIndex() {
+        if (summaryIndex.exists()) return summaryIndex;
+        synchronized (logs) {
+            if (!summaryIndex.exists()) {
+                File[] userDirs = new File(absolutePath + "/messages").listFiles();
+                if (userDirs != null) {
+                    for (File userDir : userDirs) {
+                        if (!userDir.isDirectory()) continue;
+                        String username = userDir.getName();
+                        summaryIndex.putUsername(username);
+                        for (String tag : MESSAGE_TAGS) {
+                            MessageLog messageLog = getLog(username, tag);
+                            int size = messageLog.size();
+                            if (size == 0) continue;
+                            JSONObject lastMessageJSONO = messageLog.readRange(size - 1, size).optJSONObject(0);
+                            summaryIndex.put(username, getMessageLogName(tag), lastMessageJSONO, size);
+                        }
+                    }
+                }
+                summaryIndex.markBuilt();
+            }
+        }
+        return summaryIndex;
+    }
+
+    /**
+     * Returns message search index, building it once from existing message logs when it is missing.
+     */
+    private MessageSearchIndex getSearchIndex() {
+        if (searchIndex.exists()) return searchIndex;
+        synchronized (logs) {
+            if (!searchIndex.exists()) {
+                searchIndex.clear(); // drop postings of an interrupted build
+                File[] userDirs = new File(absolutePath + "/messages").listFiles();
+                if (userDirs != null) {
+                    for (File userDir : userDirs) {
+                        if (!userDir.isDirectory()) continue;
+                        String username = userDir.getName();
+                        for (String tag : MESSAGE_TAGS) {
+                            indexConversation(username, tag, getLog(username, tag));
+                        }
+                    }
+                }
+                searchIndex.markBuilt();
+            }
+        }
+        return searchIndex;
+    }
+
+    private void indexConversation(String username, String tag, MessageLog messageLog) {
+        List<MessageLog.Location> locations = messageLog.getLocations(0, messageLog.size());
+        for (int i = 0; i < locations.size(); i += SEARCH_BUILD_BATCH) {
+            List<MessageLog.Location> batchLocations = new ArrayList<>();
+            List<JSONObject> batchMessages = new ArrayList<>();
+            for (MessageLog.Location location : locations.subList(i, Math.min(locations.size(), i + SEARCH_BUILD_BATCH))) {
+                JSONObject messageJSONO = messageLog.read(location);
+                if (messageJSONO == null) continue;
+                batchLocations.add(location);
+                batchMessages.add(messageJSONO);
+            }
+            searchIndex.add(username, getMessageLogName(tag), batchMessages, batchLocations);
+        }
+    }
+
     private void deleteRecursive(File fileOrDirectory) {
         if (fileOrDirectory.isDirectory())
             for (File child : fileOrDirectory.listFiles())
@@ -77,70 +247,356 @@ public class MessageStorage {
     }
 
     public void deleteAll(){
-        deleteRecursive(new File(absolutePath + "/messages"));
+        synchronized (logs) {
+            logs.clear();
+            deleteRecursive(new File(absolutePath + "/messages"));
+            summaryIndex.clear();
+            dedupIndex.clear();
+            searchIndex.clear();
+            deleteRecursive(new File(absolutePath + "/message_index"));
+        }
     }
 
+    /**
+     * Deletes every conversation of the username holding all of its logs' locks, like compaction holds the lock of
+     * the log it rewrites, so no append lands in between. Logs stay registered, an append waiting for a lock then
+     * starts the conversation again in the same log.
+     */
     public void deleteAllContactMessages(String username){
-        deleteRecursive(new File(absolutePath + "/messages/" + username));
+        synchronized (logs) {
+            deleteAllContactMessages(username, getSummaryIndex(), getSearchIndex(), 0);
+        }
+    }
+
+    private void deleteAllContactMessages(String username, MessageSummaryIndex summaryIndex, MessageSearchIndex searchIndex, int tagIndex) {
+        if (tagIndex == MESSAGE_TAGS.length) {
+            deleteRecursive(new File(absolutePath + "/messages/" + username));
+            summaryIndex.removeUsername(username);
+            searchIndex.removeUsername(username);
+            return;
+        }
+        // locks are always taken in MESSAGE_TAGS order
+        MessageLog messageLog = getLog(username, MESSAGE_TAGS[tagIndex]);
+        synchronized (messageLog) {
+            messageLog.delete();
+            deleteAllContactMessages(username, summaryIndex, searchIndex, tagIndex + 1);
+        }
     }
 
     public void deleteContactMessages(String username, String tag){
-        deleteRecursive(new File(absolutePath + "/messages/" + username + "/" + getMessageStoreFilename(tag)));
+        synchronized (logs) {
+            MessageSummaryIndex summaryIndex = getSummaryIndex();
+            MessageSearchIndex searchIndex = getSearchIndex();
+            MessageLog messageLog = getLog(username, tag);
+            synchronized (messageLog) {
+                messageLog.delete();
+                summaryIndex.removeConversation(username, getMessageLogName(tag));
+                searchIndex.removeConversation(username, getMessageLogName(tag));
+            }
+        }
     }
 
     public void storeMessage(String username, JSONObject newMessagesJSONO, String tag){
-        String dirPath = absolutePath + "/messages/" + username;
-        File dir = new File(dirPath);
-        dir.mkdirs();
-        String userPath = username + "/" + getMessageStoreFilename(tag);
-        String data = readFromStorage(userPath);
-        if (data == null || data.isEmpty()) data = "[]";
+        storeMessages(username, tag, Collections.singletonList(newMessagesJSONO));
+    }
+
+    /**
+     * Stores messages of one conversation with a single log append and one update of each index.
+     */
+    public void storeMessages(String username, String tag, List<JSONObject> messages){
+        if (messages.isEmpty()) return;
         try {
-            JSONArray existingMessagesJSONA = new JSONArray(data);
-            existingMessagesJSONA.put(newMessagesJSONO);
-            writeToStorageFile(userPath, existingMessagesJSONA.toString());
-        } catch (JSONException e) {
+            // indexes are built from existing logs before this message is added
+            MessageSummaryIndex summaryIndex = getSummaryIndex();
+            MessageSearchIndex searchIndex = getSearchIndex();
+            MessageLog messageLog = getLog(username, tag);
+            // log and its indexes change together, compaction of the conversation waits for them
+            synchronized (messageLog) {
+                List<MessageLog.Location> locations = messageLog.append(messages);
+                summaryIndex.update(username, getMessageLogName(tag), messages);
+                searchIndex.add(username, getMessageLogName(tag), messages, locations);
+            }
+        } catch (IOException e) {
             logSender.reportError(e);
         }
     }
 
+    /**
+     * Sets retention policies by tag and schedules background compaction enforcing them, shortly after and then
+     * every COMPACTION_INTERVAL_MS. Empty map stops compaction.
+     */
+    public synchronized void setRetention(Map<String, MessageRetention> retention) {
+        this.retention = new HashMap<>(retention);
+        if (compactionTask != null) compactionTask.cancel(false);
+        compactionTask = null;
+        if (retention.isEmpty()) return;
+        compactionTask = getCompactionExecutor().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject resultJSONO = compact();
+                    Timber.d("Message compaction removed %d messages, reclaimed %d bytes",
+                            resultJSONO.optInt("messagesRemoved"), resultJSONO.optLong("bytesReclaimed"));
+                } catch (Throwable e) {
+                    logSender.reportError(e); // thrown exception would cancel later runs
+                }
+            }
+        }, COMPACTION_DELAY_MS, COMPACTION_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs compaction on the compaction thread, after a scheduled run in progress, and resolves promise with its
+     * result.
+     */
+    public void compact(final Promise promise) {
+        getCompactionExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    promise.resolve(compact().toString());
+                } catch (Throwable e) {
+                    logSender.reportError(e);
+                    promise.reject(e);
+                }
+            }
+        });
+    }
+
+    private synchronized ScheduledExecutorService getCompactionExecutor() {
+        if (compactionExecutor == null) compactionExecutor = Executors.newSingleThreadScheduledExecutor();
+        return compactionExecutor;
+    }
+
+    /**
+     * Stops the compaction thread, a compaction in progress is finished first.
+     */
+    public synchronized void shutdown() {
+        if (compactionExecutor != null) compactionExecutor.shutdown();
+        compactionExecutor = null;
+        compactionTask = null;
+    }
+
+    /**
+     * Removes messages outside retention policies, one conversation at a time, and returns "messagesRemoved" and
+     * "bytesReclaimed". Only segments holding removed messages are rewritten, summary and search index of each
+     * compacted conversation are updated before the next one. Received message timestamps past the server's
+     * redelivery window are dropped as well.
+     */
+    public JSONObject compact() throws JSONException {
+        Map<String, MessageRetention> retention = this.retention;
+        long nowSeconds = System.currentTimeMillis() / 1000L; // savedTimestamp is in seconds
+        int messagesRemoved = 0;
+        long bytesReclaimed = 0;
+        MessageSummaryIndex summaryIndex = getSummaryIndex();
+        MessageSearchIndex searchIndex = getSearchIndex();
+        for (String username : summaryIndex.getUsernames()) {
+            for (Map.Entry<String, MessageRetention> tagRetention : retention.entrySet()) {
+                String tag = tagRetention.getKey();
+                MessageRetention messageRetention = tagRetention.getValue();
+                String logName = getMessageLogName(tag);
+                if (messageRetention.isUnlimited() || summaryIndex.getConversation(username, logName) == null) continue;
+                MessageLog messageLog = getLog(username, tag);
+                synchronized (messageLog) {
+                    int size = messageLog.size();
+                    int savedBeforeMaxAge = messageRetention.getMaxAgeSeconds() > 0
+                            ? messageLog.countSavedBefore(nowSeconds - messageRetention.getMaxAgeSeconds())
+                            : 0;
+                    int excess = messageRetention.getExcess(size, savedBeforeMaxAge);
+                    if (excess <= 0) continue;
+                    try {
+                        bytesReclaimed += messageLog.removeOldest(excess);
+                    } catch (IOException e) {
+                        logSender.reportError(e); // indexes still follow whatever the log holds now
+                    }
+                    int newSize = messageLog.size();
+                    messagesRemoved += Math.max(size - newSize, 0);
+                    JSONObject lastMessageJSONO = newSize > 0 ? messageLog.readRange(newSize - 1, newSize).optJSONObject(0) : null;
+                    summaryIndex.put(username, logName, lastMessageJSONO, newSize);
+                    // record locations changed, postings of the conversation are written again
+                    searchIndex.removeConversation(username, logName);
+                    indexConversation(username, tag, messageLog);
+                }
+            }
+        }
+        dedupIndex.prune();
+        JSONObject resultJSONO = new JSONObject();
+        resultJSONO.put("messagesRemoved", messagesRemoved);
+        resultJSONO.put("bytesReclaimed", bytesReclaimed);
+        return resultJSONO;
+    }
+
+    /**
+     * Whether message with this server timestamp was already received from source. Deleting history keeps
+     * received messages recorded, so redelivered messages are not stored again.
+     */
+    public boolean isReceived(String source, long serverTimestamp) {
+        return dedupIndex.contains(source, serverTimestamp);
+    }
+
+    /**
+     * Records message as received from source, called once it is stored or known to be a duplicate.
+     */
+    public void markReceived(String source, long serverTimestamp) {
+        dedupIndex.add(source, Collections.singletonList(serverTimestamp));
+    }
+
+    /**
+     * Records messages as received from source with a single write.
+     */
+    public void markReceived(String source, List<Long> serverTimestamps) {
+        dedupIndex.add(source, serverTimestamps);
+    }
+
+    /**
+     * Returns whole conversation history ordered by saved timestamp, oldest message first.
+     */
     public JSONArray getContactMessages(String username, String tag){
-        JSONArray messagesJSONA = new JSONArray();
-        String userPath = username + "/" + getMessageStoreFilename(tag);
-        String data = readFromStorage(userPath);
-        if (data == null || data.isEmpty()) data = "[]";
+        return getLog(username, tag).readAll();
+    }
+
+    /**
+     * Returns whole conversation history ordered by saved timestamp, newest message first.
+     */
+    public JSONArray getContactMessagesNewestFirst(String username, String tag){
+        MessageLog messageLog = getLog(username, tag);
+        return messageLog.readRange(0, messageLog.size());
+    }
+
+    /**
+     * Returns one page of conversation history, newest message first. Cursor is an opaque value from "nextCursor"
+     * of the previous page (null or empty for the newest page), "nextCursor" is null once the oldest message is
+     * returned. Limit must be positive.
+     *
+     * Cursor names the oldest message of the previous page by its saved timestamp and its ordinal among messages
+     * saved at the same timestamp, which is found again by binary search over the log index. Index positions shift
+     * when a message arrives out of order or compaction removes old ones, the cursor doesn't: an older message
+     * arriving later shows up on a later page. Compaction removing messages saved at the very timestamp of the
+     * cursor can only make the next page repeat messages, never skip them.
+     */
+    public JSONObject getContactMessagesPage(String username, String tag, String cursor, int limit) throws JSONException {
+        if (limit <= 0) throw new IllegalArgumentException("Page limit must be positive, got " + limit);
+        MessageLog messageLog = getLog(username, tag);
+        JSONObject pageJSONO = new JSONObject();
         try {
-            messagesJSONA = new JSONArray(data);
-        } catch (JSONException e) {
-            logSender.reportError(e);
+            // cursor lookup and read see the same log, appends wait for the page
+            synchronized (messageLog) {
+                int end = messageLog.size();
+                if (cursor != null && !cursor.isEmpty()) end = Math.min(end, findCursorPosition(messageLog, cursor));
+                int start = Math.max(0, end - limit);
+                pageJSONO.put("messages", messageLog.readRange(start, end));
+                pageJSONO.put("nextCursor", start > 0 ? encodeCursor(messageLog, start) : JSONObject.NULL);
+            }
+        } catch (IOException e) {
+            throw new JSONException("Failed to read page: " + e.getMessage());
         }
-        return messagesJSONA;
+        return pageJSONO;
+    }
+
+    /**
+     * Encodes message at position as "savedTimestamp.ordinal" in base 36.
+     */
+    private String encodeCursor(MessageLog messageLog, int position) throws IOException {
+        long savedTimestamp = messageLog.getSavedTimestamp(position);
+        int ordinal = position - messageLog.countSavedBefore(savedTimestamp);
+        return Long.toString(savedTimestamp, 36) + "." + Integer.toString(ordinal, 36);
+    }
+
+    /**
+     * Returns current index position of the message cursor names, or of where it would be when it is gone.
+     */
+    private int findCursorPosition(MessageLog messageLog, String cursor) throws JSONException {
+        int separatorIndex = cursor.indexOf('.');
+        if (separatorIndex <= 0) throw new JSONException("Invalid cursor " + cursor);
+        long savedTimestamp;
+        int ordinal;
+        try {
+            savedTimestamp = Long.parseLong(cursor.substring(0, separatorIndex), 36);
+            ordinal = Integer.parseInt(cursor.substring(separatorIndex + 1), 36);
+        } catch (NumberFormatException e) {
+            throw new JSONException("Invalid cursor " + cursor);
+        }
+        if (ordinal < 0) throw new JSONException("Invalid cursor " + cursor);
+        int first = messageLog.countSavedBefore(savedTimestamp);
+        int afterLast = savedTimestamp == Long.MAX_VALUE ? messageLog.size() : messageLog.countSavedBefore(savedTimestamp + 1);
+        return first + Math.min(ordinal, afterLast - first);
     }
 
+    /**
+     * Searches stored messages of the tag across all conversations, best hit first. Each hit holds username, tag,
+     * score, snippet of content around the first matching term and the message itself.
+     */
+    public JSONArray searchMessages(String query, String tag, int limit) throws JSONException {
+        JSONArray hitsJSONA = new JSONArray();
+        List<String> terms = MessageSearchIndex.tokenize(query);
+        if (terms.isEmpty() || limit <= 0) return hitsJSONA;
+        String logName = getMessageLogName(tag);
+        MessageSummaryIndex summaryIndex = getSummaryIndex();
+        long totalMessages = 0;
+        for (String username : summaryIndex.getUsernames()) {
+            JSONObject conversationJSONO = summaryIndex.getConversation(username, logName);
+            if (conversationJSONO != null) totalMessages += conversationJSONO.optInt("count", 0);
+        }
+        List<MessageSearchIndex.Hit> hits = getSearchIndex().search(logName, terms, totalMessages, Math.min(limit, MAX_SEARCH_RESULTS));
+        for (MessageSearchIndex.Hit hit : hits) {
+            // compaction may have rewritten the log since the search, hit is checked against the log index
+            JSONObject messageJSONO = getLog(hit.getUsername(), tag).read(hit.getLocation(), hit.getSavedTimestamp());
+            if (messageJSONO == null || !containsAny(messageJSONO.optString("content"), terms)) continue;
+            JSONObject hitJSONO = new JSONObject();
+            hitJSONO.put("username", hit.getUsername());
+            hitJSONO.put("tag", tag);
+            hitJSONO.put("score", hit.getScore());
+            hitJSONO.put("snippet", MessageSearchIndex.getSnippet(messageJSONO.optString("content"), terms));
+            hitJSONO.put("message", messageJSONO);
+            hitsJSONA.put(hitJSONO);
+        }
+        return hitsJSONA;
+    }
+
+    private static boolean containsAny(String content, List<String> terms) {
+        List<String> contentTerms = MessageSearchIndex.tokenize(content);
+        for (String term : terms) {
+            if (contentTerms.contains(term)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sets tags whose getExistingMessages is served from the summary index, "chat" always is.
+     */
+    public void setIndexedExistingTags(Collection<String> tags) {
+        Set<String> indexedExistingTags = new HashSet<>(tags);
+        indexedExistingTags.add("chat");
+        this.indexedExistingTags = indexedExistingTags;
+    }
+
+    /**
+     * Builds chat list from the conversation summary index. Indexed tags ("chat" and those set by
+     * setIndexedExistingTags) return last message, count and last timestamp of each conversation from the index
+     * alone. Other tags keep the legacy shape with whole history of every conversation, which reads and serializes
+     * every stored message of the tag, getContactMessagesPage serves the same history in pages.
+     */
     public JSONArray getExistingMessages(String tag) {
         JSONArray chatsJSONA = new JSONArray();
-        String dirPath = absolutePath + "/messages";
-        File directory = new File(dirPath);
-        File[] files = directory.listFiles();
-        if (files != null && files.length > 0){
-            for (File file : files) {
-                String username = file.getName();
-                try {
-                    JSONObject chatJSONO = new JSONObject();
-                    JSONArray messagesJSONA = getContactMessages(username, tag);
-                    chatJSONO.put("username", username);
-                    if (messagesJSONA != null && messagesJSONA.length() != 0) {
-                        if (tag.equals("chat")) {
-                            chatJSONO.put("lastMessage", messagesJSONA.get(messagesJSONA.length() - 1));
-                        } else {
-                            chatJSONO.put("messages", messagesJSONA);
-                        }
+        MessageSummaryIndex summaryIndex = getSummaryIndex();
+        String logName = getMessageLogName(tag);
+        for (String username : summaryIndex.getUsernames()) {
+            try {
+                JSONObject chatJSONO = new JSONObject();
+                chatJSONO.put("username", username);
+                JSONObject conversationJSONO = summaryIndex.getConversation(username, logName);
+                if (conversationJSONO != null && conversationJSONO.optInt("count", 0) > 0) {
+                    if (indexedExistingTags.contains(tag)) {
+                        chatJSONO.put("lastMessage", conversationJSONO.opt("lastMessage"));
+                    } else {
+                        chatJSONO.put("messages", getContactMessages(username, tag));
                     }
-                    chatJSONO.put("unread", 0); // keep regular "messages.json" to avoid deprecating previous structure
-                    chatsJSONA.put(chatJSONO);
-                } catch (JSONException e) {
-                    logSender.reportError(e);
+                    chatJSONO.put("count", conversationJSONO.optInt("count", 0));
+                    chatJSONO.put("lastTimestamp", conversationJSONO.optLong("lastTimestamp"));
                 }
+                chatJSONO.put("unread", 0); // keep regular "messages.json" to avoid deprecating previous structure
+                chatsJSONA.put(chatJSONO);
+            } catch (JSONException e) {
+                logSender.reportError(e);
             }
         }
         return chatsJSONA;
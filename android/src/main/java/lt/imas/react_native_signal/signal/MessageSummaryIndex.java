@@ -0,0 +1,272 @@
+package lt.imas.react_native_signal.signal;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import lt.imas.react_native_signal.helpers.FileUtil;
+
+/**
+ * Persisted summary of every conversation: last message, message count and last saved timestamp per username and
+ * message log. Kept in one small JSON file, { username: { logName: { lastMessage, count, lastTimestamp } } },
+ * updated incrementally as messages are stored so the chat list never reads message history.
+ *
+ * Storing messages only appends the new summary of that one conversation to a journal next to the file
+ * ("summary.json.journal"), the file itself is rewritten when the journal grows past MAX_JOURNAL_ENTRIES and on
+ * other changes. Journal entries hold whole conversation summaries, replaying them over the file in order gives
+ * the latest state even when the file was already rewritten with some of them.
+ */
+public class MessageSummaryIndex {
+    private LogSender logSender = LogSender.getInstance();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final int MAX_JOURNAL_ENTRIES = 256;
+
+    private File file;
+    private JSONObject summaryJSONO;
+    private int journalEntries = 0;
+
+    public MessageSummaryIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads the index, returns false when it is missing or unreadable and has to be rebuilt.
+     */
+    public synchronized boolean exists() {
+        if (summaryJSONO == null) summaryJSONO = read();
+        return summaryJSONO != null;
+    }
+
+    public synchronized void update(String username, String logName, List<JSONObject> messages) {
+        if (messages.isEmpty()) return;
+        try {
+            JSONObject conversationJSONO = getConversationJSONO(username, logName);
+            long lastTimestamp = conversationJSONO.optLong("lastTimestamp", Long.MIN_VALUE);
+            for (JSONObject messageJSONO : messages) {
+                long savedTimestamp = messageJSONO.optLong("savedTimestamp");
+                // later saved message wins, same timestamp keeps the newer store like the log order does
+                if (savedTimestamp >= lastTimestamp) {
+                    lastTimestamp = savedTimestamp;
+                    conversationJSONO.put("lastMessage", messageJSONO);
+                }
+            }
+            conversationJSONO.put("count", conversationJSONO.optInt("count", 0) + messages.size());
+            conversationJSONO.put("lastTimestamp", lastTimestamp);
+            appendToJournal(username, logName, conversationJSONO);
+        } catch (JSONException e) {
+            logSender.reportError(e);
+        }
+    }
+
+    /**
+     * Replaces summary of the conversation, used when the index is rebuilt or history is rewritten.
+     */
+    public synchronized void put(String username, String logName, JSONObject lastMessageJSONO, int count) {
+        try {
+            JSONObject conversationJSONO = getConversationJSONO(username, logName);
+            if (lastMessageJSONO != null) {
+                conversationJSONO.put("lastMessage", lastMessageJSONO);
+                conversationJSONO.put("lastTimestamp", lastMessageJSONO.optLong("savedTimestamp"));
+            } else {
+                conversationJSONO.remove("lastMessage");
+                conversationJSONO.remove("lastTimestamp");
+            }
+            conversationJSONO.put("count", count);
+            write();
+        } catch (JSONException e) {
+            logSender.reportError(e);
+        }
+    }
+
+    /**
+     * Adds username without conversations, it is listed in the chat list like before messages were indexed.
+     */
+    public synchronized void putUsername(String username) {
+        try {
+            JSONObject summaryJSONO = getSummaryJSONO();
+            if (summaryJSONO.optJSONObject(username) == null) {
+                summaryJSONO.put(username, new JSONObject());
+                write();
+            }
+        } catch (JSONException e) {
+            logSender.reportError(e);
+        }
+    }
+
+    /**
+     * Persists the index even when there is nothing in it, so it is not rebuilt again.
+     */
+    public synchronized void markBuilt() {
+        if (!file.exists()) write();
+    }
+
+    public synchronized void removeConversation(String username, String logName) {
+        JSONObject userJSONO = getSummaryJSONO().optJSONObject(username);
+        if (userJSONO == null || userJSONO.remove(logName) == null) return;
+        write();
+    }
+
+    public synchronized void removeUsername(String username) {
+        if (getSummaryJSONO().remove(username) == null) return;
+        write();
+    }
+
+    public synchronized void clear() {
+        summaryJSONO = null;
+        journalEntries = 0;
+        file.delete();
+        getJournalFile().delete();
+    }
+
+    public synchronized List<String> getUsernames() {
+        List<String> usernames = new ArrayList<>();
+        Iterator<String> keys = getSummaryJSONO().keys();
+        while (keys.hasNext()) {
+            usernames.add(keys.next());
+        }
+        return usernames;
+    }
+
+    /**
+     * Returns copy of the conversation summary or null if there is no such conversation.
+     */
+    public synchronized JSONObject getConversation(String username, String logName) {
+        JSONObject userJSONO = getSummaryJSONO().optJSONObject(username);
+        JSONObject conversationJSONO = userJSONO != null ? userJSONO.optJSONObject(logName) : null;
+        if (conversationJSONO == null) return null;
+        try {
+            return new JSONObject(conversationJSONO.toString());
+        } catch (JSONException e) {
+            logSender.reportError(e);
+            return null;
+        }
+    }
+
+    private JSONObject getConversationJSONO(String username, String logName) throws JSONException {
+        JSONObject summaryJSONO = getSummaryJSONO();
+        JSONObject userJSONO = summaryJSONO.optJSONObject(username);
+        if (userJSONO == null) {
+            userJSONO = new JSONObject();
+            summaryJSONO.put(username, userJSONO);
+        }
+        JSONObject conversationJSONO = userJSONO.optJSONObject(logName);
+        if (conversationJSONO == null) {
+            conversationJSONO = new JSONObject();
+            userJSONO.put(logName, conversationJSONO);
+        }
+        return conversationJSONO;
+    }
+
+    private JSONObject getSummaryJSONO() {
+        if (summaryJSONO == null) summaryJSONO = read();
+        if (summaryJSONO == null) summaryJSONO = new JSONObject();
+        return summaryJSONO;
+    }
+
+    private JSONObject read() {
+        FileUtil.restoreBackup(file);
+        if (!file.exists()) return null;
+        try {
+            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+            StringBuilder sb = new StringBuilder();
+            try {
+                String line;
+                while ((line = bufferedReader.readLine()) != null) {
+                    sb.append(line);
+                }
+            } finally {
+                bufferedReader.close();
+            }
+            JSONObject summaryJSONO = new JSONObject(sb.toString());
+            replayJournal(summaryJSONO);
+            return summaryJSONO;
+        } catch (IOException | JSONException e) {
+            logSender.reportError(e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the whole index and drops the journal, which the file now covers.
+     */
+    private void write() {
+        try {
+            FileUtil.writeAtomically(file, getSummaryJSONO().toString().getBytes(UTF_8));
+            getJournalFile().delete();
+            journalEntries = 0;
+        } catch (IOException e) {
+            logSender.reportError(e);
+        }
+    }
+
+    /**
+     * Appends conversation summary to the journal with one write and fsync, every entry starts with a line break
+     * so a line torn by a crash never swallows the next entry. Falls back to writing the whole index.
+     */
+    private void appendToJournal(String username, String logName, JSONObject conversationJSONO) {
+        if (journalEntries >= MAX_JOURNAL_ENTRIES || !file.exists()) {
+            write();
+            return;
+        }
+        try {
+            JSONObject entryJSONO = new JSONObject();
+            entryJSONO.put("username", username);
+            entryJSONO.put("logName", logName);
+            entryJSONO.put("conversation", conversationJSONO);
+            FileOutputStream fos = new FileOutputStream(getJournalFile(), true);
+            try {
+                fos.write(("\n" + entryJSONO.toString()).getBytes(UTF_8));
+            } finally {
+                FileUtil.syncAndClose(fos);
+            }
+            journalEntries++;
+        } catch (IOException | JSONException e) {
+            logSender.reportError(e);
+            write();
+        }
+    }
+
+    private void replayJournal(JSONObject summaryJSONO) throws IOException {
+        journalEntries = 0;
+        File journalFile = getJournalFile();
+        if (!journalFile.exists()) return;
+        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), UTF_8));
+        try {
+            String line;
+            while ((line = bufferedReader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                try {
+                    JSONObject entryJSONO = new JSONObject(line);
+                    String username = entryJSONO.getString("username");
+                    JSONObject userJSONO = summaryJSONO.optJSONObject(username);
+                    if (userJSONO == null) {
+                        userJSONO = new JSONObject();
+                        summaryJSONO.put(username, userJSONO);
+                    }
+                    userJSONO.put(entryJSONO.getString("logName"), entryJSONO.getJSONObject("conversation"));
+                    journalEntries++;
+                } catch (JSONException e) {
+                    logSender.reportError(e); // torn append
+                }
+            }
+        } finally {
+            bufferedReader.close();
+        }
+    }
+
+    private File getJournalFile() {
+        return new File(file.getParentFile(), file.getName() + JOURNAL_SUFFIX);
+    }
+}
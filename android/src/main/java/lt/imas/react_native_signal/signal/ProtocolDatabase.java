@@ -0,0 +1,44 @@
+package lt.imas.react_native_signal.signal;
+
+import java.util.List;
+
+/**
+ * Small SQL connection SQLiteProtocolStorage runs on, implemented over Android's SQLiteDatabase in the app and
+ * over an embedded SQLite driver in JVM tests.
+ *
+ * Arguments are bound by type: byte[] as blob, Integer and Long as integer, null as NULL and anything else as text.
+ * Statements are compiled once and reused. Single value queries return the first column of the first row, or null
+ * when there is no row or the value is NULL.
+ */
+public interface ProtocolDatabase {
+    void execute(String sql, Object... args);
+
+    byte[] queryBlob(String sql, Object... args);
+
+    String queryString(String sql, Object... args);
+
+    Long queryLong(String sql, Object... args);
+
+    List<Long> queryLongs(String sql, Object... args);
+
+    List<byte[]> queryBlobs(String sql, Object... args);
+
+    /**
+     * Transactions nest and follow SQLiteDatabase semantics: changes are committed when the outermost transaction
+     * ends and every level was marked successful. Other threads wait while a transaction is open.
+     */
+    void beginTransaction();
+
+    void setTransactionSuccessful();
+
+    void endTransaction();
+
+    /**
+     * Schema version kept in the database header (PRAGMA user_version), 0 for a new database.
+     */
+    int getVersion();
+
+    void setVersion(int version);
+
+    void close();
+}
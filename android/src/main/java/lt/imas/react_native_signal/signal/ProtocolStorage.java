@@ -7,43 +7,138 @@ import org.whispersystems.libsignal.IdentityKeyPair;
 import org.whispersystems.libsignal.InvalidKeyException;
 import org.whispersystems.libsignal.SignalProtocolAddress;
 import org.whispersystems.libsignal.ecc.Curve;
-import org.whispersystems.libsignal.ecc.ECPublicKey;
 import org.whispersystems.libsignal.state.PreKeyRecord;
 import org.whispersystems.libsignal.state.SessionRecord;
-import org.whispersystems.libsignal.state.SignalProtocolStore;
 import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+import org.whispersystems.libsignal.util.Medium;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import lt.imas.react_native_signal.helpers.Base64;
+import lt.imas.react_native_signal.helpers.ByteUtil;
+import lt.imas.react_native_signal.helpers.FileUtil;
 
-public class ProtocolStorage implements SignalProtocolStore {
+public class ProtocolStorage implements ProtocolStore {
     private LogSender logSender = LogSender.getInstance();
 
+    private String PRE_KEYS_FILENAME = "prekeys.bin";
+    private String SIGNED_PRE_KEYS_FILENAME = "signed_prekeys.bin";
+    private String IDENTITIES_FILENAME = "identities.bin";
+    private String METADATA_FILENAME = "metadata.bin";
+    private String SESSIONS_DIRNAME = "sessions";
+    private String LOCAL_JSON_FILENAME = "user.json";
+
+    private String JOURNAL_SUFFIX = ".journal";
+    private long JOURNAL_CHECKPOINT_BYTES = 64 * 1024;
+
+    private String METADATA_LAST_PRE_KEY_ID = "lastPreKeyId";
+
+    // legacy JSON stores with Base64 encoded records, migrated into record files on first use
     private String PRE_KEYS_JSON_FILENAME = "prekeys.json";
     private String SIGNED_PRE_KEYS_JSON_FILENAME = "signed_prekeys.json";
     private String SESSIONS_JSON_FILENAME = "sessions.json";
     private String IDENTITES_JSON_FILENAME = "identites.json";
-    private String LOCAL_JSON_FILENAME = "user.json";
 
     private String absolutePath;
 
+    // each store is read from disk once on first use and then served from memory as an immutable snapshot,
+    // readers never lock while writers copy the snapshot under the store lock, write the change and publish the copy
+    private volatile LocalIdentity localIdentity;
+    private volatile Map<String, byte[]> identities;
+    private volatile Map<Integer, PreKeyRecord> preKeys;
+    private volatile Map<Integer, SignedPreKeyRecord> signedPreKeys;
+    private volatile Map<String, byte[]> metadata;
+    private final Object localLock = new Object();
+    private final Object identitiesLock = new Object();
+    private final Object preKeysLock = new Object();
+    private final Object signedPreKeysLock = new Object();
+    private final Object metadataLock = new Object();
+
+    // decoded identity keys by address, filled on first trust check and replaced under identitiesLock on every change
+    private final Map<String, IdentityKey> identityKeys = new ConcurrentHashMap<>();
+
+    // sessions are loaded lazily per address and updated under a lock striped by recipient name
+    private final Map<String, byte[]> sessions = new ConcurrentHashMap<>();
+    private final AddressLocks sessionLocks = new AddressLocks();
+    private volatile boolean sessionsLoaded = false;
+    private final byte[] NO_SESSION = new byte[0]; // marks an address known to have no session
+    // recipient name -> ids of devices with a stored session, sets are immutable and replaced under the name's lock
+    private final Map<String, Set<Integer>> sessionDevices = new ConcurrentHashMap<>();
+
+    // write-behind mode: changes are queued per store and per session address (null value marks removal),
+    // repeated updates of the same key coalesce and flusher thread writes them at most WRITE_BEHIND_DELAY_MS later
+    private volatile boolean writeBehind = false;
+    private long WRITE_BEHIND_DELAY_MS = 500;
+    private final Map<String, Map<String, byte[]>> pendingRecords = new LinkedHashMap<>();
+    private final Map<SignalProtocolAddress, byte[]> pendingSessions = new LinkedHashMap<>();
+    private boolean flushScheduled = false;
+    private final Object flushLock = new Object();
+    private ScheduledExecutorService flushExecutor;
+
     public ProtocolStorage(String  absolutePath) {
         this.absolutePath = absolutePath;
     }
 
+    /**
+     * Enables or disables write-behind mode, disabling it flushes queued changes first.
+     */
+    public void setWriteBehind(boolean writeBehind) {
+        // write-through changes wait on flushLock, so they can not be overwritten by older queued ones
+        synchronized (flushLock) {
+            boolean wasWriteBehind;
+            synchronized (pendingRecords) {
+                wasWriteBehind = this.writeBehind;
+                this.writeBehind = writeBehind;
+            }
+            if (wasWriteBehind && !writeBehind) {
+                flush();
+                stopFlusher();
+            }
+        }
+    }
+
+    /**
+     * Writes queued changes and stops the flusher thread, changes made afterwards are written through.
+     */
+    @Override
+    public void close() {
+        setWriteBehind(false);
+    }
+
+    private void stopFlusher() {
+        synchronized (pendingRecords) {
+            if (flushExecutor != null) flushExecutor.shutdown();
+            flushExecutor = null;
+            flushScheduled = false;
+        }
+    }
+
     private String readFromStorage(String fileName) {
         String dirPath = absolutePath + "/signal";
         File file = new File(dirPath, fileName);
+        FileUtil.restoreBackup(file);
         if (file.exists()){
             try {
                 FileInputStream fis = new FileInputStream(file);
@@ -54,6 +149,7 @@ public class ProtocolStorage implements SignalProtocolStore {
                 while ((line = bufferedReader.readLine()) != null) {
                     sb.append(line);
                 }
+                bufferedReader.close();
                 return sb.toString();
             } catch (IOException e) {
                 logSender.reportError(e);
@@ -67,254 +163,679 @@ public class ProtocolStorage implements SignalProtocolStore {
     private void writeToStorageFile(String fileName, String data) {
         try {
             String dirPath = absolutePath + "/signal";
-            File dir = new File(dirPath);
-            dir.mkdirs();
-            File file = new File(dirPath, fileName);
-            if (!file.exists()) {
-                file.createNewFile();
-            }
-            FileOutputStream fos = new FileOutputStream(file);
-            if (data != null) fos.write(data.getBytes());
-            fos.flush();
-            fos.close();
+            FileUtil.writeAtomically(new File(dirPath, fileName), data != null ? data.getBytes() : null);
         } catch (IOException e) {
             logSender.reportError(e);
         }
     }
 
-    public void deleteAll(){
-        File dir = new File(absolutePath + "/signal");
-        if (dir.isDirectory()){
-            String[] children = dir.list();
-            for (String aChildren : children) {
-                new File(dir, aChildren).delete();
+    private byte[] readBytesFromStorage(File file) {
+        if (!file.exists()) return null;
+        try {
+            FileInputStream fis = new FileInputStream(file);
+            byte[] data = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < data.length) {
+                int read = fis.read(data, offset, data.length - offset);
+                if (read < 0) break;
+                offset += read;
             }
+            fis.close();
+            return data;
+        } catch (IOException e) {
+            logSender.reportError(e);
+            return null;
         }
     }
 
-    public boolean isLocalRegistered(){
-        String data = readFromStorage(LOCAL_JSON_FILENAME);
-        if (data == null || data.isEmpty()) data = "{}";
+    /**
+     * Record stores are kept as a snapshot file plus an append-only journal of changes made since the snapshot.
+     * Changes are appended to the journal and once it grows past JOURNAL_CHECKPOINT_BYTES whole store is
+     * checkpointed into a new snapshot (temp file and atomic rename) and the journal is dropped.
+     */
+    private Map<String, byte[]> readRecordsFromStorage(String fileName, String legacyJSONFileName) {
+        RecordFile recordFile = new RecordFile(new File(absolutePath + "/signal", fileName));
+        File legacyFile = new File(absolutePath + "/signal", legacyJSONFileName);
+        if (recordFile.exists() || !legacyFile.exists()) {
+            Map<String, byte[]> records = recordFile.readAll();
+            RecordFile journalFile = getJournalFile(fileName);
+            if (journalFile.exists()) {
+                // recover changes made after the last checkpoint, a torn last append is dropped by the reader
+                journalFile.applyTo(records);
+                writeRecordsToStorage(fileName, records);
+            }
+            return records;
+        }
+
+        Map<String, byte[]> records = new LinkedHashMap<>();
+        boolean migrated = true;
+        JSONObject dataJSONO = readJSONObjectFromStorage(legacyJSONFileName);
+        Iterator<String> keys = dataJSONO.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            try {
+                Object value = dataJSONO.get(key);
+                String encodedBytesString = value instanceof JSONObject
+                        ? ((JSONObject) value).getString("identityKey")
+                        : String.valueOf(value);
+                records.put(key, Base64.decode(encodedBytesString));
+            } catch (JSONException | IOException e) {
+                logSender.reportError(e);
+                migrated = false;
+            }
+        }
+        // legacy file is the only copy until the record file is synced, a failed write retries on next load and
+        // records that couldn't be decoded stay in the legacy file instead of being dropped with it
+        if (writeRecordsToStorage(fileName, records) && migrated) legacyFile.delete();
+        return records;
+    }
+
+    /**
+     * Writes snapshot of the store and drops its journal. Returns false when the snapshot could not be written,
+     * journal is then kept so no change is lost.
+     */
+    private boolean writeRecordsToStorage(String fileName, Map<String, byte[]> records) {
         try {
-            JSONObject dataJSONO = new JSONObject(data);
-            return dataJSONO.has("identityKeyPair")
-                && !dataJSONO.isNull("identityKeyPair")
-                && dataJSONO.has("registrationId")
-                && !dataJSONO.isNull("registrationId");
-        } catch (JSONException e) {
+            new RecordFile(new File(absolutePath + "/signal", fileName)).writeAll(records);
+            getJournalFile(fileName).delete();
+            return true;
+        } catch (IOException e) {
             logSender.reportError(e);
+            return false;
         }
-        return false;
     }
 
-    public void storeLocalUsername(String username){
-        String data = readFromStorage(LOCAL_JSON_FILENAME);
-        if (data == null || data.isEmpty()) data = "{}";
+    private RecordFile getJournalFile(String fileName) {
+        return new RecordFile(new File(absolutePath + "/signal", fileName + JOURNAL_SUFFIX));
+    }
+
+    /**
+     * Appends changes (null value for removal) to the store journal.
+     * Returns true when the store should be checkpointed, either because journal got too long or append failed.
+     */
+    private boolean appendToJournal(String fileName, Map<String, byte[]> changes) {
+        RecordFile journalFile = getJournalFile(fileName);
         try {
-            JSONObject dataJSONO = new JSONObject(data);
-            if (!dataJSONO.has("username") || dataJSONO.isNull("username")) {
-                dataJSONO.put("username", username);
-                writeToStorageFile(LOCAL_JSON_FILENAME, dataJSONO.toString());
-            }
-        } catch (JSONException e) {
+            journalFile.append(changes);
+            return journalFile.length() >= JOURNAL_CHECKPOINT_BYTES;
+        } catch (IOException e) {
             logSender.reportError(e);
+            return true;
         }
     }
 
-    public void storeIdentityKeyPair(IdentityKeyPair identityKeyPair){
-        String data = readFromStorage(LOCAL_JSON_FILENAME);
-        if (data == null || data.isEmpty()) data = "{}";
-        try {
-            JSONObject dataJSONO = new JSONObject(data);
-            if (!dataJSONO.has("identityKeyPair") || dataJSONO.isNull("identityKeyPair")) {
-                dataJSONO.put("identityKeyPair", Base64.encodeBytes(identityKeyPair.serialize()));
-                writeToStorageFile(LOCAL_JSON_FILENAME, dataJSONO.toString());
+    /**
+     * Writes record changes of the given store. In write-behind mode changes are queued for the flusher,
+     * sync forces queued changes to disk before returning.
+     */
+    private void commitRecords(String fileName, Map<String, byte[]> changes, boolean sync) {
+        // mode is checked under the queue lock, a change queued after the closing flush would never be written
+        boolean queued = false;
+        synchronized (pendingRecords) {
+            if (writeBehind) {
+                Map<String, byte[]> storeChanges = pendingRecords.get(fileName);
+                if (storeChanges == null) {
+                    storeChanges = new LinkedHashMap<>();
+                    pendingRecords.put(fileName, storeChanges);
+                }
+                storeChanges.putAll(changes);
+                scheduleFlush();
+                queued = true;
             }
-        } catch (JSONException e) {
-            logSender.reportError(e);
+        }
+        if (queued) {
+            if (sync) flush();
+            return;
+        }
+        synchronized (flushLock) {
+            if (appendToJournal(fileName, changes)) checkpointStore(fileName);
         }
     }
 
-    public void storeLocalRegistrationId(int registrationId){
-        String data = readFromStorage(LOCAL_JSON_FILENAME);
+    private void commitSession(SignalProtocolAddress address, byte[] sessionBytes) {
+        synchronized (pendingRecords) {
+            if (writeBehind) {
+                pendingSessions.put(address, sessionBytes);
+                scheduleFlush();
+                return;
+            }
+        }
+        synchronized (flushLock) {
+            writeSession(address, sessionBytes);
+        }
+    }
+
+    /**
+     * Returns false when the change could not be written.
+     */
+    private boolean writeSession(SignalProtocolAddress address, byte[] sessionBytes) {
+        if (sessionBytes != null) {
+            return writeSessionFile(getSessionFile(address), address.toString(), sessionBytes);
+        }
+        File sessionFile = getSessionFile(address);
+        return sessionFile.delete() || !sessionFile.exists();
+    }
+
+    private void checkpointStore(String fileName) {
+        if (IDENTITIES_FILENAME.equals(fileName)) {
+            writeIdentities();
+        } else if (PRE_KEYS_FILENAME.equals(fileName)) {
+            writePreKeys();
+        } else if (SIGNED_PRE_KEYS_FILENAME.equals(fileName)) {
+            writeSignedPreKeys();
+        }
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled || !writeBehind) return; // closing flush writes whatever is queued
+        flushScheduled = true;
+        if (flushExecutor == null) flushExecutor = Executors.newSingleThreadScheduledExecutor();
+        flushExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, WRITE_BEHIND_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes all queued write-behind changes to disk and returns once they are durable.
+     * Flusher runs off the caller's thread, so checkpoints are rebuilt from the files on disk instead of
+     * the in-memory stores. Failed journal appends and session writes are queued again rather than lost.
+     */
+    @Override
+    public void flush() {
+        synchronized (flushLock) {
+            Map<String, Map<String, byte[]>> records;
+            Map<SignalProtocolAddress, byte[]> sessionChanges;
+            synchronized (pendingRecords) {
+                flushScheduled = false;
+                if (pendingRecords.isEmpty() && pendingSessions.isEmpty()) return;
+                records = new LinkedHashMap<>(pendingRecords);
+                sessionChanges = new LinkedHashMap<>(pendingSessions);
+                pendingRecords.clear();
+                pendingSessions.clear();
+            }
+            for (Map.Entry<String, Map<String, byte[]>> entry : records.entrySet()) {
+                String fileName = entry.getKey();
+                RecordFile journalFile = getJournalFile(fileName);
+                try {
+                    journalFile.append(entry.getValue());
+                    if (journalFile.length() >= JOURNAL_CHECKPOINT_BYTES) {
+                        Map<String, byte[]> storeRecords = new RecordFile(new File(absolutePath + "/signal", fileName)).readAll();
+                        journalFile.applyTo(storeRecords);
+                        writeRecordsToStorage(fileName, storeRecords);
+                    }
+                } catch (IOException e) {
+                    logSender.reportError(e);
+                    requeueRecords(fileName, entry.getValue());
+                }
+            }
+            for (Map.Entry<SignalProtocolAddress, byte[]> entry : sessionChanges.entrySet()) {
+                if (!writeSession(entry.getKey(), entry.getValue())) requeueSession(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void requeueSession(SignalProtocolAddress address, byte[] sessionBytes) {
+        synchronized (pendingRecords) {
+            // keep newer change queued while this flush was running
+            if (!pendingSessions.containsKey(address)) pendingSessions.put(address, sessionBytes);
+            scheduleFlush();
+        }
+    }
+
+    private void requeueRecords(String fileName, Map<String, byte[]> changes) {
+        synchronized (pendingRecords) {
+            Map<String, byte[]> storeChanges = pendingRecords.get(fileName);
+            if (storeChanges == null) {
+                storeChanges = new LinkedHashMap<>();
+                pendingRecords.put(fileName, storeChanges);
+            }
+            for (Map.Entry<String, byte[]> change : changes.entrySet()) {
+                // keep newer change queued while this flush was running
+                if (!storeChanges.containsKey(change.getKey())) storeChanges.put(change.getKey(), change.getValue());
+            }
+            scheduleFlush();
+        }
+    }
+
+    private void deleteRecursive(File fileOrDirectory) {
+        if (fileOrDirectory.isDirectory())
+            for (File child : fileOrDirectory.listFiles())
+                deleteRecursive(child);
+
+        fileOrDirectory.delete();
+    }
+
+    private JSONObject readJSONObjectFromStorage(String fileName) {
+        String data = readFromStorage(fileName);
         if (data == null || data.isEmpty()) data = "{}";
         try {
-            JSONObject dataJSONO = new JSONObject(data);
-            if (!dataJSONO.has("registrationId") || dataJSONO.isNull("registrationId")) {
-                dataJSONO.put("registrationId", registrationId);
-                writeToStorageFile(LOCAL_JSON_FILENAME, dataJSONO.toString());
-            }
+            return new JSONObject(data);
         } catch (JSONException e) {
             logSender.reportError(e);
+            return new JSONObject();
         }
     }
 
-    public void storeSignalingKey(String signalingKey){
-        String data = readFromStorage(LOCAL_JSON_FILENAME);
-        if (data == null || data.isEmpty()) data = "{}";
+    private LocalIdentity getLocalIdentity() {
+        LocalIdentity snapshot = localIdentity;
+        if (snapshot == null) {
+            synchronized (localLock) {
+                if (localIdentity == null) localIdentity = LocalIdentity.fromJSONO(readJSONObjectFromStorage(LOCAL_JSON_FILENAME));
+                snapshot = localIdentity;
+            }
+        }
+        return snapshot;
+    }
+
+    private Map<String, byte[]> getIdentities() {
+        Map<String, byte[]> snapshot = identities;
+        if (snapshot == null) {
+            synchronized (identitiesLock) {
+                if (identities == null) {
+                    identities = Collections.unmodifiableMap(new HashMap<>(readRecordsFromStorage(IDENTITIES_FILENAME, IDENTITES_JSON_FILENAME)));
+                }
+                snapshot = identities;
+            }
+        }
+        return snapshot;
+    }
+
+    private Map<Integer, PreKeyRecord> getPreKeys() {
+        Map<Integer, PreKeyRecord> snapshot = preKeys;
+        if (snapshot == null) {
+            synchronized (preKeysLock) {
+                if (preKeys == null) {
+                    Map<Integer, PreKeyRecord> records = new HashMap<>();
+                    for (Map.Entry<String, byte[]> entry : readRecordsFromStorage(PRE_KEYS_FILENAME, PRE_KEYS_JSON_FILENAME).entrySet()) {
+                        try {
+                            records.put(Integer.parseInt(entry.getKey()), new PreKeyRecord(entry.getValue()));
+                        } catch (IOException | NumberFormatException e) {
+                            logSender.reportError(e);
+                        }
+                    }
+                    preKeys = Collections.unmodifiableMap(records);
+                }
+                snapshot = preKeys;
+            }
+        }
+        return snapshot;
+    }
+
+    private Map<Integer, SignedPreKeyRecord> getSignedPreKeys() {
+        Map<Integer, SignedPreKeyRecord> snapshot = signedPreKeys;
+        if (snapshot == null) {
+            synchronized (signedPreKeysLock) {
+                if (signedPreKeys == null) {
+                    Map<Integer, SignedPreKeyRecord> records = new HashMap<>();
+                    for (Map.Entry<String, byte[]> entry : readRecordsFromStorage(SIGNED_PRE_KEYS_FILENAME, SIGNED_PRE_KEYS_JSON_FILENAME).entrySet()) {
+                        try {
+                            records.put(Integer.parseInt(entry.getKey()), new SignedPreKeyRecord(entry.getValue()));
+                        } catch (IOException | NumberFormatException e) {
+                            logSender.reportError(e);
+                        }
+                    }
+                    signedPreKeys = Collections.unmodifiableMap(records);
+                }
+                snapshot = signedPreKeys;
+            }
+        }
+        return snapshot;
+    }
+
+    private Map<String, byte[]> getMetadata() {
+        Map<String, byte[]> snapshot = metadata;
+        if (snapshot == null) {
+            synchronized (metadataLock) {
+                if (metadata == null) {
+                    metadata = Collections.unmodifiableMap(new HashMap<>(new RecordFile(new File(absolutePath + "/signal", METADATA_FILENAME)).readAll()));
+                }
+                snapshot = metadata;
+            }
+        }
+        return snapshot;
+    }
+
+    private void loadSessions() {
+        if (sessionsLoaded) return;
+        synchronized (sessions) {
+            if (!sessionsLoaded) {
+                migrateLegacySessions();
+                indexSessionDevices();
+                sessionsLoaded = true;
+            }
+        }
+    }
+
+    /**
+     * Builds recipient name to device ids index from session shard names, session contents are not read.
+     */
+    private void indexSessionDevices() {
+        File[] files = new File(absolutePath + "/signal/" + SESSIONS_DIRNAME).listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (FileUtil.isTempFile(file)) continue;
+            if (FileUtil.isBackupFile(file)) {
+                // shard moved aside by an interrupted replace, put back unless the new shard made it
+                file = FileUtil.getBackedUpFile(file);
+                FileUtil.restoreBackup(file);
+                if (!file.exists()) continue;
+            }
+            String fileName = file.getName();
+            int separatorIndex = fileName.lastIndexOf('.');
+            if (separatorIndex <= 0) continue;
+            try {
+                String name = new String(ByteUtil.fromHexString(fileName.substring(0, separatorIndex)), Charset.forName("UTF-8"));
+                addSessionDevice(name, Integer.parseInt(fileName.substring(separatorIndex + 1)));
+            } catch (RuntimeException e) {
+                logSender.reportError(e);
+            }
+        }
+    }
+
+    private void addSessionDevice(String name, int deviceId) {
+        Set<Integer> deviceIds = sessionDevices.get(name);
+        if (deviceIds != null && deviceIds.contains(deviceId)) return;
+        Set<Integer> updatedDeviceIds = deviceIds != null ? new HashSet<>(deviceIds) : new HashSet<Integer>();
+        updatedDeviceIds.add(deviceId);
+        sessionDevices.put(name, Collections.unmodifiableSet(updatedDeviceIds));
+    }
+
+    private void removeSessionDevice(String name, int deviceId) {
+        Set<Integer> deviceIds = sessionDevices.get(name);
+        if (deviceIds == null || !deviceIds.contains(deviceId)) return;
+        if (deviceIds.size() == 1) {
+            sessionDevices.remove(name);
+            return;
+        }
+        Set<Integer> updatedDeviceIds = new HashSet<>(deviceIds);
+        updatedDeviceIds.remove(deviceId);
+        sessionDevices.put(name, Collections.unmodifiableSet(updatedDeviceIds));
+    }
+
+    /**
+     * Sessions are sharded into one file per address so that storing a session only rewrites that address's bytes.
+     * Shard name is hex encoded recipient name and device id, which keeps any username safe to use as a file name.
+     */
+    private File getSessionFile(String name, int deviceId) {
+        String encodedName = ByteUtil.toHexString(name.getBytes(Charset.forName("UTF-8")));
+        return new File(absolutePath + "/signal/" + SESSIONS_DIRNAME, encodedName + "." + deviceId);
+    }
+
+    private File getSessionFile(SignalProtocolAddress address) {
+        return getSessionFile(address.getName(), address.getDeviceId());
+    }
+
+    private byte[] readSessionFile(File file) {
+        RecordFile recordFile = new RecordFile(file);
+        if (!recordFile.isRecordFile()) return readBytesFromStorage(file); // shard written before record files
+        Iterator<byte[]> values = recordFile.readAll().values().iterator();
+        return values.hasNext() ? values.next() : null;
+    }
+
+    /**
+     * Returns false when the shard could not be written, previous shard content is then left untouched.
+     */
+    private boolean writeSessionFile(File file, String key, byte[] sessionBytes) {
         try {
-            JSONObject dataJSONO = new JSONObject(data);
-            dataJSONO.put("signalingKey", signalingKey);
-            writeToStorageFile(LOCAL_JSON_FILENAME, dataJSONO.toString());
-        } catch (JSONException e) {
+            new RecordFile(file).writeAll(Collections.singletonMap(key, sessionBytes));
+            return true;
+        } catch (IOException e) {
             logSender.reportError(e);
+            return false;
         }
     }
 
-    public void storeSignalResetVersion(int version){
-        String data = readFromStorage(LOCAL_JSON_FILENAME);
-        if (data == null || data.isEmpty()) data = "{}";
+    /**
+     * Moves sessions from legacy sessions.json into shards. Legacy file is deleted only once every session is in
+     * its shard, otherwise migration runs again on next load and skips shards already written, which may hold
+     * newer state than the legacy file by then.
+     */
+    private void migrateLegacySessions() {
+        File legacyFile = new File(absolutePath + "/signal", SESSIONS_JSON_FILENAME);
+        if (!legacyFile.exists()) return;
+        boolean migrated = true;
+        JSONObject dataJSONO = readJSONObjectFromStorage(SESSIONS_JSON_FILENAME);
+        Iterator<String> keys = dataJSONO.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            try {
+                // legacy keys are SignalProtocolAddress.toString(), which is "name:deviceId"
+                int separatorIndex = key.lastIndexOf(':');
+                if (separatorIndex <= 0 || !(dataJSONO.get(key) instanceof String)) {
+                    throw new JSONException("Invalid legacy session " + key);
+                }
+                String name = key.substring(0, separatorIndex);
+                int deviceId = Integer.parseInt(key.substring(separatorIndex + 1));
+                File sessionFile = getSessionFile(name, deviceId);
+                if (sessionFile.exists()) continue;
+                if (!writeSessionFile(sessionFile, key, Base64.decode(dataJSONO.getString(key)))) migrated = false;
+            } catch (JSONException | IOException | NumberFormatException e) {
+                logSender.reportError(e);
+                migrated = false;
+            }
+        }
+        if (migrated) legacyFile.delete();
+    }
+
+    /**
+     * Publishes changed local details and writes them through, must be called holding localLock.
+     */
+    private void writeLocal(LocalIdentity updatedLocalIdentity) {
+        localIdentity = updatedLocalIdentity;
         try {
-            JSONObject dataJSONO = new JSONObject(data);
-            dataJSONO.put("signalResetVersion", version);
-            writeToStorageFile(LOCAL_JSON_FILENAME, dataJSONO.toString());
+            writeToStorageFile(LOCAL_JSON_FILENAME, updatedLocalIdentity.toJSONO().toString());
         } catch (JSONException e) {
             logSender.reportError(e);
         }
     }
 
+    private void writeIdentities() {
+        writeRecordsToStorage(IDENTITIES_FILENAME, getIdentities());
+    }
+
+    private void writePreKeys() {
+        Map<String, byte[]> records = new LinkedHashMap<>();
+        for (Map.Entry<Integer, PreKeyRecord> entry : getPreKeys().entrySet()) {
+            records.put(String.valueOf(entry.getKey()), entry.getValue().serialize());
+        }
+        writeRecordsToStorage(PRE_KEYS_FILENAME, records);
+    }
+
+    private void writeSignedPreKeys() {
+        Map<String, byte[]> records = new LinkedHashMap<>();
+        for (Map.Entry<Integer, SignedPreKeyRecord> entry : getSignedPreKeys().entrySet()) {
+            records.put(String.valueOf(entry.getKey()), entry.getValue().serialize());
+        }
+        writeRecordsToStorage(SIGNED_PRE_KEYS_FILENAME, records);
+    }
+
+    private void writeMetadata() {
+        writeRecordsToStorage(METADATA_FILENAME, getMetadata());
+    }
+
     @Override
-    public IdentityKeyPair getIdentityKeyPair() {
-        IdentityKeyPair identityKeyPair = null;
-        try {
-            String data = readFromStorage(LOCAL_JSON_FILENAME);
-            if (data == null || data.isEmpty()) return null;
-            JSONObject dataJSONO = new JSONObject(data);
-            if (!dataJSONO.has("identityKeyPair") || dataJSONO.isNull("identityKeyPair")) return null;
-            byte[] keyPairBytes = Base64.decode(dataJSONO.getString("identityKeyPair"));
-            identityKeyPair = new IdentityKeyPair(keyPairBytes);
-        } catch (JSONException
-                | InvalidKeyException
-                | IOException e) {
-            logSender.reportError(e);
+    public void deleteAll(){
+        synchronized (pendingRecords) {
+            pendingRecords.clear();
+            pendingSessions.clear();
+        }
+        synchronized (flushLock) {
+            // waits for a flush in progress, so nothing is written back after the files are gone
+            File dir = new File(absolutePath + "/signal");
+            if (dir.isDirectory()){
+                for (File child : dir.listFiles()) {
+                    deleteRecursive(child);
+                }
+            }
+        }
+        synchronized (localLock) {
+            localIdentity = null;
+        }
+        synchronized (identitiesLock) {
+            identities = null;
+            identityKeys.clear();
+        }
+        synchronized (preKeysLock) {
+            preKeys = null;
+        }
+        synchronized (signedPreKeysLock) {
+            signedPreKeys = null;
+        }
+        synchronized (metadataLock) {
+            metadata = null;
+        }
+        synchronized (sessions) {
+            sessions.clear();
+            sessionDevices.clear();
+            sessionsLoaded = false;
         }
-        return identityKeyPair;
     }
 
+    /**
+     * Lock shared by all sessions of the address's recipient. Callers hold it around a whole SessionCipher or
+     * SessionBuilder operation, as libsignal loads, changes and stores the session in separate calls.
+     */
     @Override
-    public int getLocalRegistrationId() {
-        int localRegistrationId = 0;
-        try {
-            String data = readFromStorage(LOCAL_JSON_FILENAME);
-            if (data == null || data.isEmpty()) return localRegistrationId;
-            JSONObject dataJSONO = new JSONObject(data);
-            if (!dataJSONO.has("registrationId") || dataJSONO.isNull("registrationId")) return localRegistrationId;
-            localRegistrationId = dataJSONO.getInt("registrationId");
-        } catch (JSONException e) {
-            logSender.reportError(e);
+    public Object getSessionLock(SignalProtocolAddress address) {
+        return sessionLocks.get(address);
+    }
+
+    @Override
+    public boolean isLocalRegistered(){
+        return getLocalIdentity().isRegistered();
+    }
+
+    @Override
+    public void storeLocalUsername(String username){
+        synchronized (localLock) {
+            LocalIdentity currentLocalIdentity = getLocalIdentity();
+            if (currentLocalIdentity.getUsername() == null) writeLocal(currentLocalIdentity.withUsername(username));
         }
-        return localRegistrationId;
     }
 
-    public String getLocalUsername() {
-        String localUsername = "";
-        try {
-            String data = readFromStorage(LOCAL_JSON_FILENAME);
-            if (data == null || data.isEmpty()) return localUsername;
-            JSONObject dataJSONO = new JSONObject(data);
-            if (!dataJSONO.has("username") || dataJSONO.isNull("username")) return localUsername;
-            localUsername = dataJSONO.getString("username");
-        } catch (JSONException e) {
-            logSender.reportError(e);
+    @Override
+    public void storeIdentityKeyPair(IdentityKeyPair identityKeyPair){
+        synchronized (localLock) {
+            LocalIdentity currentLocalIdentity = getLocalIdentity();
+            if (currentLocalIdentity.getIdentityKeyPair() == null) writeLocal(currentLocalIdentity.withIdentityKeyPair(identityKeyPair));
         }
-        return localUsername;
     }
 
-    public String getSignalingKey() {
-        String signalingKey = null;
-        try {
-            String data = readFromStorage(LOCAL_JSON_FILENAME);
-            if (data == null || data.isEmpty()) return signalingKey;
-            JSONObject dataJSONO = new JSONObject(data);
-            if (!dataJSONO.has("signalingKey") || dataJSONO.isNull("signalingKey")) return signalingKey;
-            signalingKey = dataJSONO.getString("signalingKey");
-        } catch (JSONException e) {
-            logSender.reportError(e);
+    @Override
+    public void storeLocalRegistrationId(int registrationId){
+        synchronized (localLock) {
+            LocalIdentity currentLocalIdentity = getLocalIdentity();
+            if (!currentLocalIdentity.hasRegistrationId()) writeLocal(currentLocalIdentity.withRegistrationId(registrationId));
         }
-        return signalingKey;
     }
 
-    public int getSignalResetVersion() {
-        int signalResetVersion = 0;
-        try {
-            String data = readFromStorage(LOCAL_JSON_FILENAME);
-            if (data == null || data.isEmpty()) return signalResetVersion;
-            JSONObject dataJSONO = new JSONObject(data);
-            if (!dataJSONO.has("signalResetVersion") || dataJSONO.isNull("signalResetVersion")) return signalResetVersion;
-            signalResetVersion = dataJSONO.optInt("signalResetVersion", 0);
-        } catch (JSONException e) {
-            logSender.reportError(e);
+    @Override
+    public void storeSignalingKey(String signalingKey){
+        synchronized (localLock) {
+            writeLocal(getLocalIdentity().withSignalingKey(signalingKey));
         }
-        return signalResetVersion;
+    }
+
+    @Override
+    public void storeSignalResetVersion(int version){
+        synchronized (localLock) {
+            writeLocal(getLocalIdentity().withSignalResetVersion(version));
+        }
+    }
+
+    @Override
+    public IdentityKeyPair getIdentityKeyPair() {
+        return getLocalIdentity().getIdentityKeyPair();
+    }
+
+    @Override
+    public int getLocalRegistrationId() {
+        return getLocalIdentity().getRegistrationId();
+    }
+
+    @Override
+    public String getLocalUsername() {
+        String localUsername = getLocalIdentity().getUsername();
+        return localUsername != null ? localUsername : "";
+    }
+
+    @Override
+    public String getSignalingKey() {
+        return getLocalIdentity().getSignalingKey();
+    }
+
+    @Override
+    public int getSignalResetVersion() {
+        return getLocalIdentity().getSignalResetVersion();
     }
 
     @Override
     public boolean saveIdentity(SignalProtocolAddress address, IdentityKey identityKey) {
-        try {
-            String data = readFromStorage(IDENTITES_JSON_FILENAME);
-            if (data == null || data.isEmpty()) data = "{}";
-            JSONObject dataJSONO = new JSONObject(data);
-            JSONObject addressJSONO = new JSONObject();
-            addressJSONO.put("identityKey", Base64.encodeBytes(identityKey.serialize()));
-            dataJSONO.put(address.toString(), addressJSONO);
-            writeToStorageFile(IDENTITES_JSON_FILENAME, dataJSONO.toString());
-            return true;
-        } catch (JSONException e) {
-            logSender.reportError(e);
+        byte[] identityKeyBytes = identityKey.serialize();
+        synchronized (identitiesLock) {
+            Map<String, byte[]> updatedIdentities = new HashMap<>(getIdentities());
+            byte[] previousIdentityKeyBytes = updatedIdentities.put(address.toString(), identityKeyBytes);
+            if (Arrays.equals(identityKeyBytes, previousIdentityKeyBytes)) return true; // unchanged, nothing to write
+            identities = Collections.unmodifiableMap(updatedIdentities);
+            identityKeys.put(address.toString(), identityKey);
+            commitRecords(IDENTITIES_FILENAME, Collections.singletonMap(address.toString(), identityKeyBytes), true);
         }
-        return false;
+        return true;
     }
 
+    @Override
     public void removeIdentity(SignalProtocolAddress address) {
-        String data = readFromStorage(IDENTITES_JSON_FILENAME);
-        if (data == null || data.isEmpty()) data = "{}";
-        try {
-            JSONObject dataJSONO = new JSONObject(data);
-            if (dataJSONO.has(address.toString())){
-                dataJSONO.remove(address.toString());
-                writeToStorageFile(IDENTITES_JSON_FILENAME, dataJSONO.toString());
-            }
-        } catch (JSONException e) {
-            logSender.reportError(e);
+        synchronized (identitiesLock) {
+            if (!getIdentities().containsKey(address.toString())) return;
+            Map<String, byte[]> updatedIdentities = new HashMap<>(getIdentities());
+            updatedIdentities.remove(address.toString());
+            identities = Collections.unmodifiableMap(updatedIdentities);
+            identityKeys.remove(address.toString());
+            commitRecords(IDENTITIES_FILENAME, Collections.<String, byte[]>singletonMap(address.toString(), null), true);
         }
     }
 
     @Override
     public boolean isTrustedIdentity(SignalProtocolAddress address, IdentityKey identityKey, Direction direction) {
         // direction used for additional checks if needed
-        String data = readFromStorage(IDENTITES_JSON_FILENAME);
-        if (data == null || data.isEmpty()) return true;  // trust on first use
-        try {
-            JSONObject dataJSONO = new JSONObject(data);
-            if (dataJSONO.has(address.toString())){
-                JSONObject addressJSONO = dataJSONO.getJSONObject(address.toString());
-                byte[] identityKeyBytes = Base64.decode(addressJSONO.getString("identityKey"));
-                ECPublicKey preKeyPublic = Curve.decodePoint(identityKeyBytes, 0);
-                return identityKey.getPublicKey().equals(preKeyPublic);
-            } else {
-                return true; // trust on first use
-            }
-        } catch (JSONException | IOException | InvalidKeyException e) {
-            logSender.reportError(e);
-            e.printStackTrace();
+        IdentityKey trustedIdentityKey = identityKeys.get(address.toString());
+        if (trustedIdentityKey == null) {
+            if (!getIdentities().containsKey(address.toString())) return true; // trust on first use
+            trustedIdentityKey = decodeIdentityKey(address);
+            // either removed meanwhile, which trusts again, or stored key can't be decoded
+            if (trustedIdentityKey == null) return !getIdentities().containsKey(address.toString());
         }
-        return false;
+        // public keys compare their raw key bytes
+        return identityKey.getPublicKey().equals(trustedIdentityKey.getPublicKey());
     }
 
-    @Override
-    public PreKeyRecord loadPreKey(int preKeyId) {
-        String data = readFromStorage(PRE_KEYS_JSON_FILENAME);
-        if (data == null || data.isEmpty()) return null;
-        try {
-            JSONObject dataJSONO = new JSONObject(data);
-            if (dataJSONO.has(String.valueOf(preKeyId))){
-                byte[] preKeyBytes = Base64.decode(dataJSONO.getString(String.valueOf(preKeyId)));
-                return new PreKeyRecord(preKeyBytes);
+    /**
+     * Decodes stored identity key once and keeps it in identityKeys. Runs under identitiesLock so a concurrent
+     * save or remove can't be overwritten with the older key.
+     */
+    private IdentityKey decodeIdentityKey(SignalProtocolAddress address) {
+        synchronized (identitiesLock) {
+            IdentityKey identityKey = identityKeys.get(address.toString());
+            if (identityKey != null) return identityKey;
+            byte[] identityKeyBytes = getIdentities().get(address.toString());
+            if (identityKeyBytes == null) return null;
+            try {
+                identityKey = new IdentityKey(Curve.decodePoint(identityKeyBytes, 0));
+                identityKeys.put(address.toString(), identityKey);
+                return identityKey;
+            } catch (InvalidKeyException e) {
+                logSender.reportError(e);
+                return null;
             }
-        } catch (JSONException | IOException e) {
-            logSender.reportError(e);
         }
-        return null;
+    }
+
+    @Override
+    public PreKeyRecord loadPreKey(int preKeyId) {
+        return getPreKeys().get(preKeyId);
     }
 
 //    TODO: keep for later improvements
@@ -345,116 +866,178 @@ public class ProtocolStorage implements SignalProtocolStore {
 
     @Override
     public void storePreKey(int preKeyId, PreKeyRecord record) {
-        String data = readFromStorage(PRE_KEYS_JSON_FILENAME);
-        if (data == null || data.isEmpty()) data = "{}";
-        try {
-            JSONObject dataJSONO = new JSONObject(data);
-            dataJSONO.put(String.valueOf(preKeyId), Base64.encodeBytes(record.serialize()));
-            writeToStorageFile(PRE_KEYS_JSON_FILENAME, dataJSONO.toString());
-        } catch (JSONException e) {
-            logSender.reportError(e);
+        synchronized (preKeysLock) {
+            Map<Integer, PreKeyRecord> updatedPreKeys = new HashMap<>(getPreKeys());
+            updatedPreKeys.put(preKeyId, record);
+            preKeys = Collections.unmodifiableMap(updatedPreKeys);
+            commitRecords(PRE_KEYS_FILENAME, Collections.singletonMap(String.valueOf(preKeyId), record.serialize()), true);
+        }
+        updateLastPreKeyIndex(preKeyId);
+    }
+
+    /**
+     * Stores whole batch of pre keys with a single journal append.
+     */
+    @Override
+    public void storePreKeys(Collection<PreKeyRecord> records) {
+        if (records.isEmpty()) return;
+        Map<String, byte[]> changes = new LinkedHashMap<>();
+        int lastPreKeyId = -1;
+        synchronized (preKeysLock) {
+            Map<Integer, PreKeyRecord> updatedPreKeys = new HashMap<>(getPreKeys());
+            for (PreKeyRecord record : records) {
+                updatedPreKeys.put(record.getId(), record);
+                changes.put(String.valueOf(record.getId()), record.serialize());
+                lastPreKeyId = record.getId();
+            }
+            preKeys = Collections.unmodifiableMap(updatedPreKeys);
+            // pre keys are uploaded to server right after, so they have to be on disk first
+            commitRecords(PRE_KEYS_FILENAME, changes, true);
         }
+        updateLastPreKeyIndex(lastPreKeyId);
     }
 
     @Override
     public boolean containsPreKey(int preKeyId) {
-        return loadPreKey(preKeyId) != null;
+        return getPreKeys().containsKey(preKeyId);
     }
 
     @Override
     public void removePreKey(int preKeyId) {
-        String data = readFromStorage(PRE_KEYS_JSON_FILENAME);
-        if (data == null || data.isEmpty()) data = "{}";
-        try {
-            JSONObject dataJSONO = new JSONObject(data);
-            if (dataJSONO.has(String.valueOf(preKeyId))){
-                dataJSONO.remove(String.valueOf(preKeyId));
-                writeToStorageFile(PRE_KEYS_JSON_FILENAME, dataJSONO.toString());
+        synchronized (preKeysLock) {
+            if (!getPreKeys().containsKey(preKeyId)) return;
+            Map<Integer, PreKeyRecord> updatedPreKeys = new HashMap<>(getPreKeys());
+            updatedPreKeys.remove(preKeyId);
+            preKeys = Collections.unmodifiableMap(updatedPreKeys);
+            // used one-time pre key must not come back after a crash
+            commitRecords(PRE_KEYS_FILENAME, Collections.<String, byte[]>singletonMap(String.valueOf(preKeyId), null), true);
+        }
+    }
+
+    /**
+     * Removes whole batch of pre keys with a single journal append.
+     */
+    @Override
+    public void removePreKeys(Collection<Integer> preKeyIds) {
+        synchronized (preKeysLock) {
+            Map<Integer, PreKeyRecord> updatedPreKeys = new HashMap<>(getPreKeys());
+            Map<String, byte[]> changes = new LinkedHashMap<>();
+            for (int preKeyId : preKeyIds) {
+                if (updatedPreKeys.remove(preKeyId) != null) changes.put(String.valueOf(preKeyId), null);
             }
-        } catch (JSONException e) {
-            logSender.reportError(e);
+            if (changes.isEmpty()) return;
+            preKeys = Collections.unmodifiableMap(updatedPreKeys);
+            commitRecords(PRE_KEYS_FILENAME, changes, true);
         }
     }
 
     @Override
     public SessionRecord loadSession(SignalProtocolAddress address) {
-        String data = readFromStorage(SESSIONS_JSON_FILENAME);
-        SessionRecord record = new SessionRecord();
-        if (data == null || data.isEmpty()) return record;
-        try {
-            JSONObject dataJSONO = new JSONObject(data);
-            if (dataJSONO.has(address.toString())){
-                byte[] sessionBytes = Base64.decode(dataJSONO.getString(address.toString()));
+        loadSessions();
+        String key = address.toString();
+        byte[] sessionBytes = sessions.get(key);
+        if (sessionBytes == null) {
+            synchronized (sessionLocks.get(address)) {
+                sessionBytes = sessions.get(key);
+                if (sessionBytes == null) {
+                    sessionBytes = readSessionFile(getSessionFile(address));
+                    if (sessionBytes == null) sessionBytes = NO_SESSION;
+                    sessions.put(key, sessionBytes);
+                }
+            }
+        }
+        if (sessionBytes != NO_SESSION) {
+            try {
+                // records are mutated by libsignal, so every load hands out a fresh copy
                 return new SessionRecord(sessionBytes);
+            } catch (IOException e) {
+                logSender.reportError(e);
             }
-        } catch (JSONException | IOException e) {
-            logSender.reportError(e);
         }
-        return record;
+        return new SessionRecord();
     }
 
 
     public ArrayList<SessionRecord> loadAllSessions() {
-        String data = readFromStorage(SESSIONS_JSON_FILENAME);
         ArrayList<SessionRecord> records = new ArrayList<>();
-        if (data == null || data.isEmpty()) return records;
-        try {
-            JSONObject dataJSONO = new JSONObject(data);
-            Iterator<?> keys = dataJSONO.keys();
-            while (keys.hasNext()){
-                String key = (String)keys.next();
-                if (dataJSONO.get(key) instanceof String){
-                    String encodedBytesString = dataJSONO.getString(key);
-                    byte[] sessionBytes = Base64.decode(encodedBytesString);
-                    SessionRecord sessionRecord = new SessionRecord(sessionBytes);
-                    records.add(sessionRecord);
-                }
+        loadSessions();
+        flush();
+        File[] files = new File(absolutePath + "/signal/" + SESSIONS_DIRNAME).listFiles();
+        if (files == null) return records;
+        for (File file : files) {
+            if (FileUtil.isTempFile(file) || FileUtil.isBackupFile(file)) continue;
+            byte[] sessionBytes = readSessionFile(file);
+            if (sessionBytes == null) continue;
+            try {
+                records.add(new SessionRecord(sessionBytes));
+            } catch (IOException e) {
+                logSender.reportError(e);
             }
-        } catch (JSONException | IOException e) {
-            logSender.reportError(e);
         }
         return records;
     }
 
+    /**
+     * Returns addresses of all stored sessions, used to move the store to another backend.
+     */
+    public List<SignalProtocolAddress> getSessionAddresses() {
+        loadSessions();
+        List<SignalProtocolAddress> addresses = new ArrayList<>();
+        for (Map.Entry<String, Set<Integer>> entry : sessionDevices.entrySet()) {
+            for (int deviceId : entry.getValue()) {
+                addresses.add(new SignalProtocolAddress(entry.getKey(), deviceId));
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Returns all stored identity keys by address, keys that can't be decoded are reported and left out.
+     */
+    public Map<SignalProtocolAddress, IdentityKey> loadIdentities() {
+        Map<SignalProtocolAddress, IdentityKey> results = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : getIdentities().entrySet()) {
+            // keys are SignalProtocolAddress.toString(), which is "name:deviceId"
+            String key = entry.getKey();
+            int separatorIndex = key.lastIndexOf(':');
+            try {
+                if (separatorIndex <= 0) throw new NumberFormatException("Invalid identity address " + key);
+                SignalProtocolAddress address = new SignalProtocolAddress(key.substring(0, separatorIndex), Integer.parseInt(key.substring(separatorIndex + 1)));
+                results.put(address, new IdentityKey(Curve.decodePoint(entry.getValue(), 0)));
+            } catch (InvalidKeyException | NumberFormatException e) {
+                logSender.reportError(e);
+            }
+        }
+        return results;
+    }
+
+    public List<PreKeyRecord> loadPreKeys() {
+        return new ArrayList<>(getPreKeys().values());
+    }
+
+    /**
+     * Returns ids of the recipient's devices with sessions, other than the primary device 1.
+     */
     @Override
-    public List<Integer> getSubDeviceSessions(String s) {
+    public List<Integer> getSubDeviceSessions(String name) {
+        loadSessions();
         List<Integer> results = new LinkedList<>();
-//        TODO: keep for later improvements
-//        String data = readFromStorage(SESSIONS_JSON_FILENAME);
-//        if (data == null || data.isEmpty()) return results;
-//        try {
-//            JSONObject dataJSONO = new JSONObject(data);
-//            Iterator<?> keys = dataJSONO.keys();
-//            while (keys.hasNext()){
-//                String key = (String)keys.next();
-//                if (dataJSONO.get(key) instanceof JSONObject) {
-//                    JSONObject sessionJSONO = (JSONObject) dataJSONO.get(key);
-//                    int addressId = sessionJSONO.getInt("addressId");
-//                    String name = sessionJSONO.getString("name");
-//                    if (name.equals(s) && addressId != 1){
-//                        addressId
-//                    }
-//                }
-//            }
-//        } catch (JSONException e) {
-//            logSender.reportError(e);
-//        } catch (IOException e) {
-//            logSender.reportError(e);
-//        }
+        Set<Integer> deviceIds = sessionDevices.get(name);
+        if (deviceIds == null) return results;
+        for (int deviceId : deviceIds) {
+            if (deviceId != 1) results.add(deviceId);
+        }
         return results;
     }
 
     @Override
     public void storeSession(SignalProtocolAddress address, SessionRecord record) {
-        String data = readFromStorage(SESSIONS_JSON_FILENAME);
-        if (data == null || data.isEmpty()) data = "{}";
-        try {
-            if (containsSession(address)) deleteSession(address);
-            JSONObject dataJSONO = new JSONObject(data);
-            dataJSONO.put(address.toString(), Base64.encodeBytes(record.serialize()));
-            writeToStorageFile(SESSIONS_JSON_FILENAME, dataJSONO.toString());
-        } catch (JSONException e) {
-            logSender.reportError(e);
+        byte[] sessionBytes = record.serialize();
+        loadSessions();
+        synchronized (sessionLocks.get(address)) {
+            sessions.put(address.toString(), sessionBytes);
+            addSessionDevice(address.getName(), address.getDeviceId());
+            commitSession(address, sessionBytes);
         }
     }
 
@@ -466,120 +1049,113 @@ public class ProtocolStorage implements SignalProtocolStore {
 
     @Override
     public void deleteSession(SignalProtocolAddress address) {
-        String data = readFromStorage(SESSIONS_JSON_FILENAME);
-        if (data == null || data.isEmpty()) data = "{}";
-        try {
-            JSONObject dataJSONO = new JSONObject(data);
-            if (dataJSONO.has(address.toString())){
-                dataJSONO.remove(address.toString());
-                writeToStorageFile(SESSIONS_JSON_FILENAME, dataJSONO.toString());
-            }
-        } catch (JSONException e) {
-            logSender.reportError(e);
+        loadSessions();
+        synchronized (sessionLocks.get(address)) {
+            sessions.put(address.toString(), NO_SESSION);
+            removeSessionDevice(address.getName(), address.getDeviceId());
+            commitSession(address, null);
         }
     }
 
+    /**
+     * Deletes sessions of every device of the recipient, visiting only devices listed in the index.
+     */
     @Override
     public void deleteAllSessions(String name) {
-//        TODO: keep for later improvements: search sessions through array by name
-//        String data = readFromStorage(SESSIONS_JSON_FILENAME);
-//        if (data == null || data.isEmpty()) data = "{}";
-//        try {
-//            JSONObject dataJSONO = new JSONObject(data);
-//            for (int i=0; i<dataJSONO.length(); i++){
-//                String recordString = dataJSONO.keys().;
-//            }
-//            writeToStorageFile(SESSIONS_JSON_FILENAME, dataJSONO.toString());
-//        } catch (JSONException e) {
-//            logSender.reportError(e);
-//        }
+        loadSessions();
+        synchronized (sessionLocks.get(name)) {
+            Set<Integer> deviceIds = sessionDevices.remove(name);
+            if (deviceIds == null) return;
+            for (int deviceId : deviceIds) {
+                SignalProtocolAddress address = new SignalProtocolAddress(name, deviceId);
+                sessions.put(address.toString(), NO_SESSION);
+                commitSession(address, null);
+            }
+        }
     }
 
     @Override
     public SignedPreKeyRecord loadSignedPreKey(int signedPreKeyId) {
-        String data = readFromStorage(SIGNED_PRE_KEYS_JSON_FILENAME);
-        if (data == null || data.isEmpty()) return null;
-        try {
-            JSONObject dataJSONO = new JSONObject(data);
-            if (dataJSONO.has(String.valueOf(signedPreKeyId))){
-                byte[] preKeyBytes = Base64.decode(dataJSONO.getString(String.valueOf(signedPreKeyId)));
-                return new SignedPreKeyRecord(preKeyBytes);
-            }
-        } catch (JSONException | IOException e) {
-            logSender.reportError(e);
-        }
-        return null;
+        return getSignedPreKeys().get(signedPreKeyId);
     }
 
     @Override
     public List<SignedPreKeyRecord> loadSignedPreKeys() {
-        List<SignedPreKeyRecord> results = new LinkedList<>();
-        String data = readFromStorage(SIGNED_PRE_KEYS_JSON_FILENAME);
-        if (data == null || data.isEmpty()) return results;
-        try {
-            JSONObject dataJSONO = new JSONObject(data);
-            Iterator<?> keys = dataJSONO.keys();
-            while (keys.hasNext()){
-                String key = (String)keys.next();
-                if (dataJSONO.get(key) instanceof String){
-                    byte[] preKeyBytes = Base64.decode(String.valueOf(dataJSONO.get(key)));
-                    results.add(new SignedPreKeyRecord(preKeyBytes));
-                }
-            }
-        } catch (JSONException | IOException e) {
-            logSender.reportError(e);
-        }
-        return results;
+        return new LinkedList<>(getSignedPreKeys().values());
     }
 
     @Override
     public void storeSignedPreKey(int signedPreKeyId, SignedPreKeyRecord record) {
-        String data = readFromStorage(SIGNED_PRE_KEYS_JSON_FILENAME);
-        if (data == null || data.isEmpty()) data = "{}";
-        try {
-            JSONObject dataJSONO = new JSONObject(data);
-            dataJSONO.put(String.valueOf(signedPreKeyId), Base64.encodeBytes(record.serialize()));
-            writeToStorageFile(SIGNED_PRE_KEYS_JSON_FILENAME, dataJSONO.toString());
-        } catch (JSONException e) {
-            logSender.reportError(e);
+        synchronized (signedPreKeysLock) {
+            Map<Integer, SignedPreKeyRecord> updatedSignedPreKeys = new HashMap<>(getSignedPreKeys());
+            updatedSignedPreKeys.put(signedPreKeyId, record);
+            signedPreKeys = Collections.unmodifiableMap(updatedSignedPreKeys);
+            commitRecords(SIGNED_PRE_KEYS_FILENAME, Collections.singletonMap(String.valueOf(signedPreKeyId), record.serialize()), true);
         }
     }
 
     @Override
     public boolean containsSignedPreKey(int signedPreKeyId) {
-        return loadSignedPreKey(signedPreKeyId) != null;
+        return getSignedPreKeys().containsKey(signedPreKeyId);
     }
 
     @Override
     public void removeSignedPreKey(int signedPreKeyId) {
-        String data = readFromStorage(SESSIONS_JSON_FILENAME);
-        if (data == null || data.isEmpty()) data = "{}";
-        try {
-            JSONObject dataJSONO = new JSONObject(data);
-            if (dataJSONO.has(String.valueOf(signedPreKeyId))){
-                dataJSONO.remove(String.valueOf(signedPreKeyId));
-                writeToStorageFile(SESSIONS_JSON_FILENAME, dataJSONO.toString());
-            }
-        } catch (JSONException e) {
-            logSender.reportError(e);
+        synchronized (signedPreKeysLock) {
+            if (!getSignedPreKeys().containsKey(signedPreKeyId)) return;
+            Map<Integer, SignedPreKeyRecord> updatedSignedPreKeys = new HashMap<>(getSignedPreKeys());
+            updatedSignedPreKeys.remove(signedPreKeyId);
+            signedPreKeys = Collections.unmodifiableMap(updatedSignedPreKeys);
+            commitRecords(SIGNED_PRE_KEYS_FILENAME, Collections.<String, byte[]>singletonMap(String.valueOf(signedPreKeyId), null), true);
         }
     }
 
+    /**
+     * Returns id of the last generated pre key. Kept as a persisted counter, stores written before the counter
+     * existed are scanned once and the result is persisted.
+     */
+    @Override
     public int getLastPreKeyIndex() {
-        String data = readFromStorage(PRE_KEYS_JSON_FILENAME);
-        if (data == null || data.isEmpty()) return 0;
-        try {
-            JSONObject dataJSONO = new JSONObject(data);
-            int keyId = 0;
-            Iterator<String> keys = dataJSONO.keys();
-            while (keys.hasNext()) {
-                int numericKeyIndex = Integer.parseInt(keys.next());
-                keyId = numericKeyIndex > keyId ? numericKeyIndex : keyId;
-            }
-            return keyId;
-        } catch (JSONException e) {
-            logSender.reportError(e);
+        byte[] lastPreKeyIdBytes = getMetadata().get(METADATA_LAST_PRE_KEY_ID);
+        if (lastPreKeyIdBytes != null) return ByteBuffer.wrap(lastPreKeyIdBytes).getInt();
+        int keyId = 0;
+        for (int numericKeyIndex : getPreKeys().keySet()) {
+            if (numericKeyIndex == Medium.MAX_VALUE) continue; // last resort key
+            keyId = numericKeyIndex > keyId ? numericKeyIndex : keyId;
+        }
+        synchronized (metadataLock) {
+            lastPreKeyIdBytes = getMetadata().get(METADATA_LAST_PRE_KEY_ID);
+            if (lastPreKeyIdBytes != null) return ByteBuffer.wrap(lastPreKeyIdBytes).getInt();
+            setLastPreKeyIndex(keyId);
+        }
+        return keyId;
+    }
+
+    /**
+     * Returns id the next pre key batch should start from, wrapping around before Medium.MAX_VALUE which is
+     * reserved for the last resort key.
+     */
+    @Override
+    public int getNextPreKeyIndex() {
+        return (getLastPreKeyIndex() % (Medium.MAX_VALUE - 1)) + 1;
+    }
+
+    private void updateLastPreKeyIndex(int preKeyId) {
+        if (preKeyId < 0 || preKeyId == Medium.MAX_VALUE) return;
+        synchronized (metadataLock) {
+            byte[] lastPreKeyIdBytes = getMetadata().get(METADATA_LAST_PRE_KEY_ID);
+            if (lastPreKeyIdBytes != null && ByteBuffer.wrap(lastPreKeyIdBytes).getInt() == preKeyId) return;
+            setLastPreKeyIndex(preKeyId);
         }
-        return 0;
+    }
+
+    /**
+     * Must be called holding metadataLock.
+     */
+    private void setLastPreKeyIndex(int preKeyId) {
+        Map<String, byte[]> updatedMetadata = new HashMap<>(getMetadata());
+        updatedMetadata.put(METADATA_LAST_PRE_KEY_ID, ByteBuffer.allocate(4).putInt(preKeyId).array());
+        metadata = Collections.unmodifiableMap(updatedMetadata);
+        writeMetadata();
     }
 }
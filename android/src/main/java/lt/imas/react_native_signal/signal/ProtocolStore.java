@@ -0,0 +1,59 @@
+package lt.imas.react_native_signal.signal;
+
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+
+import java.util.Collection;
+
+/**
+ * Signal protocol store with local account details, implemented by file based ProtocolStorage and
+ * SQLiteProtocolStorage. Backend is selected with "protocolStorage" key of init config.
+ */
+public interface ProtocolStore extends SignalProtocolStore {
+    void deleteAll();
+
+    boolean isLocalRegistered();
+
+    void storeLocalUsername(String username);
+
+    void storeIdentityKeyPair(IdentityKeyPair identityKeyPair);
+
+    void storeLocalRegistrationId(int registrationId);
+
+    void storeSignalingKey(String signalingKey);
+
+    void storeSignalResetVersion(int version);
+
+    String getLocalUsername();
+
+    String getSignalingKey();
+
+    int getSignalResetVersion();
+
+    void removeIdentity(SignalProtocolAddress address);
+
+    void storePreKeys(Collection<PreKeyRecord> records);
+
+    void removePreKeys(Collection<Integer> preKeyIds);
+
+    int getLastPreKeyIndex();
+
+    int getNextPreKeyIndex();
+
+    /**
+     * Blocks until all changes are written to disk.
+     */
+    void flush();
+
+    /**
+     * Writes pending changes and releases background resources, called when the store is replaced.
+     */
+    void close();
+
+    /**
+     * Lock to hold around SessionCipher and SessionBuilder calls for the address.
+     */
+    Object getSessionLock(SignalProtocolAddress address);
+}
@@ -0,0 +1,313 @@
+package lt.imas.react_native_signal.signal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import lt.imas.react_native_signal.helpers.FileUtil;
+
+/**
+ * Length-prefixed binary container used by ProtocolStorage to keep raw record bytes on disk.
+ *
+ * File layout: 4 byte magic "PSRF", 1 byte file version, followed by records.
+ * Record layout: 1 byte record type, 2 byte key length, key (UTF-8), 4 byte value length, 4 byte CRC32 of key
+ * and value, value. Lengths sit in front of the payload, so a reader can skip any record without decoding it.
+ *
+ * Same layout is used for write-ahead journals, where records are appended in order and removal records
+ * (empty value) delete the key again when the journal is replayed.
+ */
+public class RecordFile {
+    private LogSender logSender = LogSender.getInstance();
+
+    private static final byte[] MAGIC = {'P', 'S', 'R', 'F'};
+    private static final int FILE_VERSION = 1;
+    private static final int RECORD_TYPE_PUT = 1;
+    private static final int RECORD_TYPE_REMOVE = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private File file;
+
+    public RecordFile(File file) {
+        this.file = file;
+        FileUtil.restoreBackup(file);
+    }
+
+    public boolean exists() {
+        return file.exists();
+    }
+
+    public long length() {
+        return file.length();
+    }
+
+    /**
+     * Checks for container magic, files written before this format was introduced hold plain bytes instead.
+     */
+    public boolean isRecordFile() {
+        if (!file.exists() || file.length() < MAGIC.length + 1) return false;
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                return readFileHeader(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logSender.reportError(e);
+            return false;
+        }
+    }
+
+    public Map<String, byte[]> readAll() {
+        Map<String, byte[]> records = new LinkedHashMap<>();
+        applyTo(records);
+        return records;
+    }
+
+    /**
+     * Applies records in file order on top of given records, used to replay a journal over its snapshot.
+     */
+    public void applyTo(Map<String, byte[]> records) {
+        if (!file.exists()) return;
+        try {
+            RecordInputStream in = new RecordInputStream(file);
+            try {
+                if (!readFileHeader(in)) throw new IOException("Not a record file: " + file.getName());
+                while (true) {
+                    Record record = readRecord(in, null);
+                    if (record == null) break;
+                    if (record.removed) {
+                        records.remove(record.key);
+                    } else if (record.value != null) {
+                        records.put(record.key, record.value);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logSender.reportError(e);
+        }
+    }
+
+    /**
+     * Looks up single record by skipping over the values of every record in front of it.
+     */
+    public byte[] find(String key) {
+        if (!file.exists()) return null;
+        try {
+            RecordInputStream in = new RecordInputStream(file);
+            try {
+                if (!readFileHeader(in)) throw new IOException("Not a record file: " + file.getName());
+                while (true) {
+                    Record record = readRecord(in, key);
+                    if (record == null) return null;
+                    if (record.value != null && !record.removed) return record.value;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logSender.reportError(e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes all records into a temp file and atomically renames it over this file.
+     */
+    public void writeAll(Map<String, byte[]> records) throws IOException {
+        file.getParentFile().mkdirs();
+        File tempFile = FileUtil.getTempFile(file);
+        FileOutputStream fos = new FileOutputStream(tempFile);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.write(MAGIC);
+            out.writeByte(FILE_VERSION);
+            for (Map.Entry<String, byte[]> entry : records.entrySet()) {
+                writeRecord(out, entry.getKey(), entry.getValue());
+            }
+            out.flush();
+        } finally {
+            FileUtil.syncAndClose(fos);
+        }
+        FileUtil.replace(tempFile, file);
+    }
+
+    /**
+     * Appends records to the end of the file with one sequential write, null value appends a removal record.
+     */
+    public void append(Map<String, byte[]> records) throws IOException {
+        file.getParentFile().mkdirs();
+        boolean writeHeader = !file.exists() || file.length() == 0;
+        FileOutputStream fos = new FileOutputStream(file, true);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            if (writeHeader) {
+                out.write(MAGIC);
+                out.writeByte(FILE_VERSION);
+            }
+            for (Map.Entry<String, byte[]> entry : records.entrySet()) {
+                writeRecord(out, entry.getKey(), entry.getValue());
+            }
+            out.flush();
+        } finally {
+            FileUtil.syncAndClose(fos);
+        }
+    }
+
+    public void delete() {
+        file.delete();
+    }
+
+    private static void writeRecord(DataOutputStream out, String key, byte[] value) throws IOException {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        out.writeByte(value != null ? RECORD_TYPE_PUT : RECORD_TYPE_REMOVE);
+        if (value == null) value = new byte[0];
+        out.writeShort(keyBytes.length);
+        out.write(keyBytes);
+        out.writeInt(value.length);
+        out.writeInt((int) crc(keyBytes, value));
+        out.write(value);
+    }
+
+    private boolean readFileHeader(DataInputStream in) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        try {
+            in.readFully(magic);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (magic[i] != MAGIC[i]) return false;
+            }
+            return in.readUnsignedByte() == FILE_VERSION;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads next record or returns null at the end of valid data. When wantedKey is set, values of other records
+     * are skipped and returned with null value. Truncated tail, a length running past the end of file and a record
+     * failing its checksum all end the valid data, so nothing behind a damaged record is applied.
+     */
+    private Record readRecord(RecordInputStream in, String wantedKey) throws IOException {
+        try {
+            int type = in.readUnsignedByte();
+            if (type != RECORD_TYPE_PUT && type != RECORD_TYPE_REMOVE) throw new IOException("Unsupported record type " + type);
+            byte[] keyBytes = new byte[in.readUnsignedShort()];
+            in.readFully(keyBytes);
+            int valueLength = in.readInt();
+            long expectedCrc = in.readInt() & 0xFFFFFFFFL;
+            if (valueLength < 0 || valueLength > in.remaining()) {
+                // torn append leaves a length longer than the rest of the file, a negative one is corruption
+                if (valueLength < 0) logSender.reportError(new IOException("Invalid record length: " + file.getName()));
+                return null;
+            }
+            Record record = new Record(new String(keyBytes, UTF_8));
+            if (wantedKey != null && !wantedKey.equals(record.key)) {
+                skipFully(in, valueLength);
+                return record;
+            }
+            byte[] value = new byte[valueLength];
+            in.readFully(value);
+            if (crc(keyBytes, value) != expectedCrc) {
+                logSender.reportError(new IOException("Record checksum mismatch: " + file.getName()));
+                return null;
+            }
+            record.removed = type == RECORD_TYPE_REMOVE;
+            record.value = value;
+            return record;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            int skipped = in.skipBytes(remaining);
+            if (skipped <= 0) throw new EOFException();
+            remaining -= skipped;
+        }
+    }
+
+    private static long crc(byte[] keyBytes, byte[] value) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(keyBytes);
+        crc32.update(value);
+        return crc32.getValue();
+    }
+
+    /**
+     * Buffered file input that knows how many bytes are left, so lengths read from disk can be checked.
+     */
+    private static class RecordInputStream extends DataInputStream {
+        private final PositionInputStream positionIn;
+        private final long length;
+
+        private RecordInputStream(File file) throws IOException {
+            this(new PositionInputStream(new BufferedInputStream(new FileInputStream(file))), file.length());
+        }
+
+        private RecordInputStream(PositionInputStream positionIn, long length) {
+            super(positionIn);
+            this.positionIn = positionIn;
+            this.length = length;
+        }
+
+        private long remaining() {
+            return length - positionIn.position;
+        }
+    }
+
+    private static class PositionInputStream extends FilterInputStream {
+        private long position;
+
+        private PositionInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) position++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) position += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            if (skipped > 0) position += skipped;
+            return skipped;
+        }
+    }
+
+    private static class Record {
+        private String key;
+        private byte[] value;
+        private boolean removed;
+
+        private Record(String key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package lt.imas.react_native_signal.signal;
+
+import android.content.Context;
+
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.InvalidKeyException;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+import org.whispersystems.libsignal.util.Medium;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SQLite backed protocol store. Sessions and identities are keyed by (name, device_id), pre keys by id, local
+ * account details live in a single row of "local" table. Database runs in WAL mode and all statements are
+ * compiled once by the ProtocolDatabase it runs on.
+ */
+public class SQLiteProtocolStorage implements ProtocolStore {
+    private LogSender logSender = LogSender.getInstance();
+
+    public static final String DATABASE_NAME = "signal_protocol.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final int PRIMARY_DEVICE_ID = 1;
+
+    private ProtocolDatabase db;
+
+    private final AddressLocks sessionLocks = new AddressLocks();
+
+    public SQLiteProtocolStorage(Context context) {
+        this(new AndroidProtocolDatabase(context.getDatabasePath(DATABASE_NAME)));
+    }
+
+    public SQLiteProtocolStorage(ProtocolDatabase db) {
+        this.db = db;
+        updateSchema();
+    }
+
+    /**
+     * Creates or upgrades the schema in one transaction, so a failed upgrade leaves the database at its previous
+     * version. Databases created before the schema was versioned here carry the same version, it was kept by
+     * SQLiteOpenHelper in the same header field.
+     */
+    private void updateSchema() {
+        db.beginTransaction();
+        try {
+            int version = db.getVersion();
+            if (version > DATABASE_VERSION) {
+                throw new IllegalStateException("Protocol database version " + version + " is newer than supported " + DATABASE_VERSION);
+            }
+            if (version == 0) {
+                createSchema();
+            } else if (version < DATABASE_VERSION) {
+                upgradeSchema(version);
+            }
+            db.setVersion(DATABASE_VERSION);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void createSchema() {
+        db.execute("CREATE TABLE local ("
+                + "id INTEGER PRIMARY KEY CHECK (id = 0), "
+                + "username TEXT, "
+                + "registration_id INTEGER, "
+                + "identity_key_pair BLOB, "
+                + "signaling_key TEXT, "
+                + "signal_reset_version INTEGER NOT NULL DEFAULT 0, "
+                + "last_pre_key_id INTEGER NOT NULL DEFAULT 0)");
+        db.execute("INSERT INTO local (id) VALUES (0)");
+        db.execute("CREATE TABLE identities ("
+                + "name TEXT NOT NULL, "
+                + "device_id INTEGER NOT NULL, "
+                + "identity_key BLOB NOT NULL, "
+                + "PRIMARY KEY (name, device_id))");
+        db.execute("CREATE TABLE sessions ("
+                + "name TEXT NOT NULL, "
+                + "device_id INTEGER NOT NULL, "
+                + "record BLOB NOT NULL, "
+                + "PRIMARY KEY (name, device_id))");
+        db.execute("CREATE TABLE prekeys (id INTEGER PRIMARY KEY, record BLOB NOT NULL)");
+        db.execute("CREATE TABLE signed_prekeys (id INTEGER PRIMARY KEY, record BLOB NOT NULL)");
+    }
+
+    /**
+     * Brings a database from oldVersion up to DATABASE_VERSION. Every schema change bumps DATABASE_VERSION and
+     * adds one step here guarded by the version it upgrades from, for example
+     * "if (oldVersion < 2) db.execute("ALTER TABLE ...")", so databases several versions behind run each step in
+     * order. createSchema() always creates the latest schema. Version 1 is the first one, nothing to do yet.
+     */
+    private void upgradeSchema(int oldVersion) {
+    }
+
+    /**
+     * Copies a file store into this database in one transaction, so an existing install switching backend keeps
+     * its account, sessions and keys. Copies nothing and returns false when the file store has no registered
+     * account or this database already has one.
+     */
+    public boolean importFrom(ProtocolStorage source) {
+        if (!source.isLocalRegistered() || isLocalRegistered() || !getLocalUsername().isEmpty()) return false;
+        source.flush();
+        db.beginTransaction();
+        try {
+            for (Map.Entry<SignalProtocolAddress, IdentityKey> entry : source.loadIdentities().entrySet()) {
+                saveIdentity(entry.getKey(), entry.getValue());
+            }
+            storePreKeys(source.loadPreKeys());
+            for (SignedPreKeyRecord record : source.loadSignedPreKeys()) {
+                storeSignedPreKey(record.getId(), record);
+            }
+            for (SignalProtocolAddress address : source.getSessionAddresses()) {
+                storeSession(address, source.loadSession(address));
+            }
+            String username = source.getLocalUsername();
+            db.execute("UPDATE local SET username = ?, registration_id = ?, identity_key_pair = ?, signaling_key = ?, "
+                            + "signal_reset_version = ?, last_pre_key_id = ? WHERE id = 0",
+                    username.isEmpty() ? null : username,
+                    source.getLocalRegistrationId(),
+                    source.getIdentityKeyPair().serialize(),
+                    source.getSignalingKey(),
+                    source.getSignalResetVersion(),
+                    source.getLastPreKeyIndex());
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return true;
+    }
+
+    @Override
+    public void deleteAll() {
+        db.beginTransaction();
+        try {
+            db.execute("DELETE FROM identities");
+            db.execute("DELETE FROM sessions");
+            db.execute("DELETE FROM prekeys");
+            db.execute("DELETE FROM signed_prekeys");
+            db.execute("DELETE FROM local");
+            db.execute("INSERT INTO local (id) VALUES (0)");
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public boolean isLocalRegistered() {
+        Long registered = db.queryLong("SELECT identity_key_pair IS NOT NULL AND registration_id IS NOT NULL FROM local WHERE id = 0");
+        return registered != null && registered == 1;
+    }
+
+    @Override
+    public void storeLocalUsername(String username) {
+        db.execute("UPDATE local SET username = ? WHERE id = 0 AND username IS NULL", username);
+    }
+
+    @Override
+    public void storeIdentityKeyPair(IdentityKeyPair identityKeyPair) {
+        db.execute("UPDATE local SET identity_key_pair = ? WHERE id = 0 AND identity_key_pair IS NULL", identityKeyPair.serialize());
+    }
+
+    @Override
+    public void storeLocalRegistrationId(int registrationId) {
+        db.execute("UPDATE local SET registration_id = ? WHERE id = 0 AND registration_id IS NULL", registrationId);
+    }
+
+    @Override
+    public void storeSignalingKey(String signalingKey) {
+        db.execute("UPDATE local SET signaling_key = ? WHERE id = 0", signalingKey);
+    }
+
+    @Override
+    public void storeSignalResetVersion(int version) {
+        db.execute("UPDATE local SET signal_reset_version = ? WHERE id = 0", version);
+    }
+
+    @Override
+    public IdentityKeyPair getIdentityKeyPair() {
+        byte[] keyPairBytes = db.queryBlob("SELECT identity_key_pair FROM local WHERE id = 0");
+        if (keyPairBytes == null) return null;
+        try {
+            return new IdentityKeyPair(keyPairBytes);
+        } catch (InvalidKeyException e) {
+            logSender.reportError(e);
+            return null;
+        }
+    }
+
+    @Override
+    public int getLocalRegistrationId() {
+        Long registrationId = db.queryLong("SELECT registration_id FROM local WHERE id = 0");
+        return registrationId != null ? registrationId.intValue() : 0;
+    }
+
+    @Override
+    public String getLocalUsername() {
+        String username = db.queryString("SELECT username FROM local WHERE id = 0");
+        return username != null ? username : "";
+    }
+
+    @Override
+    public String getSignalingKey() {
+        return db.queryString("SELECT signaling_key FROM local WHERE id = 0");
+    }
+
+    @Override
+    public int getSignalResetVersion() {
+        Long signalResetVersion = db.queryLong("SELECT signal_reset_version FROM local WHERE id = 0");
+        return signalResetVersion != null ? signalResetVersion.intValue() : 0;
+    }
+
+    @Override
+    public boolean saveIdentity(SignalProtocolAddress address, IdentityKey identityKey) {
+        db.execute("INSERT OR REPLACE INTO identities (name, device_id, identity_key) VALUES (?, ?, ?)",
+                address.getName(), address.getDeviceId(), identityKey.serialize());
+        return true;
+    }
+
+    @Override
+    public void removeIdentity(SignalProtocolAddress address) {
+        db.execute("DELETE FROM identities WHERE name = ? AND device_id = ?", address.getName(), address.getDeviceId());
+    }
+
+    @Override
+    public boolean isTrustedIdentity(SignalProtocolAddress address, IdentityKey identityKey, Direction direction) {
+        byte[] identityKeyBytes = db.queryBlob("SELECT identity_key FROM identities WHERE name = ? AND device_id = ?",
+                address.getName(), address.getDeviceId());
+        if (identityKeyBytes == null) return true; // trust on first use
+        return Arrays.equals(identityKeyBytes, identityKey.serialize());
+    }
+
+    @Override
+    public PreKeyRecord loadPreKey(int preKeyId) {
+        byte[] preKeyBytes = db.queryBlob("SELECT record FROM prekeys WHERE id = ?", preKeyId);
+        if (preKeyBytes == null) return null;
+        try {
+            return new PreKeyRecord(preKeyBytes);
+        } catch (IOException e) {
+            logSender.reportError(e);
+            return null;
+        }
+    }
+
+    @Override
+    public void storePreKey(int preKeyId, PreKeyRecord record) {
+        db.execute("INSERT OR REPLACE INTO prekeys (id, record) VALUES (?, ?)", preKeyId, record.serialize());
+        if (preKeyId != Medium.MAX_VALUE) db.execute("UPDATE local SET last_pre_key_id = ? WHERE id = 0", preKeyId);
+    }
+
+    @Override
+    public void storePreKeys(Collection<PreKeyRecord> records) {
+        if (records.isEmpty()) return;
+        int lastPreKeyId = -1;
+        db.beginTransaction();
+        try {
+            for (PreKeyRecord record : records) {
+                db.execute("INSERT OR REPLACE INTO prekeys (id, record) VALUES (?, ?)", record.getId(), record.serialize());
+                if (record.getId() != Medium.MAX_VALUE) lastPreKeyId = record.getId();
+            }
+            if (lastPreKeyId >= 0) db.execute("UPDATE local SET last_pre_key_id = ? WHERE id = 0", lastPreKeyId);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public boolean containsPreKey(int preKeyId) {
+        return db.queryLong("SELECT 1 FROM prekeys WHERE id = ?", preKeyId) != null;
+    }
+
+    @Override
+    public void removePreKey(int preKeyId) {
+        db.execute("DELETE FROM prekeys WHERE id = ?", preKeyId);
+    }
+
+    @Override
+    public void removePreKeys(Collection<Integer> preKeyIds) {
+        db.beginTransaction();
+        try {
+            for (int preKeyId : preKeyIds) {
+                db.execute("DELETE FROM prekeys WHERE id = ?", preKeyId);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public int getLastPreKeyIndex() {
+        Long lastPreKeyId = db.queryLong("SELECT last_pre_key_id FROM local WHERE id = 0");
+        return lastPreKeyId != null ? lastPreKeyId.intValue() : 0;
+    }
+
+    @Override
+    public int getNextPreKeyIndex() {
+        return (getLastPreKeyIndex() % (Medium.MAX_VALUE - 1)) + 1;
+    }
+
+    /**
+     * Every write is committed by SQLite before returning, nothing is left to flush.
+     */
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+        db.close();
+    }
+
+    @Override
+    public Object getSessionLock(SignalProtocolAddress address) {
+        return sessionLocks.get(address);
+    }
+
+    @Override
+    public SessionRecord loadSession(SignalProtocolAddress address) {
+        byte[] sessionBytes = db.queryBlob("SELECT record FROM sessions WHERE name = ? AND device_id = ?",
+                address.getName(), address.getDeviceId());
+        if (sessionBytes != null) {
+            try {
+                return new SessionRecord(sessionBytes);
+            } catch (IOException e) {
+                logSender.reportError(e);
+            }
+        }
+        return new SessionRecord();
+    }
+
+    @Override
+    public List<Integer> getSubDeviceSessions(String name) {
+        List<Integer> results = new LinkedList<>();
+        for (long deviceId : db.queryLongs("SELECT device_id FROM sessions WHERE name = ? AND device_id != ?", name, PRIMARY_DEVICE_ID)) {
+            results.add((int) deviceId);
+        }
+        return results;
+    }
+
+    @Override
+    public void storeSession(SignalProtocolAddress address, SessionRecord record) {
+        db.execute("INSERT OR REPLACE INTO sessions (name, device_id, record) VALUES (?, ?, ?)",
+                address.getName(), address.getDeviceId(), record.serialize());
+    }
+
+    @Override
+    public boolean containsSession(SignalProtocolAddress address) {
+        return !loadSession(address).isFresh();
+    }
+
+    @Override
+    public void deleteSession(SignalProtocolAddress address) {
+        db.execute("DELETE FROM sessions WHERE name = ? AND device_id = ?", address.getName(), address.getDeviceId());
+    }
+
+    @Override
+    public void deleteAllSessions(String name) {
+        db.execute("DELETE FROM sessions WHERE name = ?", name);
+    }
+
+    @Override
+    public SignedPreKeyRecord loadSignedPreKey(int signedPreKeyId) {
+        byte[] preKeyBytes = db.queryBlob("SELECT record FROM signed_prekeys WHERE id = ?", signedPreKeyId);
+        if (preKeyBytes == null) return null;
+        try {
+            return new SignedPreKeyRecord(preKeyBytes);
+        } catch (IOException e) {
+            logSender.reportError(e);
+            return null;
+        }
+    }
+
+    @Override
+    public List<SignedPreKeyRecord> loadSignedPreKeys() {
+        List<SignedPreKeyRecord> results = new LinkedList<>();
+        for (byte[] recordBytes : db.queryBlobs("SELECT record FROM signed_prekeys")) {
+            try {
+                results.add(new SignedPreKeyRecord(recordBytes));
+            } catch (IOException e) {
+                logSender.reportError(e);
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public void storeSignedPreKey(int signedPreKeyId, SignedPreKeyRecord record) {
+        db.execute("INSERT OR REPLACE INTO signed_prekeys (id, record) VALUES (?, ?)", signedPreKeyId, record.serialize());
+    }
+
+    @Override
+    public boolean containsSignedPreKey(int signedPreKeyId) {
+        return db.queryLong("SELECT 1 FROM signed_prekeys WHERE id = ?", signedPreKeyId) != null;
+    }
+
+    @Override
+    public void removeSignedPreKey(int signedPreKeyId) {
+        db.execute("DELETE FROM signed_prekeys WHERE id = ?", signedPreKeyId);
+    }
+}
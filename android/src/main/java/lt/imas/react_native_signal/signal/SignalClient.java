@@ -1,8 +1,5 @@
 package lt.imas.react_native_signal.signal;
 
-import android.os.Handler;
-import android.os.Looper;
-
 import com.facebook.react.bridge.Promise;
 
 import org.json.JSONArray;
@@ -36,7 +33,10 @@ import org.whispersystems.libsignal.util.Medium;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import lt.imas.react_native_signal.helpers.Base64;
 import okhttp3.Call;
@@ -60,15 +60,48 @@ public class SignalClient {
     public final String URL_GCM = "/v1/accounts/gcm";
 
     private SignalServer signalServer;
-    private ProtocolStorage signalProtocolStore;
+    private ProtocolStore signalProtocolStore;
     private MessageStorage messageStorage;
     private int signalResetVersion;
 
-    public SignalClient(SignalServer signalServer, ProtocolStorage protocolStorage, MessageStorage messageStorage, int signalResetVersion) {
+    // server responses are handled here instead of the main thread, tasks of one contact run in order
+    private final TaskExecutor taskExecutor;
+    private final String LOCAL_TASK_KEY = ""; // account level tasks, no contact is named empty
+
+    public SignalClient(SignalServer signalServer, ProtocolStore protocolStorage, MessageStorage messageStorage, int signalResetVersion) {
         this.signalServer = signalServer;
         this.signalProtocolStore = protocolStorage;
         this.messageStorage = messageStorage;
         this.signalResetVersion = signalResetVersion;
+        this.taskExecutor = new TaskExecutor(Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors())));
+    }
+
+    /**
+     * Stops handling of server responses, called when the client is replaced.
+     */
+    public void shutdown() {
+        taskExecutor.shutdown();
+    }
+
+    /**
+     * Promises are settled on the main thread, which is all that is left there.
+     */
+    private void resolve(final Promise promise, final Object value) {
+        signalServer.mainThreadCallback(new Runnable() {
+            @Override
+            public void run() {
+                promise.resolve(value);
+            }
+        });
+    }
+
+    private void reject(final Promise promise, final String code, final String message) {
+        signalServer.mainThreadCallback(new Runnable() {
+            @Override
+            public void run() {
+                promise.reject(code, message);
+            }
+        });
     }
 
     public void registerPreKeys(final Promise promise, int start, int count){
@@ -78,26 +111,26 @@ public class SignalClient {
             signalProtocolStore.storeIdentityKeyPair(identityKeyPair);
         }
         PreKeyRecord lastResortKey = null;
-        if (signalProtocolStore.containsPreKey(Medium.MAX_VALUE)) {
-            lastResortKey = signalProtocolStore.loadPreKey(Medium.MAX_VALUE);
-        } else {
-            ECKeyPair keyPair = Curve.generateKeyPair();
-            lastResortKey = new PreKeyRecord(Medium.MAX_VALUE, keyPair);
-        }
-
         JSONArray preKeysJSONA = new JSONArray();
         try {
+            if (signalProtocolStore.containsPreKey(Medium.MAX_VALUE)) {
+                lastResortKey = signalProtocolStore.loadPreKey(Medium.MAX_VALUE);
+            } else {
+                ECKeyPair keyPair = Curve.generateKeyPair();
+                lastResortKey = new PreKeyRecord(Medium.MAX_VALUE, keyPair);
+            }
+
             List<PreKeyRecord> preKeys = KeyHelper.generatePreKeys(start, count);
             for (PreKeyRecord preKeyRecord : preKeys){
                 preKeysJSONA.put(new JSONObject()
                         .put("keyId", preKeyRecord.getId())
                         .put("publicKey", Base64.encodeBytes(preKeyRecord.getKeyPair().getPublicKey().serialize()))
                 );
-                signalProtocolStore.storePreKey(preKeyRecord.getId(), preKeyRecord);
             }
+            signalProtocolStore.storePreKeys(preKeys);
         } catch (Throwable e) {
             logSender.reportError(e);
-            promise.reject(ERR_NATIVE_FAILED, e.getMessage());
+            reject(promise, ERR_NATIVE_FAILED, e.getMessage());
             return;
         }
         try {
@@ -122,10 +155,10 @@ public class SignalClient {
                 signalServer.call(URL_KEYS, "PUT", requestJSON, new Callback() {
                     @Override
                     public void onFailure(Call call, final IOException e) {
-                        signalServer.mainThreadCallback(new Runnable() {
+                        taskExecutor.execute(LOCAL_TASK_KEY, new Runnable() {
                             @Override
                             public void run() {
-                                promise.reject(ERR_SERVER_FAILED, e.getMessage());
+                                reject(promise, ERR_SERVER_FAILED, e.getMessage());
                                 logSender.reportError(e);
                             }
                         });
@@ -133,20 +166,20 @@ public class SignalClient {
 
                     @Override
                     public void onResponse(Call call, Response response) {
-                        signalServer.mainThreadCallback(new Runnable() {
+                        taskExecutor.execute(LOCAL_TASK_KEY, new Runnable() {
                             @Override
                             public void run() {
-                                promise.resolve("ok");
+                                resolve(promise, "ok");
                             }
                         });
                     }
                 });
             } else {
-                promise.reject(ERR_NATIVE_FAILED, "lastResortKey failed");
+                reject(promise, ERR_NATIVE_FAILED, "lastResortKey failed");
             }
         } catch (Throwable e) {
             logSender.reportError(e);
-            promise.reject(ERR_NATIVE_FAILED, e.getMessage());
+            reject(promise, ERR_NATIVE_FAILED, e.getMessage());
         }
     }
 
@@ -162,10 +195,10 @@ public class SignalClient {
         signalServer.call(url, "PUT", requestJSON, new Callback() {
             @Override
             public void onFailure(Call call, final IOException e) {
-                signalServer.mainThreadCallback(new Runnable() {
+                taskExecutor.execute(username, new Runnable() {
                     @Override
                     public void run() {
-                        promise.reject(ERR_SERVER_FAILED, e.getMessage());
+                        reject(promise, ERR_SERVER_FAILED, e.getMessage());
                         logSender.reportError(e);
                     }
                 });
@@ -174,11 +207,11 @@ public class SignalClient {
             @Override
             public void onResponse(Call call, final Response response) {
                 final ServerResponse serverResponse = new ServerResponse(response);
-                signalServer.mainThreadCallback(new Runnable() {
+                taskExecutor.execute(username, new Runnable() {
                     @Override
                     public void run() {
                         if (response.code() == 404){
-                            promise.reject(ERR_ADD_CONTACT_FAILED, String.format("User %s doesn't exist.", username));
+                            reject(promise, ERR_ADD_CONTACT_FAILED, String.format("User %s doesn't exist.", username));
                             return;
                         }
                         try {
@@ -186,19 +219,13 @@ public class SignalClient {
                             JSONArray devicesJSONA = responseJSONO.optJSONArray("devices");
                             if (devicesJSONA == null || devicesJSONA.length() == 0){
                                 // remote user haven't provided any keys to Signal back-end or didn't complete Signal server registration
-                                promise.reject(ERR_ADD_CONTACT_FAILED, String.format("User %s doesn't exist.", username));
+                                reject(promise, ERR_ADD_CONTACT_FAILED, String.format("User %s doesn't exist.", username));
                                 return;
                             }
                             JSONObject firstDevice = devicesJSONA.getJSONObject(0);
 
                             SignalProtocolAddress address = new SignalProtocolAddress(username, 1);
 
-                            // force delete: anytime when method is requested it will add new Identity Key and new Pre Key
-                            signalProtocolStore.removeIdentity(address);
-                            signalProtocolStore.deleteSession(address);
-
-                            SessionBuilder sessionBuilder = new SessionBuilder(signalProtocolStore, address);
-
                             JSONObject preKeyJSONO = firstDevice.getJSONObject("preKey");
                             String preKeyPublicString = preKeyJSONO.getString("publicKey");
                             ECPublicKey preKeyPublic = Curve.decodePoint(Base64.decode(preKeyPublicString), 0);
@@ -221,14 +248,21 @@ public class SignalClient {
                                 Base64.decode(signedPreKeySignature),
                                 identityKey
                             );
-                            sessionBuilder.process(preKeyBundle);
-                            if (promise != null) promise.resolve("ok");
-                            if (callback != null) new Handler(Looper.getMainLooper()).post(callback);
+                            synchronized (signalProtocolStore.getSessionLock(address)) {
+                                // force delete: anytime when method is requested it will add new Identity Key and new Pre Key
+                                signalProtocolStore.removeIdentity(address);
+                                signalProtocolStore.deleteSession(address);
+
+                                SessionBuilder sessionBuilder = new SessionBuilder(signalProtocolStore, address);
+                                sessionBuilder.process(preKeyBundle);
+                            }
+                            if (promise != null) resolve(promise, "ok");
+                            if (callback != null) taskExecutor.execute(username, callback);
                         } catch (JSONException
                                 | UntrustedIdentityException
                                 | InvalidKeyException
                                 | IOException e) {
-                            if (promise != null) promise.reject(ERR_NATIVE_FAILED, e.getMessage());
+                            if (promise != null) reject(promise, ERR_NATIVE_FAILED, e.getMessage());
                             logSender.reportError(e);
                         }
                     }
@@ -245,10 +279,10 @@ public class SignalClient {
         signalServer.call(URL_KEYS, "GET", new Callback() {
             @Override
             public void onFailure(Call call, final IOException e) {
-                signalServer.mainThreadCallback(new Runnable() {
+                taskExecutor.execute(LOCAL_TASK_KEY, new Runnable() {
                     @Override
                     public void run() {
-                        promise.reject(ERR_SERVER_FAILED, e.getMessage());
+                        reject(promise, ERR_SERVER_FAILED, e.getMessage());
                         logSender.reportError(e);
                     }
                 });
@@ -258,15 +292,15 @@ public class SignalClient {
             public void onResponse(Call call, Response response) {
                 final ServerResponse serverResponse = new ServerResponse(response);
                 final int responseCode = response.code();
-                signalServer.mainThreadCallback(new Runnable() {
+                taskExecutor.execute(LOCAL_TASK_KEY, new Runnable() {
                     @Override
                     public void run() {
                         int preKeyCount = serverResponse.getResponseJSONObject().optInt("count", 0);
                         if (preKeyCount <= 10 && responseCode == 200) {
                             int count = 100 - preKeyCount;
-                            registerPreKeys(promise, signalProtocolStore.getLastPreKeyIndex()+1, count);
+                            registerPreKeys(promise, signalProtocolStore.getNextPreKeyIndex(), count);
                         } else {
-                            promise.resolve("ok");
+                            resolve(promise, "ok");
                         }
                     }
                 });
@@ -291,16 +325,16 @@ public class SignalClient {
                 requestJSON.put("voice", false);
             } catch (JSONException e) {
                 logSender.reportError(e);
-                promise.reject(ERR_NATIVE_FAILED, e.getMessage());
+                reject(promise, ERR_NATIVE_FAILED, e.getMessage());
                 return;
             }
             signalServer.call(URL_ACCOUNTS + "/attributes", "PUT", requestJSON, new Callback() {
                 @Override
                 public void onFailure(Call call, final IOException e) {
-                    signalServer.mainThreadCallback(new Runnable() {
+                    taskExecutor.execute(LOCAL_TASK_KEY, new Runnable() {
                         @Override
                         public void run() {
-                            promise.reject(ERR_SERVER_FAILED, e.getMessage());
+                            reject(promise, ERR_SERVER_FAILED, e.getMessage());
                             logSender.reportError(e);
                         }
                     });
@@ -308,10 +342,10 @@ public class SignalClient {
 
                 @Override
                 public void onResponse(Call call, Response response) {
-                    signalServer.mainThreadCallback(new Runnable() {
+                    taskExecutor.execute(LOCAL_TASK_KEY, new Runnable() {
                         @Override
                         public void run() {
-                            promise.resolve("ok");
+                            resolve(promise, "ok");
                         }
                     });
                 }
@@ -333,16 +367,16 @@ public class SignalClient {
             requestJSON.put("voice", false);
         } catch (JSONException e) {
             logSender.reportError(e);
-            promise.reject(ERR_NATIVE_FAILED, e.getMessage());
+            reject(promise, ERR_NATIVE_FAILED, e.getMessage());
             return;
         }
         signalServer.call(URL_ACCOUNTS, "PUT", requestJSON, new Callback() {
             @Override
             public void onFailure(Call call, final IOException e) {
-                signalServer.mainThreadCallback(new Runnable() {
+                taskExecutor.execute(LOCAL_TASK_KEY, new Runnable() {
                     @Override
                     public void run() {
-                        promise.reject(ERR_SERVER_FAILED, e.getMessage());
+                        reject(promise, ERR_SERVER_FAILED, e.getMessage());
                         logSender.reportError(e);
                     }
                 });
@@ -351,7 +385,7 @@ public class SignalClient {
             @Override
             public void onResponse(Call call, Response response) {
                 final ServerResponse serverResponse = new ServerResponse(response);
-                signalServer.mainThreadCallback(new Runnable() {
+                taskExecutor.execute(LOCAL_TASK_KEY, new Runnable() {
                     @Override
                     public void run() {
                         registerPreKeys(promise, 0, 100);
@@ -365,10 +399,10 @@ public class SignalClient {
         signalServer.call(URL_MESSAGES, "GET", new Callback() {
             @Override
             public void onFailure(Call call, final IOException e) {
-                signalServer.mainThreadCallback(new Runnable() {
+                taskExecutor.execute(username != null ? username : LOCAL_TASK_KEY, new Runnable() {
                     @Override
                     public void run() {
-                        promise.reject(ERR_SERVER_FAILED, e.getMessage());
+                        reject(promise, ERR_SERVER_FAILED, e.getMessage());
                         logSender.reportError(e);
                     }
                 });
@@ -377,13 +411,16 @@ public class SignalClient {
             @Override
             public void onResponse(Call call, Response response) {
                 final ServerResponse serverResponse = new ServerResponse(response);
-                signalServer.mainThreadCallback(new Runnable() {
+                taskExecutor.execute(username != null ? username : LOCAL_TASK_KEY, new Runnable() {
                     @Override
                     public void run() {
                         try {
                             JSONArray messagesJSONA = serverResponse.getResponseJSONObject().optJSONArray("messages");
                             JSONArray receivedMessagesJSONA = new JSONArray();
                             JSONObject unreadJSONO = new JSONObject();
+                            // decrypted messages are stored together once the batch is processed
+                            List<JSONObject> newMessages = new ArrayList<>();
+                            List<Long> processedTimestamps = new ArrayList<>();
                             if (messagesJSONA != null) {
                                 for (int i = 0; i < messagesJSONA.length(); i++) {
                                     try {
@@ -415,69 +452,45 @@ public class SignalClient {
 
                                                 boolean duplicate = false;
 
-                                                if (messageString != null && !messageString.isEmpty()) {
+                                                if (serverTimestamp != 0 && messageStorage.isReceived(address.getName(), serverTimestamp)) {
+                                                    processedTimestamps.add(serverTimestamp);
+                                                } else if (messageString != null && !messageString.isEmpty()) {
                                                     byte[] decodeMessageString = Base64.decode(messageString);
-                                                    byte[] messageBytes = null;
-                                                    SessionCipher sessionCipher = new SessionCipher(signalProtocolStore, address);
-                                                    try {
-                                                        messageBytes = sessionCipher.decrypt(new SignalMessage(decodeMessageString));
-                                                    } catch (InvalidMessageException | LegacyMessageException | DuplicateMessageException | UntrustedIdentityException e) {
-                                                        Timber.e(e);
-                                                        duplicate = e.getClass() == DuplicateMessageException.class;
-                                                        try {
-                                                            messageBytes = sessionCipher.decrypt(new PreKeySignalMessage(decodeMessageString));
-                                                        } catch (UntrustedIdentityException e2){
-                                                            logSender.sendInfo("Captured UntrustedIdentityException, session resets");
-                                                            signalProtocolStore.removeIdentity(address);
-                                                            Timber.e(e2);
-                                                            try {
-                                                                messageBytes = sessionCipher.decrypt(new PreKeySignalMessage(decodeMessageString));
-                                                            } catch (DuplicateMessageException | LegacyMessageException
-                                                                    | InvalidKeyIdException | InvalidMessageException
-                                                                    | InvalidVersionException | InvalidKeyException
-                                                                    | UntrustedIdentityException | NullPointerException e1) {
-                                                                Timber.e(e1);
-                                                                if (!duplicate) duplicate = e1.getClass() == DuplicateMessageException.class;
-                                                            }
-                                                        } catch (LegacyMessageException | InvalidMessageException
-                                                                | InvalidKeyIdException | InvalidKeyException
-                                                                | InvalidVersionException | DuplicateMessageException
-                                                                | NullPointerException e3) {
-                                                            Timber.e(e3);
-                                                            if (!duplicate) duplicate = e3.getClass() == DuplicateMessageException.class;
-                                                        }
-                                                    }
+                                                    DecryptedMessage decryptedMessage = decryptMessage(address, decodeMessageString);
+                                                    duplicate = decryptedMessage.duplicate;
 
                                                     if (!duplicate) {
                                                         JSONObject newMessageJSONO = toMessageJSONO(
-                                                                messageBytes,
+                                                                decryptedMessage.messageBytes,
                                                                 address.getName(),
                                                                 address.getDeviceId(),
                                                                 serverTimestamp);
 
-                                                        messageStorage.storeMessage(address.getName(), newMessageJSONO, tag);
+                                                        newMessages.add(newMessageJSONO);
                                                         receivedMessagesJSONA.put(newMessageJSONO);
                                                     }
-
-                                                    deleteSignalMessage(address.getName(), serverTimestamp, null);
+                                                    processedTimestamps.add(serverTimestamp);
                                                 }
                                             }
                                         }
                                     } catch (JSONException | IOException | NoSessionException | NullPointerException e) {
-                                        promise.reject(ERR_NATIVE_FAILED, e.getMessage());
+                                        // sessions already moved past the decrypted messages, keep them
+                                        commitReceivedMessages(username, messageTag, newMessages, processedTimestamps);
+                                        reject(promise, ERR_NATIVE_FAILED, e.getMessage());
                                         logSender.reportError(e);
                                         return;
                                     }
                                 }
                             }
+                            commitReceivedMessages(username, messageTag, newMessages, processedTimestamps);
 
                             JSONObject promiseJSONO = new JSONObject();
                             promiseJSONO.put("unread", unreadJSONO);
                             if (receivedMessagesJSONA.length() != 0) promiseJSONO.put("messages", receivedMessagesJSONA);
-                            promise.resolve(promiseJSONO.toString());
+                            resolve(promise, promiseJSONO.toString());
                         } catch (JSONException e) {
                             logSender.reportError(e);
-                            promise.reject(ERR_NATIVE_FAILED, e.getMessage());
+                            reject(promise, ERR_NATIVE_FAILED, e.getMessage());
                         }
                     }
                 });
@@ -485,14 +498,118 @@ public class SignalClient {
         });
     }
 
+    /**
+     * Stores messages decrypted from one conversation in a single batch, records them as received and only then
+     * deletes them from the server.
+     */
+    private void commitReceivedMessages(String username, String tag, List<JSONObject> newMessages, List<Long> processedTimestamps) {
+        storeReceivedMessages(username, tag, newMessages, processedTimestamps);
+        for (long serverTimestamp : processedTimestamps) {
+            deleteSignalMessage(username, serverTimestamp, null);
+        }
+    }
+
+    private void storeReceivedMessages(String username, String tag, List<JSONObject> newMessages, List<Long> processedTimestamps) {
+        if (processedTimestamps.isEmpty()) return;
+        messageStorage.storeMessages(username, tag, newMessages);
+        List<Long> receivedTimestamps = new ArrayList<>();
+        for (long serverTimestamp : processedTimestamps) {
+            if (serverTimestamp != 0) receivedTimestamps.add(serverTimestamp);
+        }
+        messageStorage.markReceived(username, receivedTimestamps);
+    }
+
+    /**
+     * Decrypts envelopes delivered through the message pipe and stores them, one batch per conversation. Handled
+     * envelopes (stored, already received or without a message) are added to handledEnvelopes to be acknowledged,
+     * envelopes from contacts without a session stay on the server for getContactMessages like before.
+     * Envelopes of different senders are decrypted in parallel, each sender's in order on its task queue, and the
+     * results are merged back in the order envelopes were delivered. Returns stored messages.
+     */
+    public JSONArray receiveEnvelopes(final List<SignalEnvelope> envelopes, String tag, List<SignalEnvelope> handledEnvelopes) {
+        // filled by sender tasks, each slot is written only by the task of its envelope's sender
+        final JSONObject[] decryptedMessages = new JSONObject[envelopes.size()];
+        final boolean[] processed = new boolean[envelopes.size()];
+
+        Map<String, List<Integer>> senderEnvelopes = new LinkedHashMap<>();
+        for (int i = 0; i < envelopes.size(); i++) {
+            SignalEnvelope envelope = envelopes.get(i);
+            if (!envelope.hasMessage()) {
+                processed[i] = true;
+                continue;
+            }
+            if (!senderEnvelopes.containsKey(envelope.getSource())) senderEnvelopes.put(envelope.getSource(), new ArrayList<Integer>());
+            senderEnvelopes.get(envelope.getSource()).add(i);
+        }
+        Map<String, Runnable> senderTasks = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Integer>> entry : senderEnvelopes.entrySet()) {
+            final SignalProtocolAddress address = new SignalProtocolAddress(entry.getKey(), 1);
+            final List<Integer> indexes = entry.getValue();
+            senderTasks.put(address.getName(), new Runnable() {
+                @Override
+                public void run() {
+                    if (!signalProtocolStore.containsSession(address)) return;
+                    for (int i : indexes) {
+                        SignalEnvelope envelope = envelopes.get(i);
+                        long serverTimestamp = envelope.getTimestamp();
+                        try {
+                            if (serverTimestamp == 0 || !messageStorage.isReceived(address.getName(), serverTimestamp)) {
+                                DecryptedMessage decryptedMessage = decryptMessage(address, envelope.getMessageBytes());
+                                if (!decryptedMessage.duplicate) {
+                                    decryptedMessages[i] = toMessageJSONO(
+                                            decryptedMessage.messageBytes,
+                                            address.getName(),
+                                            address.getDeviceId(),
+                                            serverTimestamp);
+                                }
+                            }
+                            processed[i] = true;
+                        } catch (JSONException | UnsupportedEncodingException | NoSessionException e) {
+                            logSender.reportError(e);
+                        }
+                    }
+                }
+            });
+        }
+        taskExecutor.executeAndWait(senderTasks);
+
+        JSONArray receivedMessagesJSONA = new JSONArray();
+        Map<String, List<JSONObject>> newMessages = new LinkedHashMap<>();
+        Map<String, List<Long>> processedTimestamps = new LinkedHashMap<>();
+        for (int i = 0; i < envelopes.size(); i++) {
+            if (!processed[i]) continue;
+            SignalEnvelope envelope = envelopes.get(i);
+            handledEnvelopes.add(envelope);
+            if (!envelope.hasMessage()) continue;
+            String source = envelope.getSource();
+            if (!processedTimestamps.containsKey(source)) {
+                processedTimestamps.put(source, new ArrayList<Long>());
+                newMessages.put(source, new ArrayList<JSONObject>());
+            }
+            processedTimestamps.get(source).add(envelope.getTimestamp());
+            if (decryptedMessages[i] != null) {
+                newMessages.get(source).add(decryptedMessages[i]);
+                receivedMessagesJSONA.put(decryptedMessages[i]);
+            }
+        }
+        for (Map.Entry<String, List<Long>> conversationTimestamps : processedTimestamps.entrySet()) {
+            storeReceivedMessages(
+                    conversationTimestamps.getKey(),
+                    tag,
+                    newMessages.get(conversationTimestamps.getKey()),
+                    conversationTimestamps.getValue());
+        }
+        return receivedMessagesJSONA;
+    }
+
     public void deleteContactPendingMessages(final String username, final String messageTag, final Promise promise) {
         signalServer.call(URL_MESSAGES, "GET", new Callback() {
             @Override
             public void onFailure(Call call, final IOException e) {
-                signalServer.mainThreadCallback(new Runnable() {
+                taskExecutor.execute(username != null ? username : LOCAL_TASK_KEY, new Runnable() {
                     @Override
                     public void run() {
-                        promise.reject(ERR_SERVER_FAILED, e.getMessage());
+                        reject(promise, ERR_SERVER_FAILED, e.getMessage());
                         logSender.reportError(e);
                     }
                 });
@@ -501,7 +618,7 @@ public class SignalClient {
             @Override
             public void onResponse(Call call, Response response) {
                 final ServerResponse serverResponse = new ServerResponse(response);
-                signalServer.mainThreadCallback(new Runnable() {
+                taskExecutor.execute(username != null ? username : LOCAL_TASK_KEY, new Runnable() {
                     @Override
                     public void run() {
                         try {
@@ -535,10 +652,10 @@ public class SignalClient {
                                     }
                                 }
                             }
-                            promise.resolve("ok");
+                            resolve(promise, "ok");
                         } catch (JSONException e) {
                             logSender.reportError(e);
-                            promise.reject(ERR_NATIVE_FAILED, e.getMessage());
+                            reject(promise, ERR_NATIVE_FAILED, e.getMessage());
                         }
                     }
                 });
@@ -547,73 +664,51 @@ public class SignalClient {
     }
 
     public void sendMessage(final String username, final String messageString, final String userId, final String targetUserId, final String messageTag, final boolean silent, final Promise promise) {
-        signalServer.requestServerTimestamp(new Callback() {
-            @Override
-            public void onFailure(Call call, final IOException e) {
-                signalServer.mainThreadCallback(new Runnable() {
-                    @Override
-                    public void run() {
-                        logSender.reportError(e);
-                        promise.reject(ERR_NATIVE_FAILED, e.getMessage());
-                    }
-                });
-            }
-
-            @Override
-            public void onResponse(Call call, Response response) throws IOException {
-                final ServerResponse serverResponse = new ServerResponse(response);
-                signalServer.mainThreadCallback(new Runnable() {
-                    @Override
-                    public void run() {
-                        final int timestamp = serverResponse.getResponseJSONObject().optInt("timestamp", 0);
-                        try {
-                            JSONObject requestJSONO = prepareApiBody(username, messageString, userId, targetUserId, messageTag, silent);
-                            signalServer.call(URL_MESSAGES + "/" + username, "PUT", requestJSONO, new Callback() {
-                                @Override
-                                public void onFailure(Call call, final IOException e) {
-                                    signalServer.mainThreadCallback(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            promise.reject(ERR_SERVER_FAILED, e.getMessage());
-                                            Timber.d("Signal server failed: %s", e.getMessage());
-                                        }
-                                    });
-                                }
+        try {
+            JSONObject requestJSONO = prepareApiBody(username, messageString, userId, targetUserId, messageTag, silent);
+            signalServer.call(URL_MESSAGES + "/" + username, "PUT", requestJSONO, new Callback() {
+                @Override
+                public void onFailure(Call call, final IOException e) {
+                    taskExecutor.execute(username, new Runnable() {
+                        @Override
+                        public void run() {
+                            reject(promise, ERR_SERVER_FAILED, e.getMessage());
+                            Timber.d("Signal server failed: %s", e.getMessage());
+                        }
+                    });
+                }
 
-                                @Override
-                                public void onResponse(Call call, Response response) {
-                                    final ServerResponse serverResponse = new ServerResponse(response);
-                                    signalServer.mainThreadCallback(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            if (serverResponse.getResponseJSONObject() != null
-                                                    && serverResponse.getResponseJSONObject().optJSONArray("staleDevices") != null){
-                                                // staleDevices found, request new user PreKey and retry message send
-                                                Runnable retrySendMessage = new Runnable() {
-                                                    @Override
-                                                    public void run() {
-                                                        sendMessage(username, messageString, userId, targetUserId, messageTag, silent, promise);
-                                                    }
-                                                };
-                                                requestPreKeys(username, userId, targetUserId, null, retrySendMessage);
-                                            } else {
-                                                saveSentMessage(messageTag, username, messageString, timestamp, promise);
-                                            }
-                                        }
-                                    });
-                                }
-                            }, true, timestamp);
-                        } catch (JSONException
-                                | IllegalArgumentException
-                                | UntrustedIdentityException
-                                | UnsupportedEncodingException e) {
-                            logSender.reportError(e);
-                            promise.reject(ERR_NATIVE_FAILED, e.getMessage());
+                @Override
+                public void onResponse(Call call, Response response) {
+                    final ServerResponse serverResponse = new ServerResponse(response);
+                    final int timestamp = signalServer.getServerTimestamp();
+                    taskExecutor.execute(username, new Runnable() {
+                        @Override
+                        public void run() {
+                            if (serverResponse.getResponseJSONObject() != null
+                                    && serverResponse.getResponseJSONObject().optJSONArray("staleDevices") != null){
+                                // staleDevices found, request new user PreKey and retry message send
+                                Runnable retrySendMessage = new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        sendMessage(username, messageString, userId, targetUserId, messageTag, silent, promise);
+                                    }
+                                };
+                                requestPreKeys(username, userId, targetUserId, null, retrySendMessage);
+                            } else {
+                                saveSentMessage(messageTag, username, messageString, timestamp, promise);
+                            }
                         }
-                    }
-                });
-            };
-        });
+                    });
+                }
+            });
+        } catch (JSONException
+                | IllegalArgumentException
+                | UntrustedIdentityException
+                | UnsupportedEncodingException e) {
+            logSender.reportError(e);
+            reject(promise, ERR_NATIVE_FAILED, e.getMessage());
+        }
     }
 
     public void setFcmId(String fcmId, final Promise promise) {
@@ -624,35 +719,40 @@ public class SignalClient {
                 signalServer.call(URL_GCM, "PUT", dataJSONO, new Callback() {
                     @Override
                     public void onFailure(Call call, IOException e) {
-                        promise.reject(ERR_NATIVE_FAILED, e.getMessage());
+                        reject(promise, ERR_NATIVE_FAILED, e.getMessage());
                         logSender.reportError(e);
                     }
 
                     @Override
                     public void onResponse(Call call, Response response) throws IOException {
-                        signalServer.mainThreadCallback(new Runnable() {
+                        taskExecutor.execute(LOCAL_TASK_KEY, new Runnable() {
                             @Override
                             public void run() {
-                                promise.resolve("ok");
+                                resolve(promise, "ok");
                             }
                         });
                     }
                 });
             } catch (JSONException e) {
                 logSender.reportError(e);
-                promise.reject(ERR_NATIVE_FAILED, e.getMessage());
+                reject(promise, ERR_NATIVE_FAILED, e.getMessage());
             }
         } else {
-            promise.resolve("ok");
+            resolve(promise, "ok");
         }
     }
 
     public JSONObject prepareApiBody(String username, String message, String userId, String targetUserId, String tag, boolean silent)
             throws JSONException, UnsupportedEncodingException, UntrustedIdentityException {
         SignalProtocolAddress address = new SignalProtocolAddress(username, 1);
-        SessionCipher sessionCipher = new SessionCipher(signalProtocolStore, address);
+        CiphertextMessage ciphertextMessage;
+        int remoteRegistrationId;
+        synchronized (signalProtocolStore.getSessionLock(address)) {
+            SessionCipher sessionCipher = new SessionCipher(signalProtocolStore, address);
+            ciphertextMessage = sessionCipher.encrypt(message.getBytes("UTF-8"));
+            remoteRegistrationId = sessionCipher.getRemoteRegistrationId();
+        }
         JSONObject requestJSONO = new JSONObject();
-        CiphertextMessage ciphertextMessage = sessionCipher.encrypt(message.getBytes("UTF-8"));
         JSONArray messagesJSONA = new JSONArray();
         JSONObject messageJSONO = new JSONObject();
         messageJSONO.put("type", 1);
@@ -663,7 +763,7 @@ public class SignalClient {
         messageJSONO.put("silent", silent);
         messageJSONO.put("content", ""); //Base64.encodeBytes(String.valueOf(signalProtocolStore.getLocalRegistrationId()).getBytes()));
         messageJSONO.put("destinationDeviceId", 1);
-        messageJSONO.put("destinationRegistrationId", sessionCipher.getRemoteRegistrationId());
+        messageJSONO.put("destinationRegistrationId", remoteRegistrationId);
         messageJSONO.put("body", Base64.encodeBytes(ciphertextMessage.serialize()));
         messagesJSONA.put(messageJSONO);
         requestJSONO.put("messages", messagesJSONA);
@@ -679,9 +779,9 @@ public class SignalClient {
             messageJSONO.put("serverTimestamp", (long) (timestamp) * 1000);
             messageJSONO.put("savedTimestamp", timestamp);
             messageStorage.storeMessage(username, messageJSONO, tag);
-            promise.resolve("ok");
+            resolve(promise, "ok");
         } catch (JSONException e) {
-            promise.reject(ERR_NATIVE_FAILED, e.getMessage());
+            reject(promise, ERR_NATIVE_FAILED, e.getMessage());
             logSender.reportError(e);
         }
     }
@@ -727,56 +827,76 @@ public class SignalClient {
             SignalProtocolAddress address = new SignalProtocolAddress(source, 1);
             if (signalProtocolStore.containsSession(address)) {
                 boolean duplicate = false;
-                if (messageString != null && !messageString.isEmpty()) {
+                if (serverTimestamp != 0 && messageStorage.isReceived(address.getName(), serverTimestamp)) {
+                    Timber.d("Dropped already received message");
+                } else if (messageString != null && !messageString.isEmpty()) {
                     byte[] decodeMessageString = Base64.decode(messageString);
-                    byte[] messageBytes = null;
-                    SessionCipher sessionCipher = new SessionCipher(signalProtocolStore, address);
-
-                    try {
-                        messageBytes = sessionCipher.decrypt(new SignalMessage(decodeMessageString));
-                    } catch (InvalidMessageException | LegacyMessageException | DuplicateMessageException | UntrustedIdentityException e) {
-                        Timber.e(e);
-                        duplicate = e.getClass() == DuplicateMessageException.class;
-                        try {
-                            messageBytes = sessionCipher.decrypt(new PreKeySignalMessage(decodeMessageString));
-                        } catch (UntrustedIdentityException e2){
-                            logSender.sendInfo("Captured UntrustedIdentityException, session resets");
-                            signalProtocolStore.removeIdentity(address);
-                            Timber.e(e2);
-                            try {
-                                messageBytes = sessionCipher.decrypt(new PreKeySignalMessage(decodeMessageString));
-                            } catch (DuplicateMessageException | LegacyMessageException
-                                    | InvalidKeyIdException | InvalidMessageException
-                                    | InvalidVersionException | InvalidKeyException
-                                    | UntrustedIdentityException e1) {
-                                Timber.e(e1);
-                                if (!duplicate) duplicate = e1.getClass() == DuplicateMessageException.class;
-                            }
-                        } catch (LegacyMessageException | InvalidMessageException
-                                | InvalidKeyIdException | InvalidKeyException
-                                | InvalidVersionException | DuplicateMessageException e3) {
-                            Timber.e(e3);
-                            if (!duplicate) duplicate = e3.getClass() == DuplicateMessageException.class;
-                        }
-                    }
+                    DecryptedMessage decryptedMessage = decryptMessage(address, decodeMessageString);
+                    duplicate = decryptedMessage.duplicate;
 
                     if (!duplicate) {
                         JSONObject newMessageJSONO = toMessageJSONO(
-                                messageBytes,
+                                decryptedMessage.messageBytes,
                                 address.getName(),
                                 address.getDeviceId(),
                                 serverTimestamp);
 
                         messageStorage.storeMessage(address.getName(), newMessageJSONO, messageTag);
                     }
+                    if (serverTimestamp != 0) messageStorage.markReceived(address.getName(), serverTimestamp);
                 }
             }
         } catch (JSONException | IOException | NoSessionException e) {
-            promise.reject(ERR_NATIVE_FAILED, e.getMessage());
+            reject(promise, ERR_NATIVE_FAILED, e.getMessage());
             logSender.reportError(e);
             return;
         }
-        promise.resolve("ok");
+        resolve(promise, "ok");
+    }
+
+    /**
+     * Decrypts message holding the session lock of its sender, so messages of different contacts can be
+     * decrypted in parallel. Falls back to pre key message and resets untrusted identity like before.
+     */
+    private DecryptedMessage decryptMessage(SignalProtocolAddress address, byte[] decodeMessageString) throws NoSessionException {
+        DecryptedMessage decryptedMessage = new DecryptedMessage();
+        synchronized (signalProtocolStore.getSessionLock(address)) {
+            SessionCipher sessionCipher = new SessionCipher(signalProtocolStore, address);
+            try {
+                decryptedMessage.messageBytes = sessionCipher.decrypt(new SignalMessage(decodeMessageString));
+            } catch (InvalidMessageException | LegacyMessageException | DuplicateMessageException | UntrustedIdentityException e) {
+                Timber.e(e);
+                decryptedMessage.duplicate = e.getClass() == DuplicateMessageException.class;
+                try {
+                    decryptedMessage.messageBytes = sessionCipher.decrypt(new PreKeySignalMessage(decodeMessageString));
+                } catch (UntrustedIdentityException e2){
+                    logSender.sendInfo("Captured UntrustedIdentityException, session resets");
+                    signalProtocolStore.removeIdentity(address);
+                    Timber.e(e2);
+                    try {
+                        decryptedMessage.messageBytes = sessionCipher.decrypt(new PreKeySignalMessage(decodeMessageString));
+                    } catch (DuplicateMessageException | LegacyMessageException
+                            | InvalidKeyIdException | InvalidMessageException
+                            | InvalidVersionException | InvalidKeyException
+                            | UntrustedIdentityException | NullPointerException e1) {
+                        Timber.e(e1);
+                        if (!decryptedMessage.duplicate) decryptedMessage.duplicate = e1.getClass() == DuplicateMessageException.class;
+                    }
+                } catch (LegacyMessageException | InvalidMessageException
+                        | InvalidKeyIdException | InvalidKeyException
+                        | InvalidVersionException | DuplicateMessageException
+                        | NullPointerException e3) {
+                    Timber.e(e3);
+                    if (!decryptedMessage.duplicate) decryptedMessage.duplicate = e3.getClass() == DuplicateMessageException.class;
+                }
+            }
+        }
+        return decryptedMessage;
+    }
+
+    private static class DecryptedMessage {
+        private byte[] messageBytes; // null when message could not be decrypted
+        private boolean duplicate;
     }
 
     public void deleteSignalMessage(String username, final long timestamp, final Promise promise){
@@ -792,7 +912,7 @@ public class SignalClient {
 
                 @Override
                 public void onResponse(Call call, Response res) {
-                    if (promise != null) promise.resolve("ok");
+                    if (promise != null) resolve(promise, "ok");
                 }
             },
             true
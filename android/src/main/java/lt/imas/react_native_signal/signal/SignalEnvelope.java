@@ -0,0 +1,96 @@
+package lt.imas.react_native_signal.signal;
+
+import java.io.IOException;
+
+import lt.imas.react_native_signal.helpers.ProtoReader;
+
+/**
+ * Envelope of a message delivered through the message pipe, after its signaling key encryption is removed.
+ * Only the fields needed to decrypt and store the message are read.
+ */
+public class SignalEnvelope {
+    public static final int TYPE_CIPHERTEXT = 1;
+    public static final int TYPE_PREKEY_BUNDLE = 3;
+    public static final int TYPE_RECEIPT = 5;
+
+    private static final int FIELD_TYPE = 1;
+    private static final int FIELD_SOURCE = 2;
+    private static final int FIELD_TIMESTAMP = 5;
+    private static final int FIELD_LEGACY_MESSAGE = 6;
+    private static final int FIELD_SOURCE_DEVICE = 7;
+    private static final int FIELD_CONTENT = 8;
+
+    private int type;
+    private String source;
+    private int sourceDevice;
+    private long timestamp;
+    private byte[] legacyMessage;
+    private byte[] content;
+
+    private SignalEnvelope() {
+    }
+
+    public static SignalEnvelope parse(byte[] data) throws IOException {
+        SignalEnvelope envelope = new SignalEnvelope();
+        ProtoReader reader = new ProtoReader(data);
+        while (reader.hasNext()) {
+            int tag = reader.readTag();
+            switch (ProtoReader.getFieldNumber(tag)) {
+                case FIELD_TYPE:
+                    envelope.type = (int) reader.readVarint();
+                    break;
+                case FIELD_SOURCE:
+                    envelope.source = reader.readString();
+                    break;
+                case FIELD_TIMESTAMP:
+                    envelope.timestamp = reader.readVarint();
+                    break;
+                case FIELD_LEGACY_MESSAGE:
+                    envelope.legacyMessage = reader.readBytes();
+                    break;
+                case FIELD_SOURCE_DEVICE:
+                    envelope.sourceDevice = (int) reader.readVarint();
+                    break;
+                case FIELD_CONTENT:
+                    envelope.content = reader.readBytes();
+                    break;
+                default:
+                    reader.skip(ProtoReader.getWireType(tag));
+            }
+        }
+        if (envelope.source == null) throw new IOException("Envelope without source");
+        return envelope;
+    }
+
+    /**
+     * Whether envelope carries a Signal message to decrypt, receipts and other types do not.
+     */
+    public boolean hasMessage() {
+        return (type == TYPE_CIPHERTEXT || type == TYPE_PREKEY_BUNDLE) && getMessageBytes() != null;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public int getSourceDevice() {
+        return sourceDevice;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns serialized Signal message, legacy field first like messages fetched from the server.
+     */
+    public byte[] getMessageBytes() {
+        if (legacyMessage != null && legacyMessage.length > 0) return legacyMessage;
+        if (content != null && content.length > 0) return content;
+        return null;
+    }
+}
@@ -13,19 +13,28 @@ import org.json.JSONObject;
 import org.web3j.crypto.Hash;
 
 import java.io.IOException;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import okhttp3.Call;
 import okhttp3.Callback;
 import okhttp3.CipherSuite;
+import okhttp3.ConnectionPool;
 import okhttp3.ConnectionSpec;
 import okhttp3.Credentials;
+import okhttp3.Dispatcher;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 import okhttp3.TlsVersion;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
 import okio.Buffer;
 import timber.log.Timber;
 
@@ -33,19 +42,46 @@ public class SignalServer {
     private LogSender logSender = LogSender.getInstance();
 
     public final String URL_ACCOUNTS_BOOTSTRAP = "/v1/accounts/bootstrap";
+    private final int HTTP_UNAUTHORIZED = 401; // returned for Token-Timestamp outside server's window
 
     public String accessToken;
     public String host;
     public Context context;
 
+    // one client for all requests: connections, TLS sessions and dispatcher threads are reused between calls
+    private final OkHttpClient httpClient;
+    private final ClockSync clockSync = new ClockSync();
+
     public SignalServer(String host, String accessToken, Context context){
+        this(host, accessToken, context, HttpClientConfig.DEFAULT);
+    }
+
+    public SignalServer(String host, String accessToken, Context context, HttpClientConfig httpClientConfig){
         this.host = host;
         this.accessToken = accessToken;
         this.context = context;
+        this.httpClient = initHttpClientBuilder(httpClientConfig).build();
     }
 
-    public OkHttpClient.Builder initHttpClientBuilder(){
-        OkHttpClient.Builder clientBuilder = new OkHttpClient().newBuilder();
+    /**
+     * Builds the shared client: pooled keep-alive connections, HTTP/2 when the server negotiates it over ALPN and
+     * a dispatcher bounded by maxRequests. Single SSL socket factory lets TLS sessions resume on new connections.
+     */
+    public OkHttpClient.Builder initHttpClientBuilder(HttpClientConfig httpClientConfig){
+        OkHttpClient.Builder clientBuilder = new OkHttpClient.Builder();
+
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(httpClientConfig.getMaxRequests());
+        dispatcher.setMaxRequestsPerHost(httpClientConfig.getMaxRequestsPerHost());
+        clientBuilder.dispatcher(dispatcher);
+        clientBuilder.connectionPool(new ConnectionPool(
+                httpClientConfig.getMaxIdleConnections(),
+                httpClientConfig.getKeepAliveSeconds(),
+                TimeUnit.SECONDS));
+        clientBuilder.protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+        clientBuilder.connectTimeout(httpClientConfig.getConnectTimeoutSeconds(), TimeUnit.SECONDS);
+        clientBuilder.readTimeout(httpClientConfig.getReadTimeoutSeconds(), TimeUnit.SECONDS);
+        clientBuilder.writeTimeout(httpClientConfig.getReadTimeoutSeconds(), TimeUnit.SECONDS);
 
         ConnectionSpec spec = new ConnectionSpec.Builder(ConnectionSpec.COMPATIBLE_TLS)
                 .tlsVersions(TlsVersion.TLS_1_2, TlsVersion.TLS_1_1, TlsVersion.TLS_1_0, TlsVersion.SSL_3_0)
@@ -57,7 +93,11 @@ public class SignalServer {
                 )
                 .build();
 
-        clientBuilder.connectionSpecs(Collections.singletonList(spec));
+        List<ConnectionSpec> specs = new ArrayList<>();
+        specs.add(spec);
+        // host given with plain http, e.g. a local server, is reached without TLS
+        if (host != null && host.startsWith("http://")) specs.add(ConnectionSpec.CLEARTEXT);
+        clientBuilder.connectionSpecs(specs);
         clientBuilder.followRedirects(true);
         clientBuilder.followSslRedirects(true);
         return clientBuilder;
@@ -71,9 +111,28 @@ public class SignalServer {
         return call(url, method, new JSONObject(), responseHandler, true);
     }
 
+    public OkHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    /**
+     * Cancels running requests and closes pooled connections, called when the server is replaced.
+     */
+    public void shutdown() {
+        httpClient.dispatcher().cancelAll();
+        httpClient.dispatcher().executorService().shutdown();
+        httpClient.connectionPool().evictAll();
+    }
+
+    /**
+     * Returns Token-Timestamp value for a request made now, seconds of estimated server time.
+     */
+    public int getServerTimestamp() {
+        return (int) (clockSync.getServerTimeMillis() / 1000L);
+    }
+
     public OkHttpClient requestServerTimestamp(Callback callback) {
-        OkHttpClient.Builder clientBuilder = initHttpClientBuilder();
-        OkHttpClient client = clientBuilder.build();
+        OkHttpClient client = httpClient;
         Request request = new Request.Builder().url(getFullApiUrl(URL_ACCOUNTS_BOOTSTRAP)).build();
         if (!isNetworkAvailable()) return client;
         client.newCall(request).enqueue(callback);
@@ -81,8 +140,6 @@ public class SignalServer {
     }
 
     public OkHttpClient call(String url, String method, JSONObject requestJSONO, Callback responseHandler, boolean async, int timestamp) {
-        OkHttpClient.Builder clientBuilder = initHttpClientBuilder();
-
         method = method != null ? method.toLowerCase().trim() : "";
 
         Request.Builder requestBuilder = new Request.Builder()
@@ -108,7 +165,7 @@ public class SignalServer {
                 break;
         }
 
-        OkHttpClient client = clientBuilder.build();
+        OkHttpClient client = httpClient;
         Request request = requestBuilder.build();
 
         Timber.d("API REQUEST METHOD: " + method);
@@ -118,11 +175,23 @@ public class SignalServer {
         if (!isNetworkAvailable()) return client;
 
         if (async) {
-            client.newCall(request).enqueue(responseHandler);
+            client.newCall(request).enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    responseHandler.onFailure(call, e);
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) throws IOException {
+                    refineClock(response);
+                    responseHandler.onResponse(call, response);
+                }
+            });
         } else {
             Call call = client.newCall(request);
             try {
                 Response response = call.execute();
+                refineClock(response);
                 responseHandler.onResponse(call, response);
             } catch (IOException e) {
                 if (responseHandler != null) responseHandler.onFailure(call, e);
@@ -133,7 +202,38 @@ public class SignalServer {
         return client;
     }
 
+    /**
+     * Makes request with Token-Timestamp from the estimated server clock. Server time is requested only before
+     * the first request and again once when the server rejects a request, which is then retried.
+     */
     public OkHttpClient call(final String url, final String method, final JSONObject requestJSONO, final Callback responseHandler, final boolean async) {
+        return callWithServerTime(url, method, requestJSONO, responseHandler, async, false);
+    }
+
+    private OkHttpClient callWithServerTime(final String url,
+                                            final String method,
+                                            final JSONObject requestJSONO,
+                                            final Callback responseHandler,
+                                            final boolean async,
+                                            final boolean resynced) {
+        final Callback rejectionHandler = new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                responseHandler.onFailure(call, e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) throws IOException {
+                if (response.code() == HTTP_UNAUTHORIZED && !resynced) {
+                    response.close();
+                    clockSync.reset();
+                    callWithServerTime(url, method, requestJSONO, responseHandler, async, true);
+                    return;
+                }
+                responseHandler.onResponse(call, response);
+            }
+        };
+        if (clockSync.isSynced()) return call(url, method, requestJSONO, rejectionHandler, async, getServerTimestamp());
         return requestServerTimestamp(new Callback() {
             @Override
             public void onFailure(Call call, IOException e) {
@@ -142,19 +242,38 @@ public class SignalServer {
             }
 
             @Override
-            public void onResponse(final Call call, Response response) throws IOException {
-                final ServerResponse serverResponse = new ServerResponse(response);
-                mainThreadCallback(new Runnable() {
-                    @Override
-                    public void run() {
-                        int timestamp = serverResponse.getResponseJSONObject().optInt("timestamp", 0);
-                        call(url, method, requestJSONO, responseHandler, async, timestamp);
-                    }
-                });
+            public void onResponse(Call call, Response response) throws IOException {
+                ServerResponse serverResponse = new ServerResponse(response);
+                long timestamp = serverResponse.getResponseJSONObject().optLong("timestamp", 0);
+                if (timestamp > 0) {
+                    clockSync.addSample(timestamp * 1000L, response.sentRequestAtMillis(), response.receivedResponseAtMillis());
+                }
+                // request continues on the OkHttp thread, callbacks hop to the main thread themselves when needed
+                call(url, method, requestJSONO, rejectionHandler, async, clockSync.isSynced() ? getServerTimestamp() : (int) timestamp);
             }
         });
     }
 
+    /**
+     * Opens WebSocket to the server with the same authorization headers as API requests.
+     */
+    public WebSocket openWebSocket(String url, WebSocketListener listener) {
+        Request request = new Request.Builder()
+                .url(getFullApiUrl(url))
+                .addHeader("Token-Timestamp", String.valueOf(getServerTimestamp()))
+                .addHeader("Authorization", String.format("Bearer %s", accessToken))
+                .addHeader("Token-ID-Address", "address")
+                .addHeader("Token-Signature", "signature")
+                .build();
+        return httpClient.newWebSocket(request, listener);
+    }
+
+    private void refineClock(Response response) {
+        if (response.headers() == null) return;
+        Date date = response.headers().getDate("Date");
+        if (date != null) clockSync.refine(date.getTime(), response.sentRequestAtMillis(), response.receivedResponseAtMillis());
+    }
+
     private String getFullApiUrl(String targetUrl) {
         return host + targetUrl;
     }
@@ -219,7 +338,10 @@ public class SignalServer {
         return "0x" + hexR + hexS + hexV;
     }
 
-    private boolean isNetworkAvailable() {
+    /**
+     * Package-private so tests running without Android connectivity service can override it.
+     */
+    boolean isNetworkAvailable() {
         ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
         NetworkInfo activeNetworkInfo = connectivityManager.getActiveNetworkInfo();
         return activeNetworkInfo != null && activeNetworkInfo.isConnected();
@@ -0,0 +1,128 @@
+package lt.imas.react_native_signal.signal;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs crypto and storage work off the main thread on a shared bounded pool. Tasks submitted with the same key
+ * (contact name) run one at a time in submission order, tasks of different keys run in parallel. A key gives up
+ * its thread after every task, so a busy contact does not hold back others.
+ */
+public class TaskExecutor {
+    private LogSender logSender = LogSender.getInstance();
+
+    private final ExecutorService pool;
+    // key -> its queued tasks, present while the key has a task queued or running
+    private final Map<String, SerialQueue> queues = new HashMap<>();
+
+    public TaskExecutor(int threads) {
+        this.pool = Executors.newFixedThreadPool(threads);
+    }
+
+    public void execute(String key, Runnable task) {
+        SerialQueue queue;
+        synchronized (queues) {
+            queue = queues.get(key);
+            if (queue == null) {
+                queue = new SerialQueue(key);
+                queues.put(key, queue);
+            }
+            queue.tasks.add(task);
+            if (queue.scheduled) return;
+            queue.scheduled = true;
+        }
+        try {
+            pool.execute(queue);
+        } catch (RejectedExecutionException e) {
+            // shut down, run on the calling thread so the task still settles its promise
+            queue.run();
+        }
+    }
+
+    /**
+     * Runs every task on its key's queue and blocks until all of them are done, so tasks of different keys run in
+     * parallel. Must not be called from a task of this executor, the pool could run out of threads to finish them.
+     */
+    public void executeAndWait(Map<String, Runnable> tasks) {
+        final CountDownLatch done = new CountDownLatch(tasks.size());
+        for (Map.Entry<String, Runnable> entry : tasks.entrySet()) {
+            final Runnable task = entry.getValue();
+            execute(entry.getKey(), new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        // tasks keep running after an interrupt and their results are still needed, wait for them anyway
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Stops the pool. Tasks already queued still run, tasks submitted afterwards run on the submitting thread.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private class SerialQueue implements Runnable {
+        private final String key;
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        private boolean scheduled = false;
+
+        private SerialQueue(String key) {
+            this.key = key;
+        }
+
+        /**
+         * Runs the next task and reschedules the queue. Once the pool is shut down the remaining tasks run here one
+         * after another instead, so none of them is dropped.
+         */
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized (queues) {
+                    task = tasks.poll();
+                }
+                try {
+                    if (task != null) task.run();
+                } catch (Throwable e) {
+                    logSender.reportError(e);
+                }
+                synchronized (queues) {
+                    if (tasks.isEmpty()) {
+                        scheduled = false;
+                        queues.remove(key);
+                        return;
+                    }
+                }
+                try {
+                    pool.execute(this);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // shut down, keep running the queue on this thread
+                }
+            }
+        }
+    }
+}
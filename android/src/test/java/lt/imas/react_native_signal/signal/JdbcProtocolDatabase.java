@@ -0,0 +1,200 @@
+package lt.imas.react_native_signal.signal;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ProtocolDatabase over the embedded sqlite-jdbc driver, so SQLiteProtocolStorage runs on a plain JVM.
+ * A single connection is shared, the lock is held for every call and for the whole of an open transaction,
+ * which gives the same isolation between threads as SQLiteDatabase.
+ */
+public class JdbcProtocolDatabase implements ProtocolDatabase {
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private int transactionDepth = 0;
+    private boolean transactionFailed = false;
+    private boolean levelSuccessful = false;
+
+    public JdbcProtocolDatabase(File file) {
+        try {
+            connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+            Statement statement = connection.createStatement();
+            try {
+                statement.execute("PRAGMA journal_mode=WAL");
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private PreparedStatement prepare(String sql, Object... args) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = connection.prepareStatement(sql);
+            statements.put(sql, statement);
+        }
+        statement.clearParameters();
+        for (int i = 0; i < args.length; i++) {
+            Object arg = args[i];
+            if (arg == null) {
+                statement.setNull(i + 1, java.sql.Types.NULL);
+            } else if (arg instanceof byte[]) {
+                statement.setBytes(i + 1, (byte[]) arg);
+            } else if (arg instanceof Integer || arg instanceof Long) {
+                statement.setLong(i + 1, ((Number) arg).longValue());
+            } else {
+                statement.setString(i + 1, String.valueOf(arg));
+            }
+        }
+        return statement;
+    }
+
+    @Override
+    public void execute(String sql, Object... args) {
+        lock.lock();
+        try {
+            prepare(sql, args).execute();
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<Object> query(String sql, Object... args) {
+        lock.lock();
+        try {
+            List<Object> results = new ArrayList<>();
+            ResultSet resultSet = prepare(sql, args).executeQuery();
+            try {
+                while (resultSet.next()) {
+                    results.add(resultSet.getObject(1));
+                }
+            } finally {
+                resultSet.close();
+            }
+            return results;
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public byte[] queryBlob(String sql, Object... args) {
+        List<Object> results = query(sql, args);
+        return results.isEmpty() ? null : (byte[]) results.get(0);
+    }
+
+    @Override
+    public String queryString(String sql, Object... args) {
+        List<Object> results = query(sql, args);
+        return results.isEmpty() || results.get(0) == null ? null : String.valueOf(results.get(0));
+    }
+
+    @Override
+    public Long queryLong(String sql, Object... args) {
+        List<Object> results = query(sql, args);
+        return results.isEmpty() || results.get(0) == null ? null : ((Number) results.get(0)).longValue();
+    }
+
+    @Override
+    public List<Long> queryLongs(String sql, Object... args) {
+        List<Long> longs = new ArrayList<>();
+        for (Object result : query(sql, args)) {
+            if (result != null) longs.add(((Number) result).longValue());
+        }
+        return longs;
+    }
+
+    @Override
+    public List<byte[]> queryBlobs(String sql, Object... args) {
+        List<byte[]> blobs = new ArrayList<>();
+        for (Object result : query(sql, args)) {
+            if (result != null) blobs.add((byte[]) result);
+        }
+        return blobs;
+    }
+
+    @Override
+    public void beginTransaction() {
+        lock.lock();
+        try {
+            if (transactionDepth == 0) {
+                connection.setAutoCommit(false);
+                transactionFailed = false;
+            }
+            levelSuccessful = false;
+            transactionDepth++;
+        } catch (SQLException e) {
+            lock.unlock();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        levelSuccessful = true;
+    }
+
+    @Override
+    public void endTransaction() {
+        try {
+            if (!levelSuccessful) transactionFailed = true;
+            levelSuccessful = false;
+            if (--transactionDepth == 0) {
+                if (transactionFailed) {
+                    connection.rollback();
+                } else {
+                    connection.commit();
+                }
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getVersion() {
+        Long version = queryLong("PRAGMA user_version");
+        return version != null ? version.intValue() : 0;
+    }
+
+    @Override
+    public void setVersion(int version) {
+        execute("PRAGMA user_version = " + version);
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            for (PreparedStatement statement : statements.values()) {
+                statement.close();
+            }
+            statements.clear();
+            connection.close();
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package lt.imas.react_native_signal.signal;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageDedupIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final long DAY_MS = 24 * 60 * 60 * 1000L;
+
+    @Test
+    public void dropsTimestampsOutsideRedeliveryWindowOnLoad() throws Exception {
+        File dir = folder.newFolder();
+        long now = System.currentTimeMillis();
+        long old = now - 40 * DAY_MS;
+        long recent = now - DAY_MS;
+        new MessageDedupIndex(dir).add("bob", Arrays.asList(old, recent));
+        File indexFile = dir.listFiles()[0];
+        assertEquals(16, indexFile.length());
+
+        MessageDedupIndex dedupIndex = new MessageDedupIndex(dir);
+        assertTrue(dedupIndex.contains("bob", recent));
+        assertFalse(dedupIndex.contains("bob", old));
+        assertEquals(8, indexFile.length());
+    }
+
+    @Test
+    public void prunesEverySource() throws Exception {
+        File dir = folder.newFolder();
+        long now = System.currentTimeMillis();
+        MessageDedupIndex dedupIndex = new MessageDedupIndex(dir);
+        dedupIndex.add("bob", Arrays.asList(now - 40 * DAY_MS, now));
+        dedupIndex.add("carol", Arrays.asList(now - 50 * DAY_MS));
+
+        dedupIndex.prune();
+
+        assertEquals(1, dir.listFiles().length);
+        assertTrue(dedupIndex.contains("bob", now));
+        assertFalse(dedupIndex.contains("bob", now - 40 * DAY_MS));
+        assertFalse(dedupIndex.contains("carol", now - 50 * DAY_MS));
+    }
+}
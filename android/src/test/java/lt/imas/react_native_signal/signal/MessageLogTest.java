@@ -0,0 +1,62 @@
+package lt.imas.react_native_signal.signal;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MessageLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void rebuildsIndexAfterFailedAppend() throws Exception {
+        File dir = folder.newFolder();
+        MessageLog messageLog = new MessageLog(dir, "messages");
+        messageLog.append(Collections.singletonList(message("1", 1)));
+
+        // index can not be opened for writing while a directory is in its place
+        File indexFile = new File(dir, "messages.idx");
+        assertTrue(indexFile.delete() && indexFile.mkdir());
+        try {
+            messageLog.append(Collections.singletonList(message("2", 2)));
+            fail("Index write should fail");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(indexFile.delete());
+
+        assertEquals(2, messageLog.size());
+        assertEquals("2", messageLog.readRange(1, 2).getJSONObject(0).getString("content"));
+    }
+
+    @Test
+    public void readsLocationOnlyWhileIndexStillHasIt() throws Exception {
+        MessageLog messageLog = new MessageLog(folder.newFolder(), "messages");
+        List<MessageLog.Location> locations = messageLog.append(Arrays.asList(
+                message("first", 1), message("second", 2), message("third", 2)));
+        assertEquals("third", messageLog.read(locations.get(2), 2).getString("content"));
+        assertNull(messageLog.read(locations.get(2), 3));
+
+        // rewritten segment moves kept messages, their old locations point into other records
+        messageLog.removeOldest(1);
+        assertNull(messageLog.read(locations.get(0), 1));
+        assertNull(messageLog.read(locations.get(1), 2));
+        assertNull(messageLog.read(locations.get(2), 2));
+    }
+
+    private static JSONObject message(String content, long savedTimestamp) throws Exception {
+        return new JSONObject().put("content", content).put("savedTimestamp", savedTimestamp);
+    }
+}
@@ -0,0 +1,329 @@
+package lt.imas.react_native_signal.signal;
+
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import lt.imas.react_native_signal.helpers.Base64;
+import lt.imas.react_native_signal.helpers.ProtoReader;
+import lt.imas.react_native_signal.helpers.ProtoWriter;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.ByteString;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessagePipeTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final SecureRandom random = new SecureRandom();
+
+    private MockWebServer mockServer;
+    private ServerSocketListener serverListener;
+    private SignalServer signalServer;
+    private SQLiteProtocolStorage protocolStorage;
+    private RecordingSignalClient signalClient;
+    private final BlockingQueue<String> states = new LinkedBlockingQueue<>();
+    private MessagePipe messagePipe;
+    private byte[] signalingKey;
+
+    @Before
+    public void setUp() throws Exception {
+        mockServer = new MockWebServer();
+        serverListener = new ServerSocketListener();
+        // second upgrade serves the reconnect
+        mockServer.enqueue(new MockResponse().withWebSocketUpgrade(serverListener));
+        mockServer.enqueue(new MockResponse().withWebSocketUpgrade(serverListener));
+        mockServer.start();
+        String host = mockServer.url("").toString();
+        signalServer = new SignalServer(host.substring(0, host.length() - 1), "token", null);
+
+        signalingKey = new byte[52];
+        random.nextBytes(signalingKey);
+        protocolStorage = new SQLiteProtocolStorage(new JdbcProtocolDatabase(new File(folder.getRoot(), "signal.db")));
+        protocolStorage.storeSignalingKey(Base64.encodeBytes(signalingKey));
+        signalClient = new RecordingSignalClient(signalServer, protocolStorage);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (messagePipe != null) messagePipe.close();
+        signalClient.shutdown();
+        signalServer.shutdown();
+        mockServer.shutdown();
+        protocolStorage.close();
+    }
+
+    @Test
+    public void acknowledgesBatchAfterDelay() throws Exception {
+        WebSocket socket = openPipe(55000);
+
+        long sentAt = System.nanoTime();
+        for (int id = 1; id <= 3; id++) {
+            socket.send(envelopeRequest(id, "bob"));
+        }
+
+        assertEquals(new HashSet<>(Arrays.asList(1L, 2L, 3L)), takeAcks(3));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentAt) >= 180);
+        assertEquals(Collections.singletonList(3), signalClient.batchSizes);
+    }
+
+    @Test
+    public void acknowledgesFullBatchWithoutWaiting() throws Exception {
+        WebSocket socket = openPipe(55000);
+
+        for (int id = 1; id <= 60; id++) {
+            socket.send(envelopeRequest(id, "bob"));
+        }
+
+        assertEquals(60, takeAcks(60).size());
+        assertEquals(Arrays.asList(50, 10), signalClient.batchSizes);
+    }
+
+    @Test
+    public void leavesUnhandledEnvelopesUnacknowledged() throws Exception {
+        WebSocket socket = openPipe(55000);
+
+        socket.send(envelopeRequest(1, "bob"));
+        socket.send(envelopeRequest(2, RecordingSignalClient.UNHANDLED_SOURCE));
+        socket.send(envelopeRequest(3, "bob"));
+        socket.send(request(4, "PUT", "/api/v1/message", new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11})); // undecryptable
+
+        assertEquals(new HashSet<>(Arrays.asList(1L, 3L)), takeAcks(2));
+        assertNull(serverListener.acks.poll(500, TimeUnit.MILLISECONDS));
+        assertEquals(Collections.singletonList(3), signalClient.batchSizes);
+    }
+
+    @Test
+    public void dropsConnectionAfterMissedHeartbeat() throws Exception {
+        openPipe(100);
+
+        // keepalive left unanswered, the next heartbeat cancels the socket and the pipe connects again
+        assertNotNull(serverListener.keepAlives.poll(5, TimeUnit.SECONDS));
+        assertEquals(MessagePipe.STATE_CLOSED, states.poll(5, TimeUnit.SECONDS));
+        assertEquals(MessagePipe.STATE_CONNECTING, states.poll(5, TimeUnit.SECONDS));
+        assertEquals(MessagePipe.STATE_OPEN, states.poll(5, TimeUnit.SECONDS));
+        assertEquals(2, mockServer.getRequestCount());
+    }
+
+    @Test
+    public void keepsConnectionWhileHeartbeatsAreAnswered() throws Exception {
+        serverListener.answerKeepAlives = true;
+        openPipe(100);
+
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(serverListener.keepAlives.poll(5, TimeUnit.SECONDS));
+        }
+        assertNull(states.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, mockServer.getRequestCount());
+    }
+
+    @Test
+    public void keepsReconnectDelayWithinJitterBounds() {
+        messagePipe = new MessagePipe(signalServer, signalClient, protocolStorage, "chat", new RecordingListener(), 55000, 1000);
+        for (int attempts = 0; attempts <= 20; attempts++) {
+            long maxDelay = Math.min(60 * 1000, 1000L << Math.min(attempts, 16));
+            long minObserved = Long.MAX_VALUE;
+            long maxObserved = 0;
+            for (int i = 0; i < 200; i++) {
+                long delay = messagePipe.getReconnectDelay(attempts);
+                assertTrue(delay >= maxDelay / 2 && delay <= maxDelay);
+                minObserved = Math.min(minObserved, delay);
+                maxObserved = Math.max(maxObserved, delay);
+            }
+            // jitter actually spreads delays
+            assertTrue(maxObserved > minObserved);
+        }
+        messagePipe = null;
+    }
+
+    /**
+     * Opens the pipe and waits until it is connected, returns server side of the socket.
+     */
+    private WebSocket openPipe(long heartbeatIntervalMs) throws Exception {
+        messagePipe = new MessagePipe(signalServer, signalClient, protocolStorage, "chat", new RecordingListener(), heartbeatIntervalMs, 50);
+        messagePipe.open();
+        assertEquals(MessagePipe.STATE_CONNECTING, states.poll(5, TimeUnit.SECONDS));
+        assertEquals(MessagePipe.STATE_OPEN, states.poll(5, TimeUnit.SECONDS));
+        WebSocket socket = serverListener.sockets.poll(5, TimeUnit.SECONDS);
+        assertNotNull(socket);
+        return socket;
+    }
+
+    private Set<Long> takeAcks(int count) throws InterruptedException {
+        Set<Long> acks = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            Long id = serverListener.acks.poll(5, TimeUnit.SECONDS);
+            assertNotNull(id);
+            acks.add(id);
+        }
+        return acks;
+    }
+
+    private ByteString envelopeRequest(long id, String source) throws Exception {
+        byte[] envelope = new ProtoWriter()
+                .writeVarint(1, SignalEnvelope.TYPE_CIPHERTEXT)
+                .writeString(2, source)
+                .writeVarint(5, id)
+                .writeVarint(7, 1)
+                .writeBytes(8, new byte[]{1, 2, 3})
+                .toByteArray();
+        return request(id, "PUT", "/api/v1/message", encrypt(envelope));
+    }
+
+    private static ByteString request(long id, String verb, String path, byte[] body) {
+        ProtoWriter requestWriter = new ProtoWriter().writeString(1, verb).writeString(2, path);
+        if (body != null) requestWriter.writeBytes(3, body);
+        requestWriter.writeVarint(4, id);
+        return ByteString.of(new ProtoWriter()
+                .writeVarint(1, 1)
+                .writeBytes(2, requestWriter.toByteArray())
+                .toByteArray());
+    }
+
+    /**
+     * Encrypts envelope with the signaling key the way the server does: version, IV, AES-CBC ciphertext and
+     * truncated HMAC-SHA256 of all that.
+     */
+    private byte[] encrypt(byte[] envelope) throws Exception {
+        byte[] iv = new byte[16];
+        random.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(signalingKey, 0, 32, "AES"), new IvParameterSpec(iv));
+        byte[] ciphertext = cipher.doFinal(envelope);
+        byte[] message = new byte[1 + iv.length + ciphertext.length + 10];
+        message[0] = 1;
+        System.arraycopy(iv, 0, message, 1, iv.length);
+        System.arraycopy(ciphertext, 0, message, 1 + iv.length, ciphertext.length);
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(signalingKey, 32, 20, "HmacSHA256"));
+        mac.update(message, 0, message.length - 10);
+        System.arraycopy(mac.doFinal(), 0, message, message.length - 10, 10);
+        return message;
+    }
+
+    private class RecordingListener implements MessagePipe.Listener {
+        @Override
+        public void onMessages(String tag, JSONArray messagesJSONA) {
+        }
+
+        @Override
+        public void onStateChanged(String state) {
+            states.add(state);
+        }
+    }
+
+    /**
+     * Server side of the socket: records acknowledged request ids and keepalive requests.
+     */
+    private static class ServerSocketListener extends WebSocketListener {
+        private final BlockingQueue<WebSocket> sockets = new LinkedBlockingQueue<>();
+        private final BlockingQueue<Long> acks = new LinkedBlockingQueue<>();
+        private final BlockingQueue<Long> keepAlives = new LinkedBlockingQueue<>();
+        private volatile boolean answerKeepAlives = false;
+
+        @Override
+        public void onOpen(WebSocket webSocket, Response response) {
+            sockets.add(webSocket);
+        }
+
+        @Override
+        public void onMessage(WebSocket webSocket, ByteString bytes) {
+            try {
+                ProtoReader reader = new ProtoReader(bytes.toByteArray());
+                long type = 0;
+                byte[] body = null;
+                while (reader.hasNext()) {
+                    int fieldTag = reader.readTag();
+                    int fieldNumber = ProtoReader.getFieldNumber(fieldTag);
+                    if (fieldNumber == 1) {
+                        type = reader.readVarint();
+                    } else if (fieldNumber == 2 || fieldNumber == 3) {
+                        body = reader.readBytes();
+                    } else {
+                        reader.skip(ProtoReader.getWireType(fieldTag));
+                    }
+                }
+                long id = readId(body, type == 1 ? 4 : 1);
+                if (type == 2) {
+                    acks.add(id);
+                } else if (type == 1) {
+                    keepAlives.add(id);
+                    if (answerKeepAlives) {
+                        webSocket.send(ByteString.of(new ProtoWriter()
+                                .writeVarint(1, 2)
+                                .writeBytes(3, new ProtoWriter().writeVarint(1, id).writeVarint(2, 200).toByteArray())
+                                .toByteArray()));
+                    }
+                }
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        private static long readId(byte[] message, int idField) throws IOException {
+            ProtoReader reader = new ProtoReader(message);
+            while (reader.hasNext()) {
+                int fieldTag = reader.readTag();
+                if (ProtoReader.getFieldNumber(fieldTag) == idField) return reader.readVarint();
+                reader.skip(ProtoReader.getWireType(fieldTag));
+            }
+            return -1;
+        }
+
+        @Override
+        public void onClosing(WebSocket webSocket, int code, String reason) {
+            webSocket.close(code, null);
+        }
+    }
+
+    /**
+     * Handles every envelope except those from UNHANDLED_SOURCE and records sizes of the batches it gets.
+     */
+    private static class RecordingSignalClient extends SignalClient {
+        private static final String UNHANDLED_SOURCE = "mallory";
+
+        private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+        private RecordingSignalClient(SignalServer signalServer, ProtocolStore protocolStore) {
+            super(signalServer, protocolStore, null, 0);
+        }
+
+        @Override
+        public JSONArray receiveEnvelopes(List<SignalEnvelope> envelopes, String tag, List<SignalEnvelope> handledEnvelopes) {
+            batchSizes.add(envelopes.size());
+            for (SignalEnvelope envelope : envelopes) {
+                if (!UNHANDLED_SOURCE.equals(envelope.getSource())) handledEnvelopes.add(envelope);
+            }
+            return new JSONArray();
+        }
+    }
+}
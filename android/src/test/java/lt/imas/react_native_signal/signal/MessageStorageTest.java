@@ -0,0 +1,158 @@
+package lt.imas.react_native_signal.signal;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MessageStorageTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MessageStorage messageStorage;
+
+    @Before
+    public void setUp() {
+        messageStorage = new MessageStorage(folder.getRoot().getAbsolutePath());
+    }
+
+    @After
+    public void tearDown() {
+        messageStorage.shutdown();
+    }
+
+    @Test
+    public void pagesThroughHistory() throws Exception {
+        storeMessages(1, 2, 3, 4, 5, 6, 7);
+
+        JSONObject pageJSONO = messageStorage.getContactMessagesPage("bob", "chat", null, 3);
+        assertEquals("7,6,5", contents(pageJSONO));
+        pageJSONO = nextPage(pageJSONO, 3);
+        assertEquals("4,3,2", contents(pageJSONO));
+        pageJSONO = nextPage(pageJSONO, 3);
+        assertEquals("1", contents(pageJSONO));
+        assertTrue(pageJSONO.isNull("nextCursor"));
+    }
+
+    @Test
+    public void keepsCursorWhenOlderMessageArrives() throws Exception {
+        storeMessages(1, 2, 3, 4, 5, 6);
+        JSONObject pageJSONO = messageStorage.getContactMessagesPage("bob", "chat", null, 2);
+        assertEquals("6,5", contents(pageJSONO));
+
+        // shifts every index position behind the cursor
+        storeMessages(2, 8);
+
+        pageJSONO = nextPage(pageJSONO, 3);
+        assertEquals("4,3,2", contents(pageJSONO));
+        pageJSONO = nextPage(pageJSONO, 3);
+        assertEquals("2,1", contents(pageJSONO));
+        assertTrue(pageJSONO.isNull("nextCursor"));
+    }
+
+    @Test
+    public void keepsCursorBetweenMessagesSavedAtSameTimestamp() throws Exception {
+        storeMessages(1, 5, 5, 5, 5, 9);
+        JSONObject pageJSONO = messageStorage.getContactMessagesPage("bob", "chat", null, 3);
+        assertEquals("9,5,5", contents(pageJSONO));
+
+        storeMessages(5);
+
+        // message saved later at the same timestamp sorts after the cursor
+        pageJSONO = nextPage(pageJSONO, 10);
+        assertEquals("5,5,1", contents(pageJSONO));
+    }
+
+    @Test
+    public void keepsCursorAcrossCompaction() throws Exception {
+        storeMessages(1, 2, 3, 4, 5, 6, 7, 8);
+        JSONObject pageJSONO = messageStorage.getContactMessagesPage("bob", "chat", null, 3);
+        assertEquals("8,7,6", contents(pageJSONO));
+
+        messageStorage.setRetention(Collections.singletonMap("chat", new MessageRetention(0, 4)));
+        assertEquals(4, messageStorage.compact().getInt("messagesRemoved"));
+
+        pageJSONO = nextPage(pageJSONO, 3);
+        assertEquals("5", contents(pageJSONO));
+        assertTrue(pageJSONO.isNull("nextCursor"));
+    }
+
+    @Test
+    public void searchesMessagesLeftAfterCompaction() throws Exception {
+        List<JSONObject> messages = new ArrayList<>();
+        for (String content : new String[]{"lunch today", "lunch tomorrow", "dinner"}) {
+            messages.add(new JSONObject().put("username", "bob").put("content", content).put("savedTimestamp", messages.size() + 1));
+        }
+        messageStorage.storeMessages("bob", "chat", messages);
+        assertEquals(2, messageStorage.searchMessages("lunch", "chat", 10).length());
+
+        messageStorage.setRetention(Collections.singletonMap("chat", new MessageRetention(0, 2)));
+        messageStorage.compact();
+
+        JSONArray hitsJSONA = messageStorage.searchMessages("lunch", "chat", 10);
+        assertEquals(1, hitsJSONA.length());
+        assertEquals("lunch tomorrow", hitsJSONA.getJSONObject(0).getJSONObject("message").getString("content"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyPage() throws Exception {
+        storeMessages(1, 2, 3);
+        messageStorage.getContactMessagesPage("bob", "chat", null, 0);
+    }
+
+    @Test
+    public void servesExistingMessagesByTag() throws Exception {
+        storeMessages(1, 2, 3);
+        messageStorage.storeMessage("bob", new JSONObject().put("content", "note").put("savedTimestamp", 4), "tx-note");
+
+        JSONObject chatJSONO = messageStorage.getExistingMessages("chat").getJSONObject(0);
+        assertEquals("3", chatJSONO.getJSONObject("lastMessage").getString("content"));
+        assertEquals(3, chatJSONO.getInt("count"));
+        assertTrue(chatJSONO.isNull("messages"));
+
+        // legacy shape with whole history
+        JSONObject txNoteJSONO = messageStorage.getExistingMessages("tx-note").getJSONObject(0);
+        assertEquals(1, txNoteJSONO.getJSONArray("messages").length());
+
+        messageStorage.setIndexedExistingTags(Collections.singletonList("tx-note"));
+        txNoteJSONO = messageStorage.getExistingMessages("tx-note").getJSONObject(0);
+        assertEquals("note", txNoteJSONO.getJSONObject("lastMessage").getString("content"));
+        assertTrue(txNoteJSONO.isNull("messages"));
+        assertEquals(3, messageStorage.getExistingMessages("chat").getJSONObject(0).getInt("count"));
+    }
+
+    private JSONObject nextPage(JSONObject pageJSONO, int limit) throws Exception {
+        return messageStorage.getContactMessagesPage("bob", "chat", pageJSONO.getString("nextCursor"), limit);
+    }
+
+    private void storeMessages(long... savedTimestamps) throws Exception {
+        List<JSONObject> messages = new ArrayList<>();
+        for (long savedTimestamp : savedTimestamps) {
+            messages.add(new JSONObject()
+                    .put("username", "bob")
+                    .put("content", String.valueOf(savedTimestamp))
+                    .put("savedTimestamp", savedTimestamp));
+        }
+        messageStorage.storeMessages("bob", "chat", messages);
+    }
+
+    private static String contents(JSONObject pageJSONO) throws Exception {
+        JSONArray messagesJSONA = pageJSONO.getJSONArray("messages");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < messagesJSONA.length(); i++) {
+            if (i > 0) sb.append(",");
+            sb.append(messagesJSONA.getJSONObject(i).getString("content"));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,90 @@
+package lt.imas.react_native_signal.signal;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageSummaryIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void journalsUpdatesWithoutRewritingIndex() throws Exception {
+        File file = new File(folder.getRoot(), "summary.json");
+        MessageSummaryIndex summaryIndex = new MessageSummaryIndex(file);
+        summaryIndex.markBuilt();
+        long indexLength = file.length();
+
+        summaryIndex.update("bob", "messages", Collections.singletonList(message("1", 10)));
+        summaryIndex.update("bob", "messages", Collections.singletonList(message("2", 20)));
+        summaryIndex.update("carol", "messages", Collections.singletonList(message("3", 30)));
+
+        assertEquals(indexLength, file.length());
+        assertTrue(getJournalFile(file).exists());
+
+        summaryIndex = new MessageSummaryIndex(file);
+        assertTrue(summaryIndex.exists());
+        JSONObject conversationJSONO = summaryIndex.getConversation("bob", "messages");
+        assertEquals(2, conversationJSONO.getInt("count"));
+        assertEquals(20, conversationJSONO.getLong("lastTimestamp"));
+        assertEquals("2", conversationJSONO.getJSONObject("lastMessage").getString("content"));
+        assertEquals(1, summaryIndex.getConversation("carol", "messages").getInt("count"));
+    }
+
+    @Test
+    public void foldsJournalIntoIndex() throws Exception {
+        File file = new File(folder.getRoot(), "summary.json");
+        MessageSummaryIndex summaryIndex = new MessageSummaryIndex(file);
+        summaryIndex.markBuilt();
+        for (int i = 1; i <= 300; i++) {
+            summaryIndex.update("bob", "messages", Collections.singletonList(message(String.valueOf(i), i)));
+        }
+
+        summaryIndex = new MessageSummaryIndex(file);
+        assertEquals(300, summaryIndex.getConversation("bob", "messages").getInt("count"));
+
+        // other changes rewrite the index and drop the journal
+        summaryIndex.removeConversation("bob", "messages");
+        assertFalse(getJournalFile(file).exists());
+        assertNull(new MessageSummaryIndex(file).getConversation("bob", "messages"));
+    }
+
+    @Test
+    public void skipsTornJournalEntry() throws Exception {
+        File file = new File(folder.getRoot(), "summary.json");
+        MessageSummaryIndex summaryIndex = new MessageSummaryIndex(file);
+        summaryIndex.markBuilt();
+        summaryIndex.update("bob", "messages", Collections.singletonList(message("1", 10)));
+        FileOutputStream fos = new FileOutputStream(getJournalFile(file), true);
+        try {
+            fos.write("\n{\"username\":\"bob\",\"logN".getBytes("UTF-8"));
+        } finally {
+            fos.close();
+        }
+
+        summaryIndex = new MessageSummaryIndex(file);
+        assertEquals(1, summaryIndex.getConversation("bob", "messages").getInt("count"));
+        summaryIndex.update("bob", "messages", Collections.singletonList(message("2", 20)));
+
+        summaryIndex = new MessageSummaryIndex(file);
+        assertEquals(2, summaryIndex.getConversation("bob", "messages").getInt("count"));
+    }
+
+    private static File getJournalFile(File file) {
+        return new File(file.getParentFile(), file.getName() + ".journal");
+    }
+
+    private static JSONObject message(String content, long savedTimestamp) throws Exception {
+        return new JSONObject().put("content", content).put("savedTimestamp", savedTimestamp);
+    }
+}
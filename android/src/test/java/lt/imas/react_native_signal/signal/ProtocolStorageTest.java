@@ -0,0 +1,118 @@
+package lt.imas.react_native_signal.signal;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.SessionBuilder;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.PreKeyBundle;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+import org.whispersystems.libsignal.util.KeyHelper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Collections;
+
+import lt.imas.react_native_signal.helpers.Base64;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProtocolStorageTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final SignalProtocolAddress bob = new SignalProtocolAddress("bob", 1);
+    private final SignalProtocolAddress bobTablet = new SignalProtocolAddress("bob", 2);
+
+    @Test
+    public void migratesLegacySessions() throws Exception {
+        byte[] bobSession = createSession(bob);
+        byte[] bobTabletSession = createSession(bobTablet);
+        JSONObject sessionsJSONO = new JSONObject();
+        sessionsJSONO.put(bob.toString(), Base64.encodeBytes(bobSession));
+        sessionsJSONO.put(bobTablet.toString(), Base64.encodeBytes(bobTabletSession));
+        File dir = folder.newFolder();
+        File legacyFile = writeLegacySessions(dir, sessionsJSONO);
+
+        ProtocolStorage storage = new ProtocolStorage(dir.getAbsolutePath());
+        assertArrayEquals(bobSession, storage.loadSession(bob).serialize());
+        assertArrayEquals(bobTabletSession, storage.loadSession(bobTablet).serialize());
+        assertEquals(Collections.singletonList(2), storage.getSubDeviceSessions("bob"));
+        assertFalse(legacyFile.exists());
+
+        // shards are read without the legacy file
+        storage = new ProtocolStorage(dir.getAbsolutePath());
+        assertTrue(storage.containsSession(bobTablet));
+    }
+
+    @Test
+    public void keepsLegacySessionsUntilAllAreMigrated() throws Exception {
+        byte[] bobSession = createSession(bob);
+        JSONObject sessionsJSONO = new JSONObject();
+        sessionsJSONO.put(bob.toString(), Base64.encodeBytes(bobSession));
+        sessionsJSONO.put("broken", Base64.encodeBytes(bobSession));
+        File dir = folder.newFolder();
+        File legacyFile = writeLegacySessions(dir, sessionsJSONO);
+
+        ProtocolStorage storage = new ProtocolStorage(dir.getAbsolutePath());
+        assertArrayEquals(bobSession, storage.loadSession(bob).serialize());
+        assertTrue(legacyFile.exists());
+    }
+
+    @Test
+    public void writesSessionsThroughAfterWriteBehindIsTurnedOff() throws Exception {
+        File dir = folder.newFolder();
+        ProtocolStorage storage = new ProtocolStorage(dir.getAbsolutePath());
+        storage.setWriteBehind(true);
+        storage.storeSession(bob, sessionWithRegistrationId(1));
+        storage.setWriteBehind(false);
+        assertEquals(1, new ProtocolStorage(dir.getAbsolutePath()).loadSession(bob).getSessionState().getLocalRegistrationId());
+
+        storage.storeSession(bob, sessionWithRegistrationId(2));
+        assertEquals(2, new ProtocolStorage(dir.getAbsolutePath()).loadSession(bob).getSessionState().getLocalRegistrationId());
+    }
+
+    private static SessionRecord sessionWithRegistrationId(int registrationId) {
+        SessionRecord record = new SessionRecord();
+        record.getSessionState().setLocalRegistrationId(registrationId);
+        return record;
+    }
+
+    private File writeLegacySessions(File dir, JSONObject sessionsJSONO) throws Exception {
+        File signalDir = new File(dir, "signal");
+        assertTrue(signalDir.mkdirs());
+        File legacyFile = new File(signalDir, "sessions.json");
+        FileOutputStream outputStream = new FileOutputStream(legacyFile);
+        try {
+            outputStream.write(sessionsJSONO.toString().getBytes("UTF-8"));
+        } finally {
+            outputStream.close();
+        }
+        return legacyFile;
+    }
+
+    /**
+     * Returns a serialized session started with a freshly generated remote device.
+     */
+    private byte[] createSession(SignalProtocolAddress address) throws Exception {
+        ProtocolStorage store = new ProtocolStorage(folder.newFolder().getAbsolutePath());
+        store.storeIdentityKeyPair(KeyHelper.generateIdentityKeyPair());
+        store.storeLocalRegistrationId(KeyHelper.generateRegistrationId(false));
+        IdentityKeyPair remoteIdentity = KeyHelper.generateIdentityKeyPair();
+        PreKeyRecord preKey = KeyHelper.generatePreKeys(1, 1).get(0);
+        SignedPreKeyRecord signedPreKey = KeyHelper.generateSignedPreKey(remoteIdentity, 1);
+        PreKeyBundle bundle = new PreKeyBundle(KeyHelper.generateRegistrationId(false), address.getDeviceId(),
+                preKey.getId(), preKey.getKeyPair().getPublicKey(),
+                signedPreKey.getId(), signedPreKey.getKeyPair().getPublicKey(), signedPreKey.getSignature(),
+                remoteIdentity.getPublicKey());
+        new SessionBuilder(store, address).process(bundle);
+        return store.loadSession(address).serialize();
+    }
+}
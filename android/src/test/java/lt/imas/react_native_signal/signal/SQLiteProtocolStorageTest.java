@@ -0,0 +1,295 @@
+package lt.imas.react_native_signal.signal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.SessionBuilder;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.IdentityKeyStore;
+import org.whispersystems.libsignal.state.PreKeyBundle;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+import org.whispersystems.libsignal.util.KeyHelper;
+
+import java.io.File;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SQLiteProtocolStorageTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File databaseFile;
+    private JdbcProtocolDatabase db;
+    private SQLiteProtocolStorage storage;
+
+    private final SignalProtocolAddress bob = new SignalProtocolAddress("bob", 1);
+    private final SignalProtocolAddress bobTablet = new SignalProtocolAddress("bob", 2);
+
+    @Before
+    public void setUp() throws Exception {
+        databaseFile = new File(folder.getRoot(), SQLiteProtocolStorage.DATABASE_NAME);
+        db = new JdbcProtocolDatabase(databaseFile);
+        storage = new SQLiteProtocolStorage(db);
+    }
+
+    @After
+    public void tearDown() {
+        storage.close();
+    }
+
+    @Test
+    public void storesLocalAccount() {
+        IdentityKeyPair identityKeyPair = KeyHelper.generateIdentityKeyPair();
+        assertFalse(storage.isLocalRegistered());
+        assertEquals("", storage.getLocalUsername());
+
+        storage.storeLocalUsername("alice");
+        storage.storeIdentityKeyPair(identityKeyPair);
+        storage.storeLocalRegistrationId(1234);
+        storage.storeSignalingKey("signaling");
+        storage.storeSignalResetVersion(3);
+
+        assertTrue(storage.isLocalRegistered());
+        assertEquals("alice", storage.getLocalUsername());
+        assertArrayEquals(identityKeyPair.serialize(), storage.getIdentityKeyPair().serialize());
+        assertEquals(1234, storage.getLocalRegistrationId());
+        assertEquals("signaling", storage.getSignalingKey());
+        assertEquals(3, storage.getSignalResetVersion());
+
+        // account details are written once, later values are ignored
+        storage.storeLocalUsername("mallory");
+        storage.storeLocalRegistrationId(99);
+        assertEquals("alice", storage.getLocalUsername());
+        assertEquals(1234, storage.getLocalRegistrationId());
+
+        storage.deleteAll();
+        assertFalse(storage.isLocalRegistered());
+        assertEquals("", storage.getLocalUsername());
+    }
+
+    @Test
+    public void storesNullSignalingKeyAsNull() {
+        storage.storeSignalingKey("signaling");
+        storage.storeSignalingKey(null);
+        assertNull(storage.getSignalingKey());
+        assertEquals(Long.valueOf(1), db.queryLong("SELECT signaling_key IS NULL FROM local WHERE id = 0"));
+    }
+
+    @Test
+    public void storesIdentities() {
+        IdentityKey identityKey = KeyHelper.generateIdentityKeyPair().getPublicKey();
+        IdentityKey otherIdentityKey = KeyHelper.generateIdentityKeyPair().getPublicKey();
+
+        assertTrue(storage.isTrustedIdentity(bob, identityKey, IdentityKeyStore.Direction.SENDING));
+        storage.saveIdentity(bob, identityKey);
+        assertTrue(storage.isTrustedIdentity(bob, identityKey, IdentityKeyStore.Direction.SENDING));
+        assertFalse(storage.isTrustedIdentity(bob, otherIdentityKey, IdentityKeyStore.Direction.RECEIVING));
+        assertTrue(storage.isTrustedIdentity(bobTablet, otherIdentityKey, IdentityKeyStore.Direction.RECEIVING));
+
+        storage.removeIdentity(bob);
+        assertTrue(storage.isTrustedIdentity(bob, otherIdentityKey, IdentityKeyStore.Direction.RECEIVING));
+    }
+
+    @Test
+    public void storesSessions() throws Exception {
+        SQLiteProtocolStorage aliceStorage = createAccount(new SQLiteProtocolStorage(new JdbcProtocolDatabase(folder.newFile("alice.db"))));
+        try {
+            buildSession(aliceStorage, bob);
+            buildSession(aliceStorage, bobTablet);
+            assertTrue(aliceStorage.containsSession(bob));
+            assertTrue(aliceStorage.containsSession(bobTablet));
+            assertEquals(Collections.singletonList(2), aliceStorage.getSubDeviceSessions("bob"));
+            assertFalse(aliceStorage.containsSession(new SignalProtocolAddress("carol", 1)));
+
+            aliceStorage.deleteSession(bobTablet);
+            assertFalse(aliceStorage.containsSession(bobTablet));
+            assertTrue(aliceStorage.getSubDeviceSessions("bob").isEmpty());
+
+            aliceStorage.deleteAllSessions("bob");
+            assertFalse(aliceStorage.containsSession(bob));
+        } finally {
+            aliceStorage.close();
+        }
+    }
+
+    @Test
+    public void storesSignedPreKeys() throws Exception {
+        SignedPreKeyRecord record = KeyHelper.generateSignedPreKey(KeyHelper.generateIdentityKeyPair(), 5);
+        storage.storeSignedPreKey(5, record);
+
+        assertTrue(storage.containsSignedPreKey(5));
+        assertArrayEquals(record.serialize(), storage.loadSignedPreKey(5).serialize());
+        assertEquals(1, storage.loadSignedPreKeys().size());
+
+        storage.removeSignedPreKey(5);
+        assertFalse(storage.containsSignedPreKey(5));
+        assertNull(storage.loadSignedPreKey(5));
+    }
+
+    @Test
+    public void storesPreKeyBatchInOneTransaction() {
+        List<PreKeyRecord> records = KeyHelper.generatePreKeys(1, 100);
+        storage.storePreKeys(records);
+
+        for (PreKeyRecord record : records) {
+            assertTrue(storage.containsPreKey(record.getId()));
+        }
+        assertArrayEquals(records.get(41).serialize(), storage.loadPreKey(42).serialize());
+        assertEquals(100, storage.getLastPreKeyIndex());
+        assertEquals(101, storage.getNextPreKeyIndex());
+
+        storage.removePreKeys(Arrays.asList(1, 2, 3));
+        assertFalse(storage.containsPreKey(2));
+        assertTrue(storage.containsPreKey(4));
+    }
+
+    @Test
+    public void rollsBackFailedPreKeyBatch() {
+        final List<PreKeyRecord> records = KeyHelper.generatePreKeys(1, 10);
+        // fails after half of the batch was written
+        AbstractCollection<PreKeyRecord> failing = new AbstractCollection<PreKeyRecord>() {
+            @Override
+            public Iterator<PreKeyRecord> iterator() {
+                final Iterator<PreKeyRecord> iterator = records.iterator();
+                return new Iterator<PreKeyRecord>() {
+                    private int count = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public PreKeyRecord next() {
+                        if (++count > 5) throw new IllegalStateException("interrupted");
+                        return iterator.next();
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return records.size();
+            }
+        };
+
+        try {
+            storage.storePreKeys(failing);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertFalse(storage.containsPreKey(1));
+        assertEquals(0, storage.getLastPreKeyIndex());
+
+        // connection is usable after the rollback
+        storage.storePreKeys(records);
+        assertTrue(storage.containsPreKey(10));
+    }
+
+    @Test
+    public void opensInWalMode() {
+        assertEquals("wal", db.queryString("PRAGMA journal_mode"));
+        assertTrue(new File(databaseFile.getPath() + "-wal").exists());
+    }
+
+    @Test
+    public void keepsDataAndVersionOnReopen() {
+        storage.storeLocalUsername("alice");
+        storage.close();
+
+        db = new JdbcProtocolDatabase(databaseFile);
+        storage = new SQLiteProtocolStorage(db);
+        assertEquals(1, db.getVersion());
+        assertEquals("alice", storage.getLocalUsername());
+    }
+
+    @Test
+    public void refusesNewerSchema() {
+        db.setVersion(99);
+        storage.close();
+
+        db = new JdbcProtocolDatabase(databaseFile);
+        try {
+            new SQLiteProtocolStorage(db);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        db.close();
+        storage = new SQLiteProtocolStorage(new JdbcProtocolDatabase(new File(folder.getRoot(), "other.db")));
+    }
+
+    @Test
+    public void importsFileStorage() throws Exception {
+        ProtocolStorage fileStorage = new ProtocolStorage(folder.newFolder().getAbsolutePath());
+        createAccount(fileStorage);
+        fileStorage.storeSignalingKey("signaling");
+        fileStorage.storePreKeys(KeyHelper.generatePreKeys(1, 20));
+        SignedPreKeyRecord signedPreKey = KeyHelper.generateSignedPreKey(fileStorage.getIdentityKeyPair(), 7);
+        fileStorage.storeSignedPreKey(7, signedPreKey);
+        buildSession(fileStorage, bob);
+        IdentityKey bobIdentity = fileStorage.loadIdentities().get(bob);
+        assertNotNull(bobIdentity);
+
+        assertTrue(storage.importFrom(fileStorage));
+
+        assertTrue(storage.isLocalRegistered());
+        assertEquals("alice", storage.getLocalUsername());
+        assertEquals(fileStorage.getLocalRegistrationId(), storage.getLocalRegistrationId());
+        assertArrayEquals(fileStorage.getIdentityKeyPair().serialize(), storage.getIdentityKeyPair().serialize());
+        assertEquals("signaling", storage.getSignalingKey());
+        assertEquals(20, storage.getLastPreKeyIndex());
+        assertTrue(storage.containsPreKey(20));
+        assertArrayEquals(signedPreKey.serialize(), storage.loadSignedPreKey(7).serialize());
+        assertArrayEquals(fileStorage.loadSession(bob).serialize(), storage.loadSession(bob).serialize());
+        assertFalse(storage.isTrustedIdentity(bob, KeyHelper.generateIdentityKeyPair().getPublicKey(), IdentityKeyStore.Direction.SENDING));
+        assertTrue(storage.isTrustedIdentity(bob, bobIdentity, IdentityKeyStore.Direction.SENDING));
+
+        // a registered database is never overwritten
+        assertFalse(storage.importFrom(fileStorage));
+        fileStorage.close();
+    }
+
+    private static <T extends ProtocolStore> T createAccount(T store) {
+        store.storeLocalUsername("alice");
+        store.storeIdentityKeyPair(KeyHelper.generateIdentityKeyPair());
+        store.storeLocalRegistrationId(KeyHelper.generateRegistrationId(false));
+        return store;
+    }
+
+    /**
+     * Starts a session with a freshly generated remote device, as processing a fetched pre key bundle does.
+     */
+    private static void buildSession(ProtocolStore store, SignalProtocolAddress address) throws Exception {
+        IdentityKeyPair remoteIdentity = KeyHelper.generateIdentityKeyPair();
+        PreKeyRecord preKey = KeyHelper.generatePreKeys(1, 1).get(0);
+        SignedPreKeyRecord signedPreKey = KeyHelper.generateSignedPreKey(remoteIdentity, 1);
+        PreKeyBundle bundle = new PreKeyBundle(KeyHelper.generateRegistrationId(false), address.getDeviceId(),
+                preKey.getId(), preKey.getKeyPair().getPublicKey(),
+                signedPreKey.getId(), signedPreKey.getKeyPair().getPublicKey(), signedPreKey.getSignature(),
+                remoteIdentity.getPublicKey());
+        new SessionBuilder(store, address).process(bundle);
+    }
+}
@@ -0,0 +1,171 @@
+package lt.imas.react_native_signal.signal;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SignalServerTest {
+    private MockWebServer mockServer;
+    private SignalServer signalServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mockServer = new MockWebServer();
+        mockServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (signalServer != null) signalServer.shutdown();
+        mockServer.shutdown();
+    }
+
+    @Test
+    public void reusesConnectionBetweenRequests() throws Exception {
+        signalServer = createSignalServer(HttpClientConfig.DEFAULT);
+        for (int i = 0; i < 3; i++) {
+            mockServer.enqueue(new MockResponse().setBody("{}"));
+        }
+
+        for (int i = 0; i < 3; i++) {
+            RecordingCallback callback = new RecordingCallback();
+            signalServer.call("/v1/keys", "put", new JSONObject(), callback, false, 1);
+            assertEquals(200, callback.code);
+        }
+
+        // sequence number counts requests made on the same connection
+        assertEquals(0, mockServer.takeRequest().getSequenceNumber());
+        assertEquals(1, mockServer.takeRequest().getSequenceNumber());
+        assertEquals(2, mockServer.takeRequest().getSequenceNumber());
+        assertEquals(1, signalServer.getHttpClient().connectionPool().connectionCount());
+    }
+
+    @Test
+    public void limitsConcurrentRequestsPerHost() throws Exception {
+        signalServer = createSignalServer(new HttpClientConfig(5, 300, 16, 2, 15, 30));
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        mockServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                int current = running.incrementAndGet();
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), current));
+                }
+                release.await(10, TimeUnit.SECONDS);
+                running.decrementAndGet();
+                return new MockResponse().setBody("{}");
+            }
+        });
+
+        final CountDownLatch done = new CountDownLatch(5);
+        for (int i = 0; i < 5; i++) {
+            signalServer.call("/v1/messages", "get", new JSONObject(), new RecordingCallback(done), true, 1);
+        }
+        waitUntil(new Condition() {
+            @Override
+            public boolean isMet() {
+                return running.get() == 2;
+            }
+        });
+        okhttp3.Dispatcher dispatcher = signalServer.getHttpClient().dispatcher();
+        assertEquals(2, dispatcher.runningCallsCount());
+        assertEquals(3, dispatcher.queuedCallsCount());
+
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(2, maxRunning.get());
+        assertEquals(5, mockServer.getRequestCount());
+    }
+
+    @Test
+    public void shutdownCancelsRequestsAndClosesConnections() throws Exception {
+        signalServer = createSignalServer(HttpClientConfig.DEFAULT);
+        mockServer.enqueue(new MockResponse().setBody("{}"));
+        RecordingCallback callback = new RecordingCallback();
+        signalServer.call("/v1/keys", "put", new JSONObject(), callback, false, 1);
+        assertEquals(1, signalServer.getHttpClient().connectionPool().connectionCount());
+
+        mockServer.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+        CountDownLatch done = new CountDownLatch(1);
+        RecordingCallback hangingCallback = new RecordingCallback(done);
+        signalServer.call("/v1/messages", "get", new JSONObject(), hangingCallback, true, 1);
+        mockServer.takeRequest(); // first request
+        mockServer.takeRequest(10, TimeUnit.SECONDS);
+
+        signalServer.shutdown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(hangingCallback.failure instanceof IOException);
+        assertTrue(signalServer.getHttpClient().dispatcher().executorService().isShutdown());
+        assertEquals(0, signalServer.getHttpClient().connectionPool().connectionCount());
+    }
+
+    private SignalServer createSignalServer(HttpClientConfig httpClientConfig) {
+        String host = mockServer.url("").toString();
+        return new SignalServer(host.substring(0, host.length() - 1), "token", null, httpClientConfig) {
+            @Override
+            boolean isNetworkAvailable() {
+                return true;
+            }
+        };
+    }
+
+    private static void waitUntil(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.isMet()) {
+            if (System.currentTimeMillis() > deadline) throw new AssertionError("Condition not met");
+            Thread.sleep(10);
+        }
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    private static class RecordingCallback implements Callback {
+        private final CountDownLatch done;
+        private volatile int code;
+        private volatile IOException failure;
+
+        private RecordingCallback() {
+            this(new CountDownLatch(1));
+        }
+
+        private RecordingCallback(CountDownLatch done) {
+            this.done = done;
+        }
+
+        @Override
+        public void onFailure(Call call, IOException e) {
+            failure = e;
+            done.countDown();
+        }
+
+        @Override
+        public void onResponse(Call call, Response response) {
+            code = response.code();
+            response.close();
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package lt.imas.react_native_signal.signal;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TaskExecutorTest {
+    @Test
+    public void runsQueuedTasksAfterShutdown() throws Exception {
+        TaskExecutor taskExecutor = new TaskExecutor(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(4);
+        final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        taskExecutor.execute("bob", new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                ran.add("bob1");
+                done.countDown();
+            }
+        });
+        taskExecutor.execute("bob", recordingTask("bob2", ran, done));
+        taskExecutor.execute("carol", recordingTask("carol1", ran, done));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        taskExecutor.shutdown();
+        taskExecutor.execute("bob", recordingTask("bob3", ran, done));
+        release.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        List<String> bobRan = new ArrayList<>();
+        for (String name : ran) {
+            if (name.startsWith("bob")) bobRan.add(name);
+        }
+        assertEquals(Arrays.asList("bob1", "bob2", "bob3"), bobRan);
+        assertTrue(ran.contains("carol1"));
+    }
+
+    @Test
+    public void runsTaskSubmittedAfterShutdownOnCallingThread() {
+        TaskExecutor taskExecutor = new TaskExecutor(1);
+        taskExecutor.shutdown();
+        final List<Thread> threads = new ArrayList<>();
+        taskExecutor.execute("bob", new Runnable() {
+            @Override
+            public void run() {
+                threads.add(Thread.currentThread());
+            }
+        });
+        assertEquals(Collections.singletonList(Thread.currentThread()), threads);
+    }
+
+    private static Runnable recordingTask(final String name, final List<String> ran, final CountDownLatch done) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                ran.add(name);
+                done.countDown();
+            }
+        };
+    }
+}